@@ -0,0 +1,202 @@
+package com.popov.csv.processor.core;
+
+import com.popov.csv.processor.config.OutputDirectoryResolver;
+import com.popov.csv.processor.config.ThreadMode;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * Many uploads at once, each arriving slowly like over a network, served either by a pool of
+ * {@value #TOMCAT_MAX_THREADS} platform threads as Tomcat does by default, or by one virtual
+ * thread per upload as with {@code output.file.threads=virtual}. {@code uploads} scores
+ * uploads per second; the {@link Footprint} counters add the peak live threads and the peak
+ * heap of an iteration. The virtual mode needs Java 21, run with
+ * {@code ./gradlew jmh -PjavaToolchainVersion=21 -Pjmh.includes=ConcurrentUploadBenchmark}.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class ConcurrentUploadBenchmark {
+
+    static final int TOMCAT_MAX_THREADS = 200;
+
+    private static final int ROWS = 1_000;
+    private static final int BUYERS = 20;
+    private static final int COLUMNS = 10;
+    private static final int PACKET_SIZE = 8 * 1024;
+    private static final long PACKET_DELAY_MILLIS = 1L;
+
+    @Param({"platform", "virtual"})
+    public String threadMode;
+
+    @Param({"16", "1000"})
+    public int concurrentUploads;
+
+    private byte[] input;
+    private Path outputDirectory;
+    private InvoiceCsvSplitter[] invoiceCsvSplitters;
+    private ExecutorService platformExecutor;
+    private ThreadFactory virtualThreadFactory;
+
+    /**
+     * Peak live threads and peak heap of the current iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+
+        public long peakThreads;
+        public long peakHeapMegabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            this.peakThreads = 0;
+            this.peakHeapMegabytes = 0;
+            ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                pool.resetPeakUsage();
+            }
+        }
+
+        void sample() {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long heap = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    heap += pool.getPeakUsage().getUsed();
+                }
+            }
+            this.peakThreads = Math.max(this.peakThreads, threads.getPeakThreadCount());
+            this.peakHeapMegabytes = Math.max(this.peakHeapMegabytes, heap >> 20);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.input = InvoiceCsvGenerator.generate(ROWS, BUYERS, COLUMNS, 0);
+        this.outputDirectory = Files.createTempDirectory("csv-upload-benchmark-");
+
+        // One splitter per upload slot, so concurrent uploads never share buyer files
+        this.invoiceCsvSplitters = new InvoiceCsvSplitter[this.concurrentUploads];
+        for (int upload = 0; upload < this.concurrentUploads; upload++) {
+            Path uploadDirectory = Files.createDirectory(this.outputDirectory.resolve(Integer.toString(upload)));
+            this.invoiceCsvSplitters[upload] = new InvoiceCsvToCsvSplitter(new OutputDirectoryResolver() {
+                @Override
+                public String getOutputDirectory() {
+                    return uploadDirectory.toString();
+                }
+            });
+        }
+
+        if (ThreadMode.of(this.threadMode) == ThreadMode.VIRTUAL) {
+            this.virtualThreadFactory = ThreadMode.VIRTUAL.threadFactory("upload-", true);
+        } else {
+            this.platformExecutor = Executors.newFixedThreadPool(TOMCAT_MAX_THREADS,
+                    ThreadMode.PLATFORM.threadFactory("upload-", true));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (this.platformExecutor != null) {
+            this.platformExecutor.shutdownNow();
+        }
+        try (Stream<Path> files = Files.walk(this.outputDirectory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void uploads(Footprint footprint) throws Exception {
+        CountDownLatch done = new CountDownLatch(this.concurrentUploads);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+
+        for (InvoiceCsvSplitter invoiceCsvSplitter : this.invoiceCsvSplitters) {
+            Runnable upload = () -> {
+                try {
+                    invoiceCsvSplitter.splitCsvInvoicesByBuyer(new SlowUploadInputStream(this.input));
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            };
+            if (this.platformExecutor != null) {
+                this.platformExecutor.execute(upload);
+            } else {
+                this.virtualThreadFactory.newThread(upload).start();
+            }
+        }
+
+        done.await();
+        footprint.sample();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Hands out the upload in packets of {@value #PACKET_SIZE} bytes with a pause before each,
+     * so an upload spends most of its time blocked like a request body read from a socket.
+     */
+    private static final class SlowUploadInputStream extends InputStream {
+
+        private final InputStream in;
+
+        SlowUploadInputStream(byte[] input) {
+            this.in = new ByteArrayInputStream(input);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return this.read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                Thread.sleep(PACKET_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            return this.in.read(buffer, offset, Math.min(length, PACKET_SIZE));
+        }
+    }
+}
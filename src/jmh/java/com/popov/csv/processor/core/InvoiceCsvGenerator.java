@@ -0,0 +1,53 @@
+package com.popov.csv.processor.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Builds synthetic invoice feeds for the benchmarks. The buyer, image name and image columns
+ * come first, every further column holds a short numeric value. Rows are spread evenly over
+ * the buyers and the output is the same for the same arguments.
+ */
+public final class InvoiceCsvGenerator {
+
+    private static final long SEED = 42L;
+
+    private InvoiceCsvGenerator() {
+    }
+
+    /**
+     * @param imageSize decoded size of every image in bytes, 0 leaves the image columns empty
+     */
+    public static byte[] generate(int rows, int buyers, int columns, int imageSize) {
+        Random random = new Random(SEED);
+        String image = imageSize > 0 ? randomBase64(random, imageSize) : "";
+
+        StringBuilder csv = new StringBuilder("buyer,image_name,invoice_image");
+        for (int column = 3; column < columns; column++) {
+            csv.append(",column").append(column);
+        }
+        csv.append('\n');
+
+        for (int row = 0; row < rows; row++) {
+            csv.append("buyer").append(row % buyers).append(',');
+            if (imageSize > 0) {
+                csv.append("image").append(row).append(".png,").append(image);
+            } else {
+                csv.append(',');
+            }
+            for (int column = 3; column < columns; column++) {
+                csv.append(',').append(random.nextInt(1_000_000));
+            }
+            csv.append('\n');
+        }
+
+        return csv.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String randomBase64(Random random, int size) {
+        byte[] image = new byte[size];
+        random.nextBytes(image);
+        return Base64.getEncoder().encodeToString(image);
+    }
+}
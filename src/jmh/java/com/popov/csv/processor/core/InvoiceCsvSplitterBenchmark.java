@@ -0,0 +1,103 @@
+package com.popov.csv.processor.core;
+
+import com.popov.csv.processor.config.OutputDirectoryResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * End to end split of an in-memory feed into buyer files. Every invocation splits
+ * {@value #ROWS} rows, so {@code throughput} scores rows per second and {@code rowLatency}
+ * the nanoseconds spent per row. Run with {@code ./gradlew jmh}; the gc profiler adds the allocation
+ * rate per row ({@code gc.alloc.rate.norm}).
+ */
+@State(Scope.Benchmark)
+@OperationsPerInvocation(InvoiceCsvSplitterBenchmark.ROWS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InvoiceCsvSplitterBenchmark {
+
+    static final int ROWS = 10_000;
+
+    private static final String CSV_FORMAT = "csv";
+
+    @Param({"csv", "xml"})
+    public String format;
+
+    @Param({"10", "1000"})
+    public int buyers;
+
+    @Param({"5", "20"})
+    public int columns;
+
+    @Param({"0", "16384"})
+    public int imageSize;
+
+    private byte[] input;
+    private Path outputDirectory;
+    private InvoiceCsvSplitter invoiceCsvSplitter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.input = InvoiceCsvGenerator.generate(ROWS, this.buyers, this.columns, this.imageSize);
+        this.outputDirectory = Files.createTempDirectory("csv-benchmark-");
+
+        // Every invocation overwrites the same buyer files, so the disk usage stays at one run
+        OutputDirectoryResolver outputDirectoryResolver = new OutputDirectoryResolver() {
+            @Override
+            public String getOutputDirectory() {
+                return InvoiceCsvSplitterBenchmark.this.outputDirectory.toString();
+            }
+        };
+        this.invoiceCsvSplitter = CSV_FORMAT.equals(this.format)
+                ? new InvoiceCsvToCsvSplitter(outputDirectoryResolver)
+                : new InvoiceCsvToXmlSplitter(outputDirectoryResolver);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(this.outputDirectory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void throughput() throws Exception {
+        this.split();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void rowLatency() throws Exception {
+        this.split();
+    }
+
+    private void split() throws Exception {
+        this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(new ByteArrayInputStream(this.input));
+    }
+}
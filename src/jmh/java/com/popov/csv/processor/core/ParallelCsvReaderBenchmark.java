@@ -0,0 +1,71 @@
+package com.popov.csv.processor.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading an on-disk feed with {@link ParallelCsvReader} at a growing number of threads, to
+ * see how the chunked tokenizing scales with the cores. Every invocation reads
+ * {@value #ROWS} rows, so {@code throughput} scores rows per second; thread counts above the
+ * cores of the machine only add scheduling. Run with
+ * {@code ./gradlew jmh -Pjmh.includes=ParallelCsvReaderBenchmark}.
+ */
+@State(Scope.Benchmark)
+@OperationsPerInvocation(ParallelCsvReaderBenchmark.ROWS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelCsvReaderBenchmark {
+
+    static final int ROWS = 300_000;
+
+    private static final int BUYERS = 100;
+    private static final int COLUMNS = 10;
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private Path inputFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.inputFile = Files.createTempFile("csv-benchmark-", ".csv");
+        Files.write(this.inputFile, InvoiceCsvGenerator.generate(ROWS, BUYERS, COLUMNS, 0));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.delete(this.inputFile);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long throughput() throws IOException {
+        long rows = 0;
+        try (ParallelCsvReader parallelCsvReader = new ParallelCsvReader(this.inputFile, this.threads, CHUNK_SIZE)) {
+            while (parallelCsvReader.next() != null) {
+                rows++;
+            }
+        }
+        return rows;
+    }
+}
@@ -4,6 +4,9 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.io.File;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 @Component
 public class OutputDirectoryResolver {
@@ -11,7 +14,48 @@ public class OutputDirectoryResolver {
     @Value("${output.directory:outputFiles}")
     private String outputDirectory;
 
+    private static final Pattern RUN_NAME = Pattern.compile("\\d{1,19}");
+    private static final Pattern TARGET_NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._-]{0,63}");
+    private static final String TARGETS_DIRECTORY = "incremental";
+
+    private final AtomicLong lastTimestamp = new AtomicLong();
+
     public String getOutputDirectory() {
-        return this.outputDirectory + File.separator + System.currentTimeMillis();
+        return this.outputDirectory + File.separator + this.nextTimestamp();
+    }
+
+    /**
+     * Returns the output directory of an earlier run by its name, the timestamp that
+     * {@link #getOutputDirectory()} appended, or empty when the name is not a run name.
+     */
+    public Optional<String> getOutputDirectory(String run) {
+        if (run == null || !RUN_NAME.matcher(run).matches()) {
+            return Optional.empty();
+        }
+        return Optional.of(this.outputDirectory + File.separator + run);
+    }
+
+    /**
+     * Returns the stable output directory of {@code target}, which incremental splits append
+     * to, or empty when the name is not a target name.
+     */
+    public Optional<String> getTargetDirectory(String target) {
+        if (!isValidTarget(target)) {
+            return Optional.empty();
+        }
+        return Optional.of(this.outputDirectory + File.separator + TARGETS_DIRECTORY + File.separator + target);
+    }
+
+    /**
+     * Tells whether {@code target} can name a stable output directory: letters, digits, dots,
+     * dashes and underscores, not starting with a dot.
+     */
+    public static boolean isValidTarget(String target) {
+        return target != null && TARGET_NAME.matcher(target).matches();
+    }
+
+    // Concurrent splits may start within the same millisecond, so never hand out a timestamp twice
+    private long nextTimestamp() {
+        return this.lastTimestamp.accumulateAndGet(System.currentTimeMillis(), (last, now) -> Math.max(last + 1, now));
     }
 }
@@ -0,0 +1,51 @@
+package com.popov.csv.processor.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+@Configuration
+public class SplitExecutorConfiguration {
+
+    private static final String SPLIT_THREAD_PREFIX = "split-";
+    private static final String JOB_THREAD_PREFIX = "split-job-";
+
+    @Value("${" + ThreadMode.PROPERTY + ":platform}")
+    private String threads = "platform";
+
+    /**
+     * Bounded pool the split requests run on. Requests beyond {@code pool-size} running
+     * and {@code queue-capacity} waiting are rejected instead of piling up on Tomcat threads.
+     * A pool size of 0 means one thread per available core. With {@code output.file.threads}
+     * set to {@code virtual} the pool keeps its bounds but runs on virtual threads.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService splitExecutor(@Value("${split.executor.pool-size:0}") int poolSize,
+                                         @Value("${split.executor.queue-capacity:16}") int queueCapacity) {
+        return this.boundedExecutor(poolSize, queueCapacity, SPLIT_THREAD_PREFIX);
+    }
+
+    /**
+     * Pool the jobs of the job API run on. Queued jobs only hold their uploaded file, so the
+     * queue is much longer than the one of {@link #splitExecutor}.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService jobExecutor(@Value("${split.jobs.pool-size:0}") int poolSize,
+                                       @Value("${split.jobs.queue-capacity:1024}") int queueCapacity) {
+        return this.boundedExecutor(poolSize, queueCapacity, JOB_THREAD_PREFIX);
+    }
+
+    private ExecutorService boundedExecutor(int poolSize, int queueCapacity, String threadPrefix) {
+        int threads = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                ThreadMode.of(this.threads).threadFactory(threadPrefix, false),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+}
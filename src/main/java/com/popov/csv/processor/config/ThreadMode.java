@@ -0,0 +1,51 @@
+package com.popov.csv.processor.config;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Kind of threads the blocking work runs on, selected with {@code output.file.threads}.
+ * Virtual threads need a Java 21 runtime; the sources still compile for Java 17, so they are
+ * created through reflection.
+ */
+public enum ThreadMode {
+
+    PLATFORM, VIRTUAL;
+
+    public static final String PROPERTY = "output.file.threads";
+
+    private static final String VIRTUAL_THREADS_UNSUPPORTED_MESSAGE =
+            "Virtual threads need Java 21, build and run with -PjavaToolchainVersion=21.";
+
+    public static ThreadMode of(String value) {
+        return VIRTUAL.name().equalsIgnoreCase(value) ? VIRTUAL : PLATFORM;
+    }
+
+    /**
+     * Returns a factory for threads named {@code prefix} followed by a counter. Platform threads
+     * are daemon threads when asked for, virtual threads always are.
+     */
+    public ThreadFactory threadFactory(String prefix, boolean daemon) {
+        if (this == VIRTUAL) {
+            return virtualThreadFactory(prefix);
+        }
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(prefix);
+        threadFactory.setDaemon(daemon);
+        return threadFactory;
+    }
+
+    private static ThreadFactory virtualThreadFactory(String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 1L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException(VIRTUAL_THREADS_UNSUPPORTED_MESSAGE, e);
+        }
+    }
+}
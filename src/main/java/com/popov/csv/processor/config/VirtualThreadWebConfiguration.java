@@ -0,0 +1,27 @@
+package com.popov.csv.processor.config;
+
+import org.apache.coyote.ProtocolHandler;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Serves every request on its own virtual thread instead of Tomcat's worker pool when
+ * {@code output.file.threads} is {@code virtual}. Uploads block on the network and the disk for
+ * most of their time, which then no longer ties up a platform thread each.
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "output.file", name = "threads", havingValue = "virtual")
+public class VirtualThreadWebConfiguration {
+
+    private static final String REQUEST_THREAD_PREFIX = "http-virtual-";
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<ProtocolHandler> virtualThreadProtocolHandlerCustomizer() {
+        ThreadFactory threadFactory = ThreadMode.VIRTUAL.threadFactory(REQUEST_THREAD_PREFIX, true);
+        return protocolHandler -> protocolHandler.setExecutor(command -> threadFactory.newThread(command).start());
+    }
+}
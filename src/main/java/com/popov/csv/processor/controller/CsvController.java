@@ -1,12 +1,20 @@
 package com.popov.csv.processor.controller;
 
 import com.opencsv.exceptions.CsvValidationException;
+import com.popov.csv.processor.config.OutputDirectoryResolver;
 import com.popov.csv.processor.core.InvoiceCsvSplitter;
+import com.popov.csv.processor.core.OutputFormats;
+import com.popov.csv.processor.core.RowFilter;
+import com.popov.csv.processor.core.SplitOptions;
+import com.popov.csv.processor.core.SplitProgress;
+import com.popov.csv.processor.core.SplitStrategy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -15,6 +23,12 @@ import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 @RequestMapping("/api/v1/csv")
 @RestController
@@ -24,31 +38,182 @@ public class CsvController {
     private static final String MISSING_CSV_INPUT_FILE = "Missing csv input file.";
     private static final String UNABLE_TO_PROCESS_THE_REQUEST = "Unable to process the request";
     private static final String INVALID_CSV_INPUT_FILE = "Invalid csv input file.";
+    private static final String TOO_MANY_SPLIT_REQUESTS = "Too many split requests in progress.";
+    private static final String UNKNOWN_SPLIT_STRATEGY = "Unknown split strategy.";
+    private static final String UNKNOWN_OUTPUT_FORMAT = "Unknown output format.";
+    private static final String INVALID_TARGET = "Invalid target directory name.";
+    private static final String INVALID_ROW_FILTER = "Invalid row filter.";
+    private static final String COLUMN_SEPARATOR = ",";
+    private static final String TEXT_CSV = "text/csv";
+    private static final String APPLICATION_GZIP = "application/gzip";
+    private static final String APPLICATION_ZSTD = "application/zstd";
+    private static final String APPLICATION_ZIP = "application/zip";
 
     @Autowired
-    private final InvoiceCsvSplitter invoiceCsvSplitter;
+    private final OutputFormats outputFormats;
 
-    public CsvController(InvoiceCsvSplitter invoiceCsvSplitter) {
-        this.invoiceCsvSplitter = invoiceCsvSplitter;
+    @Autowired
+    private final ExecutorService splitExecutor;
+
+    public CsvController(OutputFormats outputFormats, @Qualifier("splitExecutor") ExecutorService splitExecutor) {
+        this.outputFormats = outputFormats;
+        this.splitExecutor = splitExecutor;
     }
 
+    /**
+     * The optional {@code strategy} overrides {@code split.strategy} for this upload, see
+     * {@link SplitStrategy}, and the optional {@code format} overrides {@code output.file.format},
+     * see {@link OutputFormats}. With the optional {@code target} the new rows are appended to
+     * the buyer files of that stable directory instead of a new one, skipping rows it already
+     * holds; only the buyers of the upload are touched. The optional {@code columns}, comma
+     * separated, are the only ones written, in that order, and only rows passing every
+     * {@code filter} are written, see {@link RowFilter}.
+     */
     @PostMapping("/split")
-    public ResponseEntity<String> splitInvoiceCsv(@RequestParam(value = "file") MultipartFile file){
+    public ResponseEntity<String> splitInvoiceCsv(@RequestParam(value = "file") MultipartFile file,
+                                                  @RequestParam(value = "strategy", required = false) String strategy,
+                                                  @RequestParam(value = "format", required = false) String format,
+                                                  @RequestParam(value = "target", required = false) String target,
+                                                  @RequestParam(value = "columns", required = false) String columns,
+                                                  @RequestParam(value = "filter", required = false) List<String> filters){
         if (file == null) {
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(MISSING_CSV_INPUT_FILE);
         }
 
+        SplitRequest request = this.resolveOptions(strategy, format, target, columns, filters);
+        if (request.invalidParameter() != null) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(request.invalidParameter());
+        }
+        return this.split(progress -> request.splitter().splitCsvInvoicesByBuyer(file, progress, request.options()));
+    }
+
+    /**
+     * Splits the raw request body while it is still being uploaded, e.g.
+     * {@code curl -H "Content-Type: text/csv" --data-binary @invoices.csv .../split/stream}.
+     * Unlike {@link #splitInvoiceCsv(MultipartFile, String, String, String, String, List)} the upload is not spooled to a temporary
+     * file first, so the first buyer files appear as soon as their rows arrive. Both endpoints
+     * also accept gzip, zstd and zip uploads and decompress them while splitting.
+     */
+    @PostMapping(value = "/split/stream", consumes = {TEXT_CSV, MediaType.APPLICATION_OCTET_STREAM_VALUE,
+            APPLICATION_GZIP, APPLICATION_ZSTD, APPLICATION_ZIP})
+    public ResponseEntity<String> splitInvoiceCsvStream(InputStream inputStream,
+                                                        @RequestParam(value = "strategy", required = false) String strategy,
+                                                        @RequestParam(value = "format", required = false) String format,
+                                                        @RequestParam(value = "target", required = false) String target,
+                                                        @RequestParam(value = "columns", required = false) String columns,
+                                                        @RequestParam(value = "filter", required = false) List<String> filters) {
+        SplitRequest request = this.resolveOptions(strategy, format, target, columns, filters);
+        if (request.invalidParameter() != null) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(request.invalidParameter());
+        }
+        return this.split(progress -> request.splitter().splitStreamedCsvInvoicesByBuyer(inputStream, progress, request.options()));
+    }
+
+    /**
+     * Resolves the parameters both split endpoints share into the splitter of the format and
+     * the options of the run. When a parameter is invalid only the message naming it is set.
+     */
+    private SplitRequest resolveOptions(String strategy, String format, String target, String columns, List<String> filters) {
+        Optional<SplitOptions> options = splitOptions(strategy);
+        if (options.isEmpty()) {
+            return SplitRequest.invalid(UNKNOWN_SPLIT_STRATEGY);
+        }
+        options = withSelection(options.get(), columns, filters);
+        if (options.isEmpty()) {
+            return SplitRequest.invalid(INVALID_ROW_FILTER);
+        }
+        Optional<InvoiceCsvSplitter> splitter = this.outputFormats.find(format);
+        if (splitter.isEmpty()) {
+            return SplitRequest.invalid(UNKNOWN_OUTPUT_FORMAT);
+        }
+        if (target != null && !OutputDirectoryResolver.isValidTarget(target)) {
+            return SplitRequest.invalid(INVALID_TARGET);
+        }
+        return new SplitRequest(splitter.get(), options.get().withFormat(splitter.get().getFormat()).withTarget(target), null);
+    }
+
+    /**
+     * Returns the options of a request, empty when {@code strategy} names no {@link SplitStrategy}.
+     */
+    static Optional<SplitOptions> splitOptions(String strategy) {
+        if (strategy == null || strategy.isBlank()) {
+            return Optional.of(SplitOptions.DEFAULTS);
+        }
         try {
-            this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(file.getInputStream());
-        } catch (CsvValidationException | RuntimeException e) {
+            return Optional.of(SplitOptions.DEFAULTS.withStrategy(SplitStrategy.of(strategy)));
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Adds the columns and row filters of a request to {@code options}, empty when a filter does
+     * not parse. Whether the columns exist is only known from the header of the feed.
+     */
+    static Optional<SplitOptions> withSelection(SplitOptions options, String columns, List<String> filters) {
+        List<String> columnList = columns == null ? null : Arrays.stream(columns.split(COLUMN_SEPARATOR))
+                .map(String::trim)
+                .filter(column -> !column.isEmpty())
+                .toList();
+        try {
+            List<RowFilter> filterList = filters == null ? null : filters.stream().map(RowFilter::parse).toList();
+            return Optional.of(options.withColumns(columnList).withFilters(filterList));
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Runs {@code task} on the split executor and answers with the output directory of the run,
+     * which a coordinator reports for the partition it sent, see
+     * {@link com.popov.csv.processor.core.HttpSplitWorker}.
+     */
+    private ResponseEntity<String> split(SplitTask task) {
+        SplitProgress progress = new SplitProgress();
+        try {
+            this.splitExecutor.submit(() -> {
+                task.run(progress);
+                return null;
+            }).get();
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn(TOO_MANY_SPLIT_REQUESTS);
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(TOO_MANY_SPLIT_REQUESTS);
+        } catch (ExecutionException e) {
+            return this.handleSplitFailure(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return this.handleSplitFailure(e);
+        }
+
+        return ResponseEntity.status(HttpStatus.OK).body(progress.getOutputDirectory());
+    }
+
+    private ResponseEntity<String> handleSplitFailure(Throwable e) {
+        if (e instanceof CsvValidationException || e instanceof RuntimeException) {
             LOGGER.error(INVALID_CSV_INPUT_FILE, e);
             return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(INVALID_CSV_INPUT_FILE);
-        } catch (IOException e) {
-            LOGGER.error(UNABLE_TO_PROCESS_THE_REQUEST, e);
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(UNABLE_TO_PROCESS_THE_REQUEST);
         }
 
-        return ResponseEntity.status(HttpStatus.OK).build();
+        LOGGER.error(UNABLE_TO_PROCESS_THE_REQUEST, e);
+        return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(UNABLE_TO_PROCESS_THE_REQUEST);
+    }
+
+    /**
+     * One split call, run on the split executor.
+     */
+    @FunctionalInterface
+    private interface SplitTask {
+        void run(SplitProgress progress) throws IOException, CsvValidationException;
+    }
+
+    /**
+     * Splitter and options of a valid split request, or the message of its invalid parameter.
+     */
+    private record SplitRequest(InvoiceCsvSplitter splitter, SplitOptions options, String invalidParameter) {
+
+        private static SplitRequest invalid(String message) {
+            return new SplitRequest(null, null, message);
+        }
     }
 
 }
@@ -0,0 +1,139 @@
+package com.popov.csv.processor.controller;
+
+import com.opencsv.exceptions.CsvValidationException;
+import com.popov.csv.processor.config.OutputDirectoryResolver;
+import com.popov.csv.processor.core.OutputFormats;
+import com.popov.csv.processor.core.PartitionedSplitCoordinator;
+import com.popov.csv.processor.core.PartitionedSplitResult;
+import com.popov.csv.processor.core.SplitOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Coordinator mode: the upload is split by buyer hash over the workers of
+ * {@link PartitionedSplitCoordinator} and the response reports each worker's rows and
+ * throughput. Takes the same parameters as {@link CsvController}.
+ */
+@RequestMapping("/api/v1/csv/partitioned")
+@RestController
+public class CsvCoordinatorController {
+    private final Logger LOGGER = LoggerFactory.getLogger(CsvCoordinatorController.class);
+
+    private static final String MISSING_CSV_INPUT_FILE = "Missing csv input file.";
+    private static final String UNABLE_TO_PROCESS_THE_REQUEST = "Unable to process the request";
+    private static final String INVALID_CSV_INPUT_FILE = "Invalid csv input file.";
+    private static final String TOO_MANY_SPLIT_REQUESTS = "Too many split requests in progress.";
+    private static final String UNKNOWN_SPLIT_STRATEGY = "Unknown split strategy.";
+    private static final String UNKNOWN_OUTPUT_FORMAT = "Unknown output format.";
+    private static final String INVALID_TARGET = "Invalid target directory name.";
+    private static final String INVALID_ROW_FILTER = "Invalid row filter.";
+    private static final String TEXT_CSV = "text/csv";
+    private static final String APPLICATION_GZIP = "application/gzip";
+    private static final String APPLICATION_ZSTD = "application/zstd";
+
+    @Autowired
+    private final PartitionedSplitCoordinator partitionedSplitCoordinator;
+
+    @Autowired
+    private final OutputFormats outputFormats;
+
+    @Autowired
+    private final ExecutorService splitExecutor;
+
+    public CsvCoordinatorController(PartitionedSplitCoordinator partitionedSplitCoordinator, OutputFormats outputFormats,
+                                    @Qualifier("splitExecutor") ExecutorService splitExecutor) {
+        this.partitionedSplitCoordinator = partitionedSplitCoordinator;
+        this.outputFormats = outputFormats;
+        this.splitExecutor = splitExecutor;
+    }
+
+    @PostMapping("/split")
+    public ResponseEntity<?> splitInvoiceCsv(@RequestParam(value = "file") MultipartFile file,
+                                             @RequestParam(value = "strategy", required = false) String strategy,
+                                             @RequestParam(value = "format", required = false) String format,
+                                             @RequestParam(value = "target", required = false) String target,
+                                             @RequestParam(value = "columns", required = false) String columns,
+                                             @RequestParam(value = "filter", required = false) List<String> filters) {
+        if (file == null) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(MISSING_CSV_INPUT_FILE);
+        }
+
+        try {
+            return this.split(file.getInputStream(), strategy, format, target, columns, filters);
+        } catch (IOException e) {
+            return this.handleSplitFailure(e);
+        }
+    }
+
+    @PostMapping(value = "/split/stream", consumes = {TEXT_CSV, MediaType.APPLICATION_OCTET_STREAM_VALUE,
+            APPLICATION_GZIP, APPLICATION_ZSTD})
+    public ResponseEntity<?> splitInvoiceCsvStream(InputStream inputStream,
+                                                   @RequestParam(value = "strategy", required = false) String strategy,
+                                                   @RequestParam(value = "format", required = false) String format,
+                                                   @RequestParam(value = "target", required = false) String target,
+                                                   @RequestParam(value = "columns", required = false) String columns,
+                                                   @RequestParam(value = "filter", required = false) List<String> filters) {
+        return this.split(inputStream, strategy, format, target, columns, filters);
+    }
+
+    private ResponseEntity<?> split(InputStream inputStream, String strategy, String format, String target,
+                                    String columns, List<String> filters) {
+        Optional<SplitOptions> options = CsvController.splitOptions(strategy);
+        if (options.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(UNKNOWN_SPLIT_STRATEGY);
+        }
+        options = CsvController.withSelection(options.get(), columns, filters);
+        if (options.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(INVALID_ROW_FILTER);
+        }
+        if (this.outputFormats.find(format).isEmpty()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(UNKNOWN_OUTPUT_FORMAT);
+        }
+        if (target != null && !OutputDirectoryResolver.isValidTarget(target)) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(INVALID_TARGET);
+        }
+
+        SplitOptions splitOptions = options.get().withFormat(format).withTarget(target);
+        try {
+            PartitionedSplitResult result = this.splitExecutor.submit(
+                    () -> this.partitionedSplitCoordinator.split(inputStream, splitOptions)).get();
+            return ResponseEntity.ok(result);
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn(TOO_MANY_SPLIT_REQUESTS);
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(TOO_MANY_SPLIT_REQUESTS);
+        } catch (ExecutionException e) {
+            return this.handleSplitFailure(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return this.handleSplitFailure(e);
+        }
+    }
+
+    private ResponseEntity<String> handleSplitFailure(Throwable e) {
+        if (e instanceof CsvValidationException || e instanceof RuntimeException) {
+            LOGGER.error(INVALID_CSV_INPUT_FILE, e);
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(INVALID_CSV_INPUT_FILE);
+        }
+
+        LOGGER.error(UNABLE_TO_PROCESS_THE_REQUEST, e);
+        return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(UNABLE_TO_PROCESS_THE_REQUEST);
+    }
+}
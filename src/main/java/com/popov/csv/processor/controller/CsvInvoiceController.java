@@ -0,0 +1,96 @@
+package com.popov.csv.processor.controller;
+
+import com.popov.csv.processor.config.OutputDirectoryResolver;
+import com.popov.csv.processor.core.InvoiceCsvSplitter;
+import com.popov.csv.processor.core.InvoiceLocation;
+import com.popov.csv.processor.core.OutputFormats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Serves single invoices out of the buyer files of a split, found through the index the split
+ * wrote for {@code output.index.key-columns}. The run directory is chosen with {@code run}, the
+ * name a split reported for its output directory, or {@code target}, see
+ * {@link CsvController#splitInvoiceCsv(org.springframework.web.multipart.MultipartFile, String, String, String, String,
+ * java.util.List)}.
+ */
+@RequestMapping("/api/v1/csv/buyers")
+@RestController
+public class CsvInvoiceController {
+    private final Logger LOGGER = LoggerFactory.getLogger(CsvInvoiceController.class);
+
+    private static final String UNABLE_TO_PROCESS_THE_REQUEST = "Unable to process the request";
+    private static final String UNKNOWN_OUTPUT_FORMAT = "Unknown output format.";
+    private static final String UNKNOWN_INDEX_COLUMN = "Unknown index column.";
+    private static final String INVALID_OUTPUT_DIRECTORY = "Either a valid run or target is required.";
+
+    @Autowired
+    private final OutputFormats outputFormats;
+
+    @Autowired
+    private final OutputDirectoryResolver outputDirectoryResolver;
+
+    public CsvInvoiceController(OutputFormats outputFormats, OutputDirectoryResolver outputDirectoryResolver) {
+        this.outputFormats = outputFormats;
+        this.outputDirectoryResolver = outputDirectoryResolver;
+    }
+
+    /**
+     * Returns the invoice of {@code buyer} whose indexed {@code column}, by default the first
+     * one, holds {@code key}: the csv line or the xml invoice element, copied from the buyer
+     * file with one positioned transfer.
+     */
+    @GetMapping("/{buyer}/invoices/{key}")
+    public ResponseEntity<?> getInvoice(@PathVariable("buyer") String buyer,
+                                        @PathVariable("key") String key,
+                                        @RequestParam(value = "run", required = false) String run,
+                                        @RequestParam(value = "target", required = false) String target,
+                                        @RequestParam(value = "format", required = false) String format,
+                                        @RequestParam(value = "column", required = false) String column) {
+        Optional<String> outputDirectory = (run == null) == (target == null) ? Optional.empty()
+                : run != null ? this.outputDirectoryResolver.getOutputDirectory(run)
+                : this.outputDirectoryResolver.getTargetDirectory(target);
+        if (outputDirectory.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(INVALID_OUTPUT_DIRECTORY);
+        }
+        Optional<InvoiceCsvSplitter> splitter = this.outputFormats.find(format);
+        if (splitter.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(UNKNOWN_OUTPUT_FORMAT);
+        }
+
+        Optional<InvoiceLocation> invoice;
+        try {
+            invoice = splitter.get().findInvoice(outputDirectory.get(), buyer, column, key);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(UNKNOWN_INDEX_COLUMN);
+        } catch (IOException e) {
+            LOGGER.error(UNABLE_TO_PROCESS_THE_REQUEST, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(UNABLE_TO_PROCESS_THE_REQUEST);
+        }
+        if (invoice.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+
+        InvoiceLocation location = invoice.get();
+        StreamingResponseBody body = location::transferTo;
+        return ResponseEntity.ok()
+                .contentType(MediaTypeFactory.getMediaType(location.file().getFileName().toString())
+                        .orElse(MediaType.APPLICATION_OCTET_STREAM))
+                .contentLength(location.length())
+                .body(body);
+    }
+}
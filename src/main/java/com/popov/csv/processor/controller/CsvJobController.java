@@ -0,0 +1,130 @@
+package com.popov.csv.processor.controller;
+
+import com.popov.csv.processor.config.OutputDirectoryResolver;
+import com.popov.csv.processor.core.SplitOptions;
+import com.popov.csv.processor.job.SplitJob;
+import com.popov.csv.processor.job.SplitJobService;
+import com.popov.csv.processor.job.SplitJobStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Asynchronous counterpart of {@link CsvController#splitInvoiceCsv(MultipartFile, String, String, String, String, List)}: the upload
+ * is accepted as a job and its progress is polled with {@code GET /api/v1/csv/jobs/{id}}.
+ */
+@RequestMapping("/api/v1/csv/jobs")
+@RestController
+public class CsvJobController {
+    private final Logger LOGGER = LoggerFactory.getLogger(CsvJobController.class);
+
+    private static final String MISSING_CSV_INPUT_FILE = "Missing csv input file.";
+    private static final String UNABLE_TO_PROCESS_THE_REQUEST = "Unable to process the request";
+    private static final String TOO_MANY_SPLIT_JOBS = "Too many split jobs queued.";
+    private static final String UNKNOWN_SPLIT_STRATEGY = "Unknown split strategy.";
+    private static final String UNKNOWN_OUTPUT_FORMAT = "Unknown output format.";
+    private static final String INVALID_TARGET = "Invalid target directory name.";
+    private static final String INVALID_ROW_FILTER = "Invalid row filter.";
+    private static final String RUN_IN_PROGRESS = "Run is still being split.";
+
+    @Autowired
+    private final SplitJobService splitJobService;
+
+    public CsvJobController(SplitJobService splitJobService) {
+        this.splitJobService = splitJobService;
+    }
+
+    @PostMapping
+    public ResponseEntity<?> submitJob(@RequestParam(value = "file") MultipartFile file,
+                                       @RequestParam(value = "strategy", required = false) String strategy,
+                                       @RequestParam(value = "format", required = false) String format,
+                                       @RequestParam(value = "target", required = false) String target,
+                                       @RequestParam(value = "columns", required = false) String columns,
+                                       @RequestParam(value = "filter", required = false) List<String> filters) {
+        if (file == null) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(MISSING_CSV_INPUT_FILE);
+        }
+
+        Optional<SplitOptions> options = CsvController.splitOptions(strategy);
+        if (options.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(UNKNOWN_SPLIT_STRATEGY);
+        }
+        options = CsvController.withSelection(options.get(), columns, filters);
+        if (options.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(INVALID_ROW_FILTER);
+        }
+        if (!this.splitJobService.supportsFormat(format)) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(UNKNOWN_OUTPUT_FORMAT);
+        }
+        if (target != null && !OutputDirectoryResolver.isValidTarget(target)) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(INVALID_TARGET);
+        }
+
+        try {
+            SplitJob job = this.splitJobService.submit(file, options.get().withFormat(format).withTarget(target));
+            return ResponseEntity.accepted()
+                    .location(URI.create("/api/v1/csv/jobs/" + job.getId()))
+                    .body(SplitJobStatus.of(job));
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn(TOO_MANY_SPLIT_JOBS);
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(TOO_MANY_SPLIT_JOBS);
+        } catch (IOException e) {
+            LOGGER.error(UNABLE_TO_PROCESS_THE_REQUEST, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(UNABLE_TO_PROCESS_THE_REQUEST);
+        }
+    }
+
+    /**
+     * Continues a job that was interrupted, e.g. by a crash, from its last checkpoint. The run is
+     * the last segment of the output directory the job reported. A run a job is still writing
+     * is a conflict.
+     */
+    @PostMapping("/resume/{run}")
+    public ResponseEntity<?> resumeJob(@PathVariable("run") String run) {
+        try {
+            return this.splitJobService.resume(run)
+                    .<ResponseEntity<?>>map(job -> ResponseEntity.accepted()
+                            .location(URI.create("/api/v1/csv/jobs/" + job.getId()))
+                            .body(SplitJobStatus.of(job)))
+                    .orElseGet(() -> ResponseEntity.notFound().build());
+        } catch (IllegalStateException e) {
+            LOGGER.warn(RUN_IN_PROGRESS, e);
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(RUN_IN_PROGRESS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn(TOO_MANY_SPLIT_JOBS);
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(TOO_MANY_SPLIT_JOBS);
+        } catch (IOException e) {
+            LOGGER.error(UNABLE_TO_PROCESS_THE_REQUEST, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(UNABLE_TO_PROCESS_THE_REQUEST);
+        }
+    }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<SplitJobStatus> getJob(@PathVariable("id") String id) {
+        return this.splitJobService.find(id)
+                .map(job -> ResponseEntity.ok(SplitJobStatus.of(job)))
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    @PostMapping("/{id}/cancel")
+    public ResponseEntity<SplitJobStatus> cancelJob(@PathVariable("id") String id) {
+        return this.splitJobService.cancel(id)
+                .map(job -> ResponseEntity.accepted().body(SplitJobStatus.of(job)))
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+}
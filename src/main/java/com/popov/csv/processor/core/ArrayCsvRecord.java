@@ -0,0 +1,54 @@
+package com.popov.csv.processor.core;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link CsvRecord} over fields that are already Strings, as returned by opencsv.
+ */
+public class ArrayCsvRecord implements CsvRecord {
+
+    private final String[] fields;
+
+    public ArrayCsvRecord(String[] fields) {
+        this.fields = fields;
+    }
+
+    @Override
+    public int size() {
+        return this.fields.length;
+    }
+
+    @Override
+    public String get(int index) {
+        return this.fields[index];
+    }
+
+    @Override
+    public boolean isEmpty(int index) {
+        return StringUtils.isEmpty(this.fields[index]);
+    }
+
+    @Override
+    public void writeTo(int index, OutputStream outputStream) throws IOException {
+        outputStream.write(this.fields[index].getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void writeRawTo(OutputStream outputStream) throws IOException {
+        FieldBuffer.writeLineTo(this, outputStream);
+    }
+
+    @Override
+    public byte[] rawBytes() {
+        return FieldBuffer.lineBytes(this);
+    }
+
+    @Override
+    public String[] toArray() {
+        return this.fields;
+    }
+}
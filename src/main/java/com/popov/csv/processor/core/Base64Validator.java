@@ -0,0 +1,65 @@
+package com.popov.csv.processor.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Tells whether a field is base64 text the decoder of the image writers accepts: only
+ * characters of the basic alphabet, no unit of a single character and, if padded, padding
+ * that completes the last unit. The field is streamed in through {@link CsvRecord#writeTo}
+ * and nothing is decoded, so a row can be checked before any of it is written.
+ * Not thread-safe.
+ */
+final class Base64Validator extends OutputStream {
+
+    private static final int UNIT_LENGTH = 4;
+    private static final byte PADDING = '=';
+    private static final boolean[] ALPHABET = new boolean[256];
+
+    static {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            ALPHABET[alphabet.charAt(i)] = true;
+        }
+    }
+
+    private int unitLength;
+    private int padding;
+    private boolean valid;
+
+    /**
+     * Checks field {@code index} of {@code line}.
+     */
+    boolean isValid(CsvRecord line, int index) throws IOException {
+        this.unitLength = 0;
+        this.padding = 0;
+        this.valid = true;
+        line.writeTo(index, this);
+        if (!this.valid) {
+            return false;
+        }
+        return this.padding == 0 ? this.unitLength != 1 : this.unitLength + this.padding == UNIT_LENGTH;
+    }
+
+    @Override
+    public void write(int value) {
+        if (!this.valid) {
+            return;
+        }
+        if (value == PADDING) {
+            // Only after two or three characters of a unit, and never past its end
+            this.padding++;
+            this.valid = this.unitLength >= 2 && this.unitLength + this.padding <= UNIT_LENGTH;
+        } else {
+            this.valid = this.padding == 0 && ALPHABET[value & 0xFF];
+            this.unitLength = (this.unitLength + 1) % UNIT_LENGTH;
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+        for (int i = offset; i < offset + length && this.valid; i++) {
+            this.write(buffer[i]);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.popov.csv.processor.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * {@link CsvRecord} view over a byte buffer and the field slices produced by {@link CsvTokenizer}.
+ * The view is repointed to the next record instead of being reallocated. A field that was too
+ * large for the buffer is read from its {@link FieldSpill} first and from the buffer after that.
+ */
+public class ByteCsvRecord implements CsvRecord {
+
+    private static final byte LINE_FEED = '\n';
+
+    private byte[] buffer;
+    private int[] slices;
+    private int offset;
+    private int size;
+    private FieldSpill spill;
+    private int spilledIndex;
+
+    void reset(byte[] buffer, int[] slices, int offset) {
+        this.reset(buffer, slices, offset, null);
+    }
+
+    void reset(byte[] buffer, int[] slices, int offset, FieldSpill spill) {
+        this.buffer = buffer;
+        this.slices = slices;
+        this.offset = offset;
+        this.size = slices[offset];
+        this.spill = spill;
+        this.spilledIndex = spill != null ? this.findSpilledIndex(spill.contentStart()) : -1;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public String get(int index) {
+        int slice = this.slice(index);
+        int start = this.slices[slice];
+        int end = this.slices[slice + 1];
+
+        if (index == this.spilledIndex) {
+            try {
+                ByteArrayOutputStream field = new ByteArrayOutputStream();
+                this.writeTo(index, field);
+                return field.toString(StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        if (this.slices[slice + 2] == CsvTokenizer.PLAIN) {
+            return new String(this.buffer, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        return new String(this.unescape(start, end), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean isEmpty(int index) {
+        int slice = this.slice(index);
+        return index != this.spilledIndex && this.slices[slice] == this.slices[slice + 1];
+    }
+
+    @Override
+    public void writeTo(int index, OutputStream outputStream) throws IOException {
+        int slice = this.slice(index);
+        int start = this.slices[slice];
+        int end = this.slices[slice + 1];
+
+        if (index == this.spilledIndex) {
+            this.spill.copyTo(outputStream);
+        }
+
+        if (this.slices[slice + 2] == CsvTokenizer.PLAIN) {
+            outputStream.write(this.buffer, start, end - start);
+        } else {
+            outputStream.write(this.unescape(start, end));
+        }
+    }
+
+    @Override
+    public InputStream openField(int index) throws IOException {
+        int slice = this.slice(index);
+        int start = this.slices[slice];
+        int end = this.slices[slice + 1];
+
+        byte[] bufferedPart = this.slices[slice + 2] == CsvTokenizer.PLAIN
+                ? Arrays.copyOfRange(this.buffer, start, end)
+                : this.unescape(start, end);
+        if (index == this.spilledIndex) {
+            return new SequenceInputStream(this.spill.detach(), new ByteArrayInputStream(bufferedPart));
+        }
+        return new ByteArrayInputStream(bufferedPart);
+    }
+
+    @Override
+    public boolean hasRawBytes() {
+        return true;
+    }
+
+    @Override
+    public void writeRawTo(OutputStream outputStream) throws IOException {
+        int recordStart = this.slices[this.offset + 1];
+        int recordEnd = this.slices[this.offset + 2];
+        this.writeRecordBytes(outputStream);
+        if (recordEnd == recordStart || this.buffer[recordEnd - 1] != LINE_FEED) {
+            outputStream.write(LINE_FEED);
+        }
+    }
+
+    @Override
+    public byte[] rawBytes() {
+        if (this.spill == null) {
+            return Arrays.copyOfRange(this.buffer, this.slices[this.offset + 1], this.slices[this.offset + 2]);
+        }
+        try {
+            ByteArrayOutputStream rawBytes = new ByteArrayOutputStream();
+            this.writeRecordBytes(rawBytes);
+            return rawBytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeRecordBytes(OutputStream outputStream) throws IOException {
+        int recordStart = this.slices[this.offset + 1];
+        int recordEnd = this.slices[this.offset + 2];
+        if (this.spill == null) {
+            outputStream.write(this.buffer, recordStart, recordEnd - recordStart);
+            return;
+        }
+
+        // The spilled bytes were cut out of the record right at the start of the field content
+        int contentStart = this.spill.contentStart();
+        outputStream.write(this.buffer, recordStart, contentStart - recordStart);
+        this.spill.copyTo(outputStream);
+        outputStream.write(this.buffer, contentStart, recordEnd - contentStart);
+    }
+
+    private int findSpilledIndex(int contentStart) {
+        for (int index = 0; index < this.size; index++) {
+            if (this.slices[this.slice(index)] == contentStart) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private byte[] unescape(int start, int end) {
+        byte[] unescaped = new byte[CsvTokenizer.unescapedLength(this.buffer, start, end)];
+        CsvTokenizer.unescape(this.buffer, start, end, unescaped);
+        return unescaped;
+    }
+
+    private int slice(int index) {
+        Objects.checkIndex(index, this.size);
+        return this.offset + CsvTokenizer.RECORD_HEADER_WIDTH + index * CsvTokenizer.SLICE_WIDTH;
+    }
+}
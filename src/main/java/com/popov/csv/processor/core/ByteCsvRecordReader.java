@@ -0,0 +1,191 @@
+package com.popov.csv.processor.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * {@link RecordReader} that tokenizes the raw UTF-8 bytes of the input without decoding them.
+ * The buffer and the returned {@link ByteCsvRecord} are reused for every record; the buffer only
+ * grows when a single record does not fit into it. Once the buffer reaches the spill threshold, the
+ * field still being read is moved to a temporary {@link FieldSpill} instead, so an oversized field,
+ * such as an embedded image, never has to fit on the heap. Quoting follows RFC 4180.
+ */
+public class ByteCsvRecordReader implements RecordReader {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+
+    private static final byte QUOTE = '"';
+    private static final byte CARRIAGE_RETURN = '\r';
+
+    private final InputStream inputStream;
+    private final CsvTokenizer.Slices slices = new CsvTokenizer.Slices();
+    private final ByteCsvRecord record = new ByteCsvRecord();
+    private final int spillThreshold;
+
+    private byte[] buffer;
+    // Input bytes that are no longer in the buffer, either consumed or spilled
+    private long discarded;
+    private int position;
+    private int limit;
+    private boolean endOfInput;
+    private FieldSpill spill;
+
+    public ByteCsvRecordReader(InputStream inputStream) {
+        this(inputStream, DEFAULT_BUFFER_SIZE, DEFAULT_SPILL_THRESHOLD);
+    }
+
+    public ByteCsvRecordReader(InputStream inputStream, int bufferSize) {
+        this(inputStream, bufferSize, DEFAULT_SPILL_THRESHOLD);
+    }
+
+    public ByteCsvRecordReader(InputStream inputStream, int bufferSize, int spillThreshold) {
+        this.inputStream = inputStream;
+        this.buffer = new byte[bufferSize];
+        this.spillThreshold = spillThreshold;
+    }
+
+    @Override
+    public CsvRecord next() throws IOException {
+        this.releaseSpill();
+
+        while (true) {
+            if (this.position == this.limit) {
+                if (this.endOfInput) {
+                    return null;
+                }
+                this.fill();
+                continue;
+            }
+
+            this.slices.clear();
+            int end = CsvTokenizer.parseRecord(this.buffer, this.position, this.limit, this.endOfInput, this.slices);
+            if (end >= 0) {
+                this.record.reset(this.buffer, this.slices.values(), 0, this.spill);
+                this.position = end;
+                return this.record;
+            }
+
+            this.fill();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.releaseSpill();
+        } finally {
+            this.inputStream.close();
+        }
+    }
+
+    @Override
+    public long getOffset() {
+        return this.discarded + this.position;
+    }
+
+    @Override
+    public void skipTo(long offset) throws IOException {
+        if (offset < this.getOffset()) {
+            throw new IllegalArgumentException("Cannot skip back to offset " + offset + ".");
+        }
+        this.releaseSpill();
+        if (offset <= this.discarded + this.limit) {
+            this.position = (int) (offset - this.discarded);
+            return;
+        }
+
+        this.inputStream.skipNBytes(offset - this.discarded - this.limit);
+        this.discarded = offset;
+        this.position = 0;
+        this.limit = 0;
+    }
+
+    int getBufferCapacity() {
+        return this.buffer.length;
+    }
+
+    /**
+     * Moves the unread bytes to the front of the buffer and reads until the buffer is full, so a
+     * record that spans several reads is tokenized again only once per buffer size.
+     */
+    private void fill() throws IOException {
+        if (this.position > 0) {
+            this.discarded += this.position;
+            System.arraycopy(this.buffer, this.position, this.buffer, 0, this.limit - this.position);
+            this.limit -= this.position;
+            this.position = 0;
+        } else if (this.limit == this.buffer.length && !this.spillOpenField()) {
+            this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+        }
+
+        while (this.limit < this.buffer.length) {
+            int read = this.inputStream.read(this.buffer, this.limit, this.buffer.length - this.limit);
+            if (read < 0) {
+                this.endOfInput = true;
+                return;
+            }
+            this.limit += read;
+        }
+    }
+
+    /**
+     * Moves the middle of the field that is still being read to the spill file. The field start
+     * and any trailing quote or carriage return stay in the buffer, so the tokenizer sees the same
+     * field boundaries as before. Only one field per record is spilled, and only while its spilled
+     * part contains no quotes that would need unescaping.
+     *
+     * @return false when the buffer should grow instead
+     */
+    private boolean spillOpenField() throws IOException {
+        if (this.buffer.length < this.spillThreshold) {
+            return false;
+        }
+
+        int fieldStart = CsvTokenizer.openFieldStart(this.buffer, 0, this.limit);
+        if (fieldStart < 0 || fieldStart == this.limit) {
+            return false;
+        }
+        int contentStart = this.buffer[fieldStart] == QUOTE ? fieldStart + 1 : fieldStart;
+        if (this.spill != null && this.spill.contentStart() != contentStart) {
+            return false;
+        }
+
+        boolean quoted = contentStart > fieldStart;
+        int spillEnd = this.limit;
+        while (spillEnd > contentStart && (this.buffer[spillEnd - 1] == CARRIAGE_RETURN || (quoted && this.buffer[spillEnd - 1] == QUOTE))) {
+            spillEnd--;
+        }
+        if (spillEnd - contentStart < this.buffer.length / 2 || containsQuote(this.buffer, contentStart, spillEnd)) {
+            return false;
+        }
+
+        if (this.spill == null) {
+            this.spill = new FieldSpill(contentStart);
+        }
+        this.spill.append(this.buffer, contentStart, spillEnd);
+        this.discarded += spillEnd - contentStart;
+
+        System.arraycopy(this.buffer, spillEnd, this.buffer, contentStart, this.limit - spillEnd);
+        this.limit = contentStart + this.limit - spillEnd;
+        return true;
+    }
+
+    private void releaseSpill() throws IOException {
+        if (this.spill != null) {
+            FieldSpill released = this.spill;
+            this.spill = null;
+            released.release();
+        }
+    }
+
+    private static boolean containsQuote(byte[] buffer, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == QUOTE) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
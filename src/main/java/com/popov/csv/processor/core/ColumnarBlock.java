@@ -0,0 +1,237 @@
+package com.popov.csv.processor.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A block of rows of the {@code columnar} output format, stored column by column. A buyer file
+ * is a sequence of blocks, so a file continued after an eviction simply gets further blocks
+ * appended. All numbers are big-endian:
+ * <pre>
+ * block      := magic "ICOL" | version u8 | rows i32 | columns i32 | column*
+ * column     := name (modified UTF-8) | encoding u8 | length i32 | payload
+ * dictionary := size i32 | value* | width u8 | index* (rows indices of width bytes)
+ * plain      := value* (rows values)
+ * value      := length i32 | UTF-8 bytes
+ * </pre>
+ * A column whose distinct values are at most half of its rows is dictionary encoded. The
+ * length of every column lets a reader skip the columns it does not need.
+ */
+public final class ColumnarBlock {
+
+    static final int MAGIC = 0x49434F4C;
+
+    private static final int VERSION = 1;
+    private static final int DICTIONARY_ENCODING = 0;
+    private static final int PLAIN_ENCODING = 1;
+    private static final String INVALID_BLOCK_MESSAGE = "Invalid columnar block.";
+    private static final String UNSUPPORTED_VERSION_MESSAGE = "Unsupported columnar block version %d.";
+    private static final String UNKNOWN_COLUMN_MESSAGE = "Unknown column %s.";
+
+    private final String[] columns;
+    private final String[][] values;
+    private final int rowCount;
+
+    private ColumnarBlock(String[] columns, String[][] values, int rowCount) {
+        this.columns = columns;
+        this.values = values;
+        this.rowCount = rowCount;
+    }
+
+    public int getRowCount() {
+        return this.rowCount;
+    }
+
+    /**
+     * Returns the names of the columns read, in file order.
+     */
+    public List<String> getColumns() {
+        return List.of(this.columns);
+    }
+
+    /**
+     * Returns the values of a column, one per row.
+     *
+     * @throws IllegalArgumentException when the column was not read
+     */
+    public List<String> getColumn(String column) {
+        for (int i = 0; i < this.columns.length; i++) {
+            if (this.columns[i].equals(column)) {
+                return Arrays.asList(this.values[i]);
+            }
+        }
+        throw new IllegalArgumentException(String.format(UNKNOWN_COLUMN_MESSAGE, column));
+    }
+
+    /**
+     * Returns the values of one row, in column order.
+     */
+    public String[] getRow(int row) {
+        String[] fields = new String[this.columns.length];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = this.values[i][row];
+        }
+        return fields;
+    }
+
+    /**
+     * Reads every block of a buyer file.
+     */
+    public static List<ColumnarBlock> readAll(InputStream inputStream) throws IOException {
+        return readAll(inputStream, null);
+    }
+
+    /**
+     * Reads every block of a buyer file, decoding only the given columns; {@code null} reads all
+     * of them.
+     */
+    public static List<ColumnarBlock> readAll(InputStream inputStream, Collection<String> columns) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+        List<ColumnarBlock> blocks = new ArrayList<>();
+        ColumnarBlock block;
+        while ((block = read(in, columns)) != null) {
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    private static ColumnarBlock read(DataInputStream in, Collection<String> projection) throws IOException {
+        int magic;
+        try {
+            magic = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (magic != MAGIC) {
+            throw new IOException(INVALID_BLOCK_MESSAGE);
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException(String.format(UNSUPPORTED_VERSION_MESSAGE, version));
+        }
+
+        int rows = in.readInt();
+        int columnCount = in.readInt();
+        List<String> names = new ArrayList<>();
+        List<String[]> values = new ArrayList<>();
+        for (int i = 0; i < columnCount; i++) {
+            String name = in.readUTF();
+            int encoding = in.readUnsignedByte();
+            int length = in.readInt();
+            if (projection != null && !projection.contains(name)) {
+                in.skipNBytes(length);
+                continue;
+            }
+            names.add(name);
+            values.add(encoding == DICTIONARY_ENCODING ? readDictionaryColumn(in, rows) : readPlainColumn(in, rows));
+        }
+        return new ColumnarBlock(names.toArray(String[]::new), values.toArray(String[][]::new), rows);
+    }
+
+    private static String[] readDictionaryColumn(DataInputStream in, int rows) throws IOException {
+        String[] dictionary = readPlainColumn(in, in.readInt());
+        int width = in.readUnsignedByte();
+        String[] column = new String[rows];
+        for (int row = 0; row < rows; row++) {
+            int index = switch (width) {
+                case 1 -> in.readUnsignedByte();
+                case 2 -> in.readUnsignedShort();
+                default -> in.readInt();
+            };
+            column[row] = dictionary[index];
+        }
+        return column;
+    }
+
+    private static String[] readPlainColumn(DataInputStream in, int count) throws IOException {
+        String[] column = new String[count];
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            column[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return column;
+    }
+
+    /**
+     * Writes {@code rows} rows held column by column in {@code values}. {@code payload} is a
+     * scratch buffer reused between blocks.
+     */
+    static void write(DataOutputStream out, String[] columns, String[][] values, int rows,
+                      ByteArrayOutputStream payload) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(rows);
+        out.writeInt(columns.length);
+
+        DataOutputStream payloadOut = new DataOutputStream(payload);
+        for (int i = 0; i < columns.length; i++) {
+            payload.reset();
+            int encoding = writeColumn(payloadOut, values[i], rows);
+            payloadOut.flush();
+
+            out.writeUTF(columns[i]);
+            out.writeByte(encoding);
+            out.writeInt(payload.size());
+            payload.writeTo(out);
+        }
+    }
+
+    private static int writeColumn(DataOutputStream out, String[] column, int rows) throws IOException {
+        Map<String, Integer> dictionary = new HashMap<>();
+        List<String> entries = new ArrayList<>();
+        int[] indices = new int[rows];
+        for (int row = 0; row < rows; row++) {
+            Integer index = dictionary.get(column[row]);
+            if (index == null) {
+                if (entries.size() >= rows / 2) {
+                    writePlain(out, column, rows);
+                    return PLAIN_ENCODING;
+                }
+                index = entries.size();
+                dictionary.put(column[row], index);
+                entries.add(column[row]);
+            }
+            indices[row] = index;
+        }
+
+        out.writeInt(entries.size());
+        for (String entry : entries) {
+            writeValue(out, entry);
+        }
+        int width = entries.size() <= 0x100 ? 1 : entries.size() <= 0x10000 ? 2 : 4;
+        out.writeByte(width);
+        for (int row = 0; row < rows; row++) {
+            switch (width) {
+                case 1 -> out.writeByte(indices[row]);
+                case 2 -> out.writeShort(indices[row]);
+                default -> out.writeInt(indices[row]);
+            }
+        }
+        return DICTIONARY_ENCODING;
+    }
+
+    private static void writePlain(DataOutputStream out, String[] column, int rows) throws IOException {
+        for (int row = 0; row < rows; row++) {
+            writeValue(out, column[row]);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,197 @@
+package com.popov.csv.processor.core;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Compresses the buyer files of one split run on worker threads, which the runs of a splitter
+ * share. The row loop only copies bytes into a buffer per buyer; full buffers are handed to the
+ * workers, which compress the chunks of one buyer in order and the chunks of different buyers
+ * in parallel. At most {@code maxInFlight} chunks of the run are in flight, a further hand-off
+ * blocks until a worker finishes one. Without a codec the files are written on the calling
+ * thread as before.
+ */
+final class CompressionStage {
+
+    private final OutputCodec codec;
+    private final int level;
+    private final int bufferSize;
+    private final Executor executor;
+    private final Semaphore permits;
+    private final BlockingQueue<byte[]> freeBuffers;
+
+    /**
+     * @param executor    workers shared with the other runs, unused without a codec
+     * @param maxInFlight chunks of this run handed to the workers before a hand-off blocks
+     */
+    CompressionStage(OutputCodec codec, int level, int bufferSize, Executor executor, int maxInFlight) {
+        this.codec = codec;
+        this.level = level;
+        this.bufferSize = bufferSize;
+        if (codec == OutputCodec.NONE) {
+            this.executor = null;
+            this.permits = null;
+            this.freeBuffers = null;
+            return;
+        }
+
+        this.executor = executor;
+        this.permits = new Semaphore(Math.max(1, maxInFlight));
+        this.freeBuffers = new ArrayBlockingQueue<>(Math.max(1, maxInFlight));
+    }
+
+    static CompressionStage uncompressed() {
+        return new CompressionStage(OutputCodec.NONE, 0, 0, null, 0);
+    }
+
+    boolean isCompressed() {
+        return this.codec != OutputCodec.NONE;
+    }
+
+    String getExtension() {
+        return this.codec.getExtension();
+    }
+
+    /**
+     * Returns a buffered stream writing compressed bytes to {@code fileStream}. Closing it waits
+     * for the chunks still being compressed and closes {@code fileStream}.
+     */
+    OutputStream open(OutputStream fileStream) throws IOException {
+        if (this.codec == OutputCodec.NONE) {
+            return new BufferedOutputStream(fileStream);
+        }
+        return new CompressingOutputStream(this.codec.wrap(fileStream, this.level, this.bufferSize));
+    }
+
+    private byte[] takeBuffer() {
+        byte[] buffer = this.freeBuffers.poll();
+        return buffer != null ? buffer : new byte[this.bufferSize];
+    }
+
+    private void recycle(byte[] buffer) {
+        this.freeBuffers.offer(buffer);
+    }
+
+    /**
+     * Buffers the bytes of one buyer file and chains every full buffer onto the compression of
+     * the previous one, so the compressor of the file only ever runs on one worker at a time.
+     */
+    private final class CompressingOutputStream extends OutputStream {
+
+        private final OutputStream compressed;
+        private byte[] buffer = CompressionStage.this.takeBuffer();
+        private int count;
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        private volatile IOException failure;
+        private boolean closed;
+
+        private CompressingOutputStream(OutputStream compressed) {
+            this.compressed = compressed;
+        }
+
+        @Override
+        public void write(int value) throws IOException {
+            if (this.count == this.buffer.length) {
+                this.handOff();
+            }
+            this.buffer[this.count++] = (byte) value;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (this.count == this.buffer.length) {
+                    this.handOff();
+                }
+                int copied = Math.min(length, this.buffer.length - this.count);
+                System.arraycopy(bytes, offset, this.buffer, this.count, copied);
+                this.count += copied;
+                offset += copied;
+                length -= copied;
+            }
+        }
+
+        /**
+         * Hands the buffered bytes to the workers without waiting for them.
+         */
+        @Override
+        public void flush() throws IOException {
+            this.handOff();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            try {
+                this.handOff();
+            } finally {
+                this.awaitTail();
+                CompressionStage.this.recycle(this.buffer);
+                this.compressed.close();
+            }
+            this.throwIfFailed();
+        }
+
+        private void handOff() throws IOException {
+            this.throwIfFailed();
+            if (this.count == 0) {
+                return;
+            }
+            try {
+                CompressionStage.this.permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+
+            byte[] chunk = this.buffer;
+            int length = this.count;
+            this.buffer = CompressionStage.this.takeBuffer();
+            this.count = 0;
+            this.tail = this.tail.thenRunAsync(() -> this.compress(chunk, length), CompressionStage.this.executor);
+        }
+
+        private void compress(byte[] chunk, int length) {
+            try {
+                if (this.failure == null) {
+                    this.compressed.write(chunk, 0, length);
+                }
+            } catch (IOException e) {
+                this.failure = e;
+            } catch (RuntimeException e) {
+                this.failure = new IOException(e);
+            } finally {
+                CompressionStage.this.recycle(chunk);
+                CompressionStage.this.permits.release();
+            }
+        }
+
+        private void awaitTail() throws IOException {
+            try {
+                this.tail.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+
+        private void throwIfFailed() throws IOException {
+            if (this.failure != null) {
+                throw this.failure;
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.popov.csv.processor.core;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written through it and reports them to the bytes out metric when closed.
+ * Placed below the buffering stream, so it only sees whole buffer flushes.
+ */
+class CountingOutputStream extends FilterOutputStream {
+
+    private final SplitMetrics splitMetrics;
+    private long count;
+
+    CountingOutputStream(OutputStream outputStream, SplitMetrics splitMetrics) {
+        super(outputStream);
+        this.splitMetrics = splitMetrics;
+    }
+
+    @Override
+    public void write(int value) throws IOException {
+        this.out.write(value);
+        this.count++;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        this.out.write(buffer, offset, length);
+        this.count += length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            this.splitMetrics.recordBytesOut(this.count);
+            this.count = 0;
+        }
+    }
+}
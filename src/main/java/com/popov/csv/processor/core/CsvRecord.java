@@ -0,0 +1,67 @@
+package com.popov.csv.processor.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One row of the input CSV. Records returned by a {@link RecordReader} may be views over a
+ * reused buffer and are only valid until the next call to {@link RecordReader#next()}, so
+ * fields should only be turned into Strings when they are actually needed.
+ */
+public interface CsvRecord {
+
+    int size();
+
+    /**
+     * Returns the unquoted value of a field as a String.
+     */
+    String get(int index);
+
+    boolean isEmpty(int index);
+
+    /**
+     * Writes the unquoted UTF-8 bytes of a field without creating a String.
+     */
+    void writeTo(int index, OutputStream outputStream) throws IOException;
+
+    /**
+     * Returns the unquoted bytes of a field as a stream that stays readable after the reader has
+     * moved on. Fields too large for the read buffer are streamed from disk instead of being
+     * copied to the heap. The caller must close the stream.
+     */
+    default InputStream openField(int index) throws IOException {
+        return new ByteArrayInputStream(this.get(index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Tells whether the record still knows its original bytes, quoting and line terminator
+     * included, so that it can be copied with {@link #writeRawTo(OutputStream)}.
+     */
+    default boolean hasRawBytes() {
+        return false;
+    }
+
+    /**
+     * Copies the original bytes of the record. A record that ends the input without a line break
+     * gets a {@code '\n'} appended, so copied records can always be concatenated. A record without
+     * its original bytes writes its fields joined by commas, quoted where needed, and a
+     * {@code '\n'}.
+     */
+    void writeRawTo(OutputStream outputStream) throws IOException;
+
+    /**
+     * Returns the bytes {@link #writeRawTo(OutputStream)} writes.
+     */
+    byte[] rawBytes();
+
+    default String[] toArray() {
+        String[] fields = new String[this.size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = this.get(i);
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,240 @@
+package com.popov.csv.processor.core;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Byte-level RFC 4180 tokenizer. Records are not copied: every field is stored as a slice of the
+ * input buffer in a {@link Slices} list, laid out as
+ * {@code [fieldCount, recordStart, recordEnd, start0, end0, flags0, ...]}.
+ * Quoted fields that contain escaped quotes are flagged and unescaped only when read.
+ */
+final class CsvTokenizer {
+
+    static final int PLAIN = 0;
+    static final int ESCAPED = 1;
+
+    static final int RECORD_HEADER_WIDTH = 3;
+    static final int SLICE_WIDTH = 3;
+
+    private static final byte QUOTE = '"';
+    private static final byte COMMA = ',';
+    private static final byte LINE_FEED = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+
+    private static final String UNTERMINATED_QUOTED_FIELD_MESSAGE = "Unterminated quoted field at end of CSV input.";
+
+    private CsvTokenizer() {
+    }
+
+    /**
+     * Tokenizes the record starting at {@code from} and appends its slices to {@code slices}.
+     *
+     * @return the position after the record terminator, or -1 when the buffer ends before the
+     * record does and {@code endOfInput} is not set; nothing is appended to {@code slices} then
+     */
+    static int parseRecord(byte[] buffer, int from, int limit, boolean endOfInput, Slices slices) throws IOException {
+        int mark = slices.size();
+        slices.add(0, from, from);
+
+        int position = from;
+        int fieldCount = 0;
+
+        while (true) {
+            if (position < limit && buffer[position] == QUOTE) {
+                int contentStart = position + 1;
+                boolean escaped = false;
+                int closingQuote = -1;
+
+                position = contentStart;
+                while (closingQuote < 0) {
+                    if (position >= limit || (buffer[position] == QUOTE && position + 1 >= limit)) {
+                        if (!endOfInput) {
+                            slices.truncate(mark);
+                            return -1;
+                        }
+                        if (position >= limit) {
+                            throw new IOException(UNTERMINATED_QUOTED_FIELD_MESSAGE);
+                        }
+                        closingQuote = position++;
+                    } else if (buffer[position] == QUOTE) {
+                        if (buffer[position + 1] == QUOTE) {
+                            escaped = true;
+                            position += 2;
+                        } else {
+                            closingQuote = position++;
+                        }
+                    } else {
+                        position++;
+                    }
+                }
+
+                int tailStart = position;
+                position = findFieldEnd(buffer, position, limit);
+                if (position >= limit && !endOfInput) {
+                    slices.truncate(mark);
+                    return -1;
+                }
+                int tailEnd = trimCarriageReturn(buffer, tailStart, position, limit);
+
+                if (tailEnd == tailStart) {
+                    slices.add(contentStart, closingQuote, escaped ? ESCAPED : PLAIN);
+                } else {
+                    // Characters after the closing quote are kept, the lone quote is dropped on read
+                    slices.add(contentStart, tailEnd, ESCAPED);
+                }
+            } else {
+                int fieldStart = position;
+                position = findFieldEnd(buffer, position, limit);
+                if (position >= limit && !endOfInput) {
+                    slices.truncate(mark);
+                    return -1;
+                }
+                slices.add(fieldStart, trimCarriageReturn(buffer, fieldStart, position, limit), PLAIN);
+            }
+
+            fieldCount++;
+
+            if (position >= limit) {
+                return endRecord(slices, mark, fieldCount, limit);
+            }
+            if (buffer[position] == LINE_FEED) {
+                return endRecord(slices, mark, fieldCount, position + 1);
+            }
+            // Comma, continue with the next field
+            position++;
+        }
+    }
+
+    /**
+     * Returns where the last field of an incomplete record starts, its opening quote included,
+     * or -1 when the record between {@code from} and {@code limit} is already complete.
+     */
+    static int openFieldStart(byte[] buffer, int from, int limit) {
+        int position = from;
+
+        while (true) {
+            int fieldStart = position;
+            if (position < limit && buffer[position] == QUOTE) {
+                position++;
+                while (true) {
+                    if (position >= limit || (buffer[position] == QUOTE && position + 1 >= limit)) {
+                        return fieldStart;
+                    }
+                    if (buffer[position] == QUOTE && buffer[position + 1] != QUOTE) {
+                        position++;
+                        break;
+                    }
+                    position += buffer[position] == QUOTE ? 2 : 1;
+                }
+            }
+
+            position = findFieldEnd(buffer, position, limit);
+            if (position >= limit) {
+                return fieldStart;
+            }
+            if (buffer[position] == LINE_FEED) {
+                return -1;
+            }
+            position++;
+        }
+    }
+
+    /**
+     * Returns the length of a slice once escaped quotes are removed.
+     */
+    static int unescapedLength(byte[] buffer, int start, int end) {
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == QUOTE) {
+                if (i + 1 < end && buffer[i + 1] == QUOTE) {
+                    i++;
+                    length++;
+                }
+            } else {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Copies a slice into {@code target}, turning doubled quotes into one and dropping lone ones.
+     */
+    static void unescape(byte[] buffer, int start, int end, byte[] target) {
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == QUOTE) {
+                if (i + 1 < end && buffer[i + 1] == QUOTE) {
+                    i++;
+                    target[length++] = QUOTE;
+                }
+            } else {
+                target[length++] = buffer[i];
+            }
+        }
+    }
+
+    private static int endRecord(Slices slices, int mark, int fieldCount, int recordEnd) {
+        slices.set(mark, fieldCount);
+        slices.set(mark + 2, recordEnd);
+        return recordEnd;
+    }
+
+    private static int findFieldEnd(byte[] buffer, int position, int limit) {
+        while (position < limit && buffer[position] != COMMA && buffer[position] != LINE_FEED) {
+            position++;
+        }
+        return position;
+    }
+
+    private static int trimCarriageReturn(byte[] buffer, int start, int end, int limit) {
+        boolean endOfRecord = end >= limit || buffer[end] == LINE_FEED;
+        if (endOfRecord && end > start && buffer[end - 1] == CARRIAGE_RETURN) {
+            return end - 1;
+        }
+        return end;
+    }
+
+    /**
+     * Growable int list holding the field slices of one or more records.
+     */
+    static final class Slices {
+
+        private int[] values = new int[64];
+        private int size;
+
+        int[] values() {
+            return this.values;
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        void clear() {
+            this.size = 0;
+        }
+
+        void truncate(int size) {
+            this.size = size;
+        }
+
+        void set(int index, int value) {
+            this.values[index] = value;
+        }
+
+        void add(int start, int end, int flags) {
+            this.ensureCapacity(SLICE_WIDTH);
+            this.values[this.size++] = start;
+            this.values[this.size++] = end;
+            this.values[this.size++] = flags;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (this.size + extra > this.values.length) {
+                this.values = Arrays.copyOf(this.values, Math.max(this.values.length * 2, this.size + extra));
+            }
+        }
+    }
+}
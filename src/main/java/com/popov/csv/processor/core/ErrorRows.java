@@ -0,0 +1,155 @@
+package com.popov.csv.processor.core;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Side output of the malformed rows of a run, {@value #FILE_NAME} in its output directory:
+ * the number of the row in the input, the header being row 1, why it was left out, and its
+ * fields as they were read. The file is only created by the first malformed row and opened
+ * for every further one, as they are expected to be rare. Runs into a target directory add
+ * their rows to the file of the earlier runs.
+ */
+final class ErrorRows {
+
+    static final String FILE_NAME = "errors.csv";
+
+    private static final String HEADER_PREFIX = "row,reason";
+    private static final byte COMMA = ',';
+    private static final byte QUOTE = '"';
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final String ERROR_FILE_TOO_SHORT_MESSAGE = "Error file %s is shorter than its checkpoint.";
+
+    private final Path file;
+    private final String[] headers;
+    private final long budget;
+    private long count;
+
+    /**
+     * @param headers headers of the input rows
+     * @param budget  malformed rows the run tolerates
+     * @param count   malformed rows written by the run before its checkpoint
+     */
+    ErrorRows(String outputDirectory, String[] headers, long budget, long count) {
+        this.file = file(outputDirectory);
+        this.headers = headers;
+        this.budget = budget;
+        this.count = count;
+    }
+
+    static Path file(String outputDirectory) {
+        return Paths.get(outputDirectory, FILE_NAME);
+    }
+
+    /**
+     * Returns the length of the error file of a run, 0 while it has none.
+     */
+    static long lengthOf(String outputDirectory) throws IOException {
+        Path file = file(outputDirectory);
+        return Files.isRegularFile(file) ? Files.size(file) : 0;
+    }
+
+    /**
+     * Cuts the error file back to its length at a checkpoint, dropping the rows written after it.
+     */
+    static void restore(String outputDirectory, long length) throws IOException {
+        Path file = file(outputDirectory);
+        if (length == 0) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            if (fileChannel.size() < length) {
+                throw new IOException(String.format(ERROR_FILE_TOO_SHORT_MESSAGE, file));
+            }
+            fileChannel.truncate(length);
+        }
+    }
+
+    /**
+     * Writes a malformed row, quoting every field.
+     */
+    void add(long row, String reason, CsvRecord line) throws IOException {
+        Files.createDirectories(this.file.getParent());
+        try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(this.file,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), BUFFER_SIZE)) {
+            if (Files.size(this.file) == 0) {
+                outputStream.write(HEADER_PREFIX.getBytes(StandardCharsets.UTF_8));
+                for (String header : this.headers) {
+                    outputStream.write(COMMA);
+                    this.writeQuoted(outputStream, header.getBytes(StandardCharsets.UTF_8));
+                }
+                outputStream.write(LINE_SEPARATOR);
+            }
+
+            outputStream.write(Long.toString(row).getBytes(StandardCharsets.UTF_8));
+            outputStream.write(COMMA);
+            this.writeQuoted(outputStream, reason.getBytes(StandardCharsets.UTF_8));
+            QuotingOutputStream field = new QuotingOutputStream(outputStream);
+            for (int i = 0; i < line.size(); i++) {
+                outputStream.write(COMMA);
+                outputStream.write(QUOTE);
+                line.writeTo(i, field);
+                outputStream.write(QUOTE);
+            }
+            outputStream.write(LINE_SEPARATOR);
+        }
+        this.count++;
+    }
+
+    /**
+     * Returns the malformed rows of the run, including the ones before its checkpoint.
+     */
+    long getCount() {
+        return this.count;
+    }
+
+    boolean isWithinBudget() {
+        return this.count <= this.budget;
+    }
+
+    private void writeQuoted(OutputStream outputStream, byte[] value) throws IOException {
+        outputStream.write(QUOTE);
+        new QuotingOutputStream(outputStream).write(value);
+        outputStream.write(QUOTE);
+    }
+
+    /**
+     * Doubles every quote of a quoted field.
+     */
+    private static final class QuotingOutputStream extends FilterOutputStream {
+
+        private QuotingOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(int value) throws IOException {
+            if (value == QUOTE) {
+                this.out.write(QUOTE);
+            }
+            this.out.write(value);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            int start = offset;
+            for (int i = offset; i < offset + length; i++) {
+                if (buffer[i] == QUOTE) {
+                    this.out.write(buffer, start, i + 1 - start);
+                    start = i;
+                }
+            }
+            this.out.write(buffer, start, offset + length - start);
+        }
+    }
+}
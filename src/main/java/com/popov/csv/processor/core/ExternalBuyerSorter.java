@@ -0,0 +1,306 @@
+package com.popov.csv.processor.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Groups the records of a split by buyer within a fixed memory budget. Raw records are
+ * collected in an arena of {@code memoryBudget} bytes; a full arena is sorted by buyer and
+ * written to a temporary run file. {@link #forEachSorted} then merges the runs, at most
+ * {@code maxMergeRuns} at a time, and hands out the records of one buyer after the other,
+ * each buyer's records in input order. A single record larger than the budget is held on
+ * its own.
+ */
+final class ExternalBuyerSorter implements Closeable {
+
+    private static final String RUN_FILE_PREFIX = "csv-run-";
+    private static final String RUN_FILE_SUFFIX = ".tmp";
+    private static final byte QUOTE = '"';
+    private static final byte COMMA = ',';
+    private static final byte LINE_FEED = '\n';
+    private static final int RUN_BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_ARENA_SIZE = 1024 * 1024;
+    // Rough heap cost of an entry and its buyer string besides the record bytes
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static final Comparator<Entry> ENTRY_ORDER = Comparator.comparing(Entry::buyer);
+    private static final Comparator<RunReader> RUN_ORDER = Comparator.comparing(RunReader::getBuyer)
+            .thenComparingInt(RunReader::getIndex);
+
+    @FunctionalInterface
+    interface BuyerRecordConsumer {
+        void accept(String buyer, CsvRecord record) throws IOException;
+    }
+
+    private record Entry(String buyer, int offset, int length) {
+    }
+
+    private final int memoryBudget;
+    private final int maxMergeRuns;
+    private final List<Path> runs = new ArrayList<>();
+    private final List<Entry> entries = new ArrayList<>();
+    private final ArenaOutputStream arena;
+    private long entryBytes;
+
+    ExternalBuyerSorter(int memoryBudget, int maxMergeRuns) {
+        this.memoryBudget = Math.max(1, memoryBudget);
+        this.maxMergeRuns = Math.max(2, maxMergeRuns);
+        this.arena = new ArenaOutputStream(Math.min(this.memoryBudget, INITIAL_ARENA_SIZE));
+    }
+
+    void add(String buyer, CsvRecord record) throws IOException {
+        int start = this.arena.count;
+        if (record.hasRawBytes()) {
+            record.writeRawTo(this.arena);
+        } else {
+            writeQuoted(record, this.arena);
+        }
+        this.entries.add(new Entry(buyer, start, this.arena.count - start));
+        this.entryBytes += ENTRY_OVERHEAD + 2L * buyer.length();
+
+        // The budget is exceeded by at most the last record before the run is written
+        if (this.arena.count + this.entryBytes > this.memoryBudget) {
+            this.writeRun();
+        }
+    }
+
+    int getRunCount() {
+        return this.runs.size();
+    }
+
+    /**
+     * Hands out every record added, grouped by buyer in buyer order. The record passed to the
+     * consumer is only valid during the call.
+     */
+    void forEachSorted(BuyerRecordConsumer consumer) throws IOException {
+        if (!this.entries.isEmpty()) {
+            this.writeRun();
+        }
+        while (this.runs.size() > this.maxMergeRuns) {
+            this.mergeRunsInGroups();
+        }
+
+        ByteCsvRecord record = new ByteCsvRecord();
+        CsvTokenizer.Slices slices = new CsvTokenizer.Slices();
+        this.merge(this.runs, (buyer, bytes, length) -> {
+            slices.clear();
+            CsvTokenizer.parseRecord(bytes, 0, length, true, slices);
+            record.reset(bytes, slices.values(), 0);
+            consumer.accept(buyer, record);
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Path run : this.runs) {
+            try {
+                Files.deleteIfExists(run);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        this.runs.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void writeRun() throws IOException {
+        this.entries.sort(ENTRY_ORDER);
+        Path run = Files.createTempFile(RUN_FILE_PREFIX, RUN_FILE_SUFFIX);
+        this.runs.add(run);
+        try (DataOutputStream out = openRun(run)) {
+            for (Entry entry : this.entries) {
+                writeEntry(out, entry.buyer(), this.arena.buffer, entry.offset(), entry.length());
+            }
+        }
+
+        this.entries.clear();
+        this.entryBytes = 0;
+        this.arena.count = 0;
+        // Give back the memory of a record that was larger than the budget
+        if (this.arena.buffer.length > this.memoryBudget) {
+            this.arena.buffer = new byte[Math.min(this.memoryBudget, INITIAL_ARENA_SIZE)];
+        }
+    }
+
+    /**
+     * Merges every group of {@code maxMergeRuns} consecutive runs into one, which keeps the runs
+     * in input order.
+     */
+    private void mergeRunsInGroups() throws IOException {
+        List<Path> merged = new ArrayList<>();
+        try {
+            for (int from = 0; from < this.runs.size(); from += this.maxMergeRuns) {
+                List<Path> group = this.runs.subList(from, Math.min(this.runs.size(), from + this.maxMergeRuns));
+                Path run = Files.createTempFile(RUN_FILE_PREFIX, RUN_FILE_SUFFIX);
+                merged.add(run);
+                try (DataOutputStream out = openRun(run)) {
+                    this.merge(group, (buyer, bytes, length) -> writeEntry(out, buyer, bytes, 0, length));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Path run : merged) {
+                Files.deleteIfExists(run);
+            }
+            throw e;
+        }
+
+        for (Path run : this.runs) {
+            Files.deleteIfExists(run);
+        }
+        this.runs.clear();
+        this.runs.addAll(merged);
+    }
+
+    @FunctionalInterface
+    private interface EntryConsumer {
+        void accept(String buyer, byte[] bytes, int length) throws IOException;
+    }
+
+    private void merge(List<Path> runs, EntryConsumer consumer) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, runs.size()), RUN_ORDER);
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            for (int i = 0; i < runs.size(); i++) {
+                RunReader reader = new RunReader(runs.get(i), i);
+                readers.add(reader);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                consumer.accept(reader.getBuyer(), reader.bytes, reader.length);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    // Records without raw bytes are stored with every field quoted, which parses back to the same fields
+    private static void writeQuoted(CsvRecord record, OutputStream outputStream) throws IOException {
+        for (int i = 0; i < record.size(); i++) {
+            if (i > 0) {
+                outputStream.write(COMMA);
+            }
+            outputStream.write(QUOTE);
+            byte[] field = record.get(i).getBytes(StandardCharsets.UTF_8);
+            for (byte value : field) {
+                if (value == QUOTE) {
+                    outputStream.write(QUOTE);
+                }
+                outputStream.write(value);
+            }
+            outputStream.write(QUOTE);
+        }
+        outputStream.write(LINE_FEED);
+    }
+
+    private static DataOutputStream openRun(Path run) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), RUN_BUFFER_SIZE));
+    }
+
+    private static void writeEntry(DataOutputStream out, String buyer, byte[] bytes, int offset, int length) throws IOException {
+        out.writeUTF(buyer);
+        out.writeInt(length);
+        out.write(bytes, offset, length);
+    }
+
+    /**
+     * Growable byte array the raw records are written into.
+     */
+    private static final class ArenaOutputStream extends OutputStream {
+
+        private byte[] buffer;
+        private int count;
+
+        private ArenaOutputStream(int initialSize) {
+            this.buffer = new byte[initialSize];
+        }
+
+        @Override
+        public void write(int value) {
+            this.ensureCapacity(1);
+            this.buffer[this.count++] = (byte) value;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            this.ensureCapacity(length);
+            System.arraycopy(bytes, offset, this.buffer, this.count, length);
+            this.count += length;
+        }
+
+        private void ensureCapacity(int length) {
+            if (this.count + length > this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer, Math.max(this.count + length, this.buffer.length * 2));
+            }
+        }
+    }
+
+    /**
+     * Cursor over the entries of one run, reusing its record buffer.
+     */
+    private static final class RunReader implements Closeable {
+
+        private final DataInputStream in;
+        private final int index;
+        private String buyer;
+        private byte[] bytes = new byte[1024];
+        private int length;
+
+        private RunReader(Path run, int index) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), RUN_BUFFER_SIZE));
+            this.index = index;
+        }
+
+        private String getBuyer() {
+            return this.buyer;
+        }
+
+        private int getIndex() {
+            return this.index;
+        }
+
+        private boolean next() throws IOException {
+            try {
+                this.buyer = this.in.readUTF();
+            } catch (EOFException e) {
+                return false;
+            }
+            this.length = this.in.readInt();
+            if (this.length > this.bytes.length) {
+                this.bytes = new byte[Math.max(this.length, this.bytes.length * 2)];
+            }
+            this.in.readFully(this.bytes, 0, this.length);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.in.close();
+        }
+    }
+}
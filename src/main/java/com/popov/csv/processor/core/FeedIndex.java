@@ -0,0 +1,45 @@
+package com.popov.csv.processor.core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Output directories of the finished split runs of one splitter, keyed by the content hash of
+ * their input. A feed sent again is answered with the directory of its earlier run instead of
+ * being split once more. Holds the most recently used {@code maxEntries} runs; a run whose
+ * directory is gone or holds an unfinished split is forgotten when it is looked up.
+ * Thread-safe.
+ */
+final class FeedIndex {
+
+    private final Map<String, String> outputDirectories;
+
+    FeedIndex(int maxEntries) {
+        this.outputDirectories = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return this.size() > maxEntries;
+            }
+        };
+    }
+
+    synchronized Optional<String> find(String key) throws IOException {
+        String outputDirectory = this.outputDirectories.get(key);
+        if (outputDirectory == null) {
+            return Optional.empty();
+        }
+        if (!Files.isDirectory(Paths.get(outputDirectory)) || SplitCheckpoint.read(outputDirectory).isPresent()) {
+            this.outputDirectories.remove(key);
+            return Optional.empty();
+        }
+        return Optional.of(outputDirectory);
+    }
+
+    synchronized void put(String key, String outputDirectory) {
+        this.outputDirectories.put(key, outputDirectory);
+    }
+}
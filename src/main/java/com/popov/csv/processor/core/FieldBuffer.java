@@ -0,0 +1,83 @@
+package com.popov.csv.processor.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Holds one field before it is written, so that a field with a delimiter, a quote or a line
+ * break can be quoted as the reader would expect it. The array is reused for every field.
+ */
+final class FieldBuffer extends ByteArrayOutputStream {
+
+    private static final int COMMA = ',';
+    private static final int QUOTE = '"';
+    private static final int LINE_FEED = '\n';
+
+    /**
+     * Writes a record that has no original bytes as one quoted line ending with {@code '\n'},
+     * for {@link CsvRecord#writeRawTo(OutputStream)}.
+     */
+    static void writeLineTo(CsvRecord record, OutputStream outputStream) throws IOException {
+        new FieldBuffer().writeRecordTo(record, outputStream);
+        outputStream.write(LINE_FEED);
+    }
+
+    /**
+     * Returns the line {@link #writeLineTo(CsvRecord, OutputStream)} writes, for
+     * {@link CsvRecord#rawBytes()}.
+     */
+    static byte[] lineBytes(CsvRecord record) {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        try {
+            writeLineTo(record, line);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return line.toByteArray();
+    }
+
+    /**
+     * Writes the fields of a record separated by commas, each quoted when it needs to be. The
+     * line terminator is left to the caller.
+     */
+    void writeRecordTo(CsvRecord record, OutputStream outputStream) throws IOException {
+        for (int i = 0; i < record.size(); i++) {
+            if(i > 0) {
+                outputStream.write(COMMA);
+            }
+            this.reset();
+            record.writeTo(i, this);
+            this.writeFieldTo(outputStream);
+        }
+    }
+
+    private void writeFieldTo(OutputStream outputStream) throws IOException {
+        if(!this.needsQuotes()) {
+            outputStream.write(this.buf, 0, this.count);
+            return;
+        }
+        outputStream.write(QUOTE);
+        int start = 0;
+        for (int i = 0; i < this.count; i++) {
+            if(this.buf[i] == QUOTE) {
+                // The quote is written twice, once with the run before it and once on its own
+                outputStream.write(this.buf, start, i + 1 - start);
+                start = i;
+            }
+        }
+        outputStream.write(this.buf, start, this.count - start);
+        outputStream.write(QUOTE);
+    }
+
+    private boolean needsQuotes() {
+        for (int i = 0; i < this.count; i++) {
+            byte value = this.buf[i];
+            if(value == COMMA || value == QUOTE || value == '\r' || value == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,86 @@
+package com.popov.csv.processor.core;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Head of an oversized field that {@link ByteCsvRecordReader} moved from its buffer to a
+ * temporary file. The rest of the field stays in the buffer and starts at {@code contentStart}.
+ * The file is deleted when the reader moves on, unless the field was handed out with
+ * {@link #detach()}; the returned stream deletes it when closed then.
+ */
+final class FieldSpill {
+
+    private static final String SPILL_FILE_PREFIX = "csv-field-";
+    private static final String SPILL_FILE_SUFFIX = ".tmp";
+
+    private final Path file;
+    private final FileChannel channel;
+    private final int contentStart;
+    private long length;
+    private boolean detached;
+
+    FieldSpill(int contentStart) throws IOException {
+        this.contentStart = contentStart;
+        this.file = Files.createTempFile(SPILL_FILE_PREFIX, SPILL_FILE_SUFFIX);
+        this.channel = FileChannel.open(this.file, StandardOpenOption.WRITE);
+    }
+
+    int contentStart() {
+        return this.contentStart;
+    }
+
+    long length() {
+        return this.length;
+    }
+
+    void append(byte[] buffer, int start, int end) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, start, end - start);
+        while (byteBuffer.hasRemaining()) {
+            this.channel.write(byteBuffer);
+        }
+        this.length += end - start;
+    }
+
+    void copyTo(OutputStream outputStream) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(this.file)) {
+            inputStream.transferTo(outputStream);
+        }
+    }
+
+    byte[] readAllBytes() throws IOException {
+        return Files.readAllBytes(this.file);
+    }
+
+    /**
+     * Hands the spilled bytes over to the caller, who becomes responsible for the file.
+     */
+    InputStream detach() throws IOException {
+        this.channel.close();
+        this.detached = true;
+        return new FilterInputStream(Files.newInputStream(this.file)) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    Files.deleteIfExists(FieldSpill.this.file);
+                }
+            }
+        };
+    }
+
+    void release() throws IOException {
+        this.channel.close();
+        if (!this.detached) {
+            Files.deleteIfExists(this.file);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.popov.csv.processor.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.StringJoiner;
+
+/**
+ * Worker that streams its partition to {@code POST /api/v1/csv/split/stream} of another
+ * instance of the application, e.g. {@code http://worker-1:8080}. The body is sent chunked
+ * while the coordinator is still reading the input, and the strategy, format, target, columns
+ * and filters of the run are passed on as request parameters. The worker answers with the
+ * output directory of its run.
+ */
+public class HttpSplitWorker implements SplitWorker {
+
+    private static final String SPLIT_STREAM_PATH = "/api/v1/csv/split/stream";
+    private static final String CONTENT_TYPE_HEADER = "Content-Type";
+    private static final String TEXT_CSV = "text/csv";
+    private static final String STRATEGY_PARAMETER = "strategy=";
+    private static final String FORMAT_PARAMETER = "format=";
+    private static final String TARGET_PARAMETER = "target=";
+    private static final String COLUMNS_PARAMETER = "columns=";
+    private static final String FILTER_PARAMETER = "filter=";
+    private static final String WORKER_REJECTED_MESSAGE = "Worker %s rejected its partition: %s";
+    private static final String WORKER_FAILED_MESSAGE = "Worker %s failed with status %d: %s";
+
+    private final URI baseUri;
+    private final HttpClient httpClient;
+
+    public HttpSplitWorker(URI baseUri, HttpClient httpClient) {
+        this.baseUri = baseUri;
+        this.httpClient = httpClient;
+    }
+
+    @Override
+    public String getName() {
+        return this.baseUri.toString();
+    }
+
+    /**
+     * @throws RuntimeException when the worker rejects the partition as invalid input
+     * @throws IOException when the worker cannot be reached or fails otherwise
+     */
+    @Override
+    public String split(InputStream partition, SplitOptions options) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(this.splitUri(options))
+                .header(CONTENT_TYPE_HEADER, TEXT_CSV)
+                .POST(HttpRequest.BodyPublishers.ofInputStream(() -> partition))
+                .build();
+
+        HttpResponse<String> response;
+        try {
+            response = this.httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        if (response.statusCode() == 400) {
+            throw new RuntimeException(String.format(WORKER_REJECTED_MESSAGE, this.getName(), response.body()));
+        }
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException(String.format(WORKER_FAILED_MESSAGE, this.getName(), response.statusCode(), response.body()));
+        }
+        // The worker answers with the output directory of its run, on its own file system
+        String outputDirectory = response.body();
+        return outputDirectory == null || outputDirectory.isBlank() ? null : outputDirectory;
+    }
+
+    private URI splitUri(SplitOptions options) {
+        StringJoiner query = new StringJoiner("&", "?", "").setEmptyValue("");
+        if (options.strategy() != null) {
+            query.add(STRATEGY_PARAMETER + options.strategy().name().toLowerCase(Locale.ROOT));
+        }
+        if (options.format() != null) {
+            query.add(FORMAT_PARAMETER + URLEncoder.encode(options.format(), StandardCharsets.UTF_8));
+        }
+        if (options.target() != null) {
+            query.add(TARGET_PARAMETER + URLEncoder.encode(options.target(), StandardCharsets.UTF_8));
+        }
+        if (options.columns() != null) {
+            query.add(COLUMNS_PARAMETER + URLEncoder.encode(String.join(",", options.columns()), StandardCharsets.UTF_8));
+        }
+        if (options.filters() != null) {
+            for (RowFilter filter : options.filters()) {
+                query.add(FILTER_PARAMETER + URLEncoder.encode(filter.toString(), StandardCharsets.UTF_8));
+            }
+        }
+        String base = this.baseUri.toString();
+        if (base.endsWith("/")) {
+            base = base.substring(0, base.length() - 1);
+        }
+        return URI.create(base + SPLIT_STREAM_PATH + query);
+    }
+}
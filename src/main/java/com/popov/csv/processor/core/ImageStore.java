@@ -0,0 +1,218 @@
+package com.popov.csv.processor.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Decoded invoice images keyed by the SHA-256 of their base64 text, shared by all split runs.
+ * An image file of a run is a hard link to its store entry, so an image the store already
+ * holds is neither decoded nor written again. Entries are evicted least recently used first
+ * once they take more than {@code maxBytes}; the links of earlier runs keep their data, only
+ * the store forgets it. Where the run directories are on another file system, images are
+ * copied instead of linked. Thread-safe; only the bookkeeping holds the lock of the store,
+ * links and copies are made without it.
+ */
+final class ImageStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageStore.class);
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final String TEMPORARY_FILE_PREFIX = "image-";
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+    private static final String EVICTION_FAILED_MESSAGE = "Unable to evict image {} from the store.";
+    private static final int DIGEST_BUFFER_SIZE = 64 * 1024;
+
+    private final Path directory;
+    private final long maxBytes;
+    // Entry sizes by key, least recently used first
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long storedBytes;
+
+    /**
+     * Opens the store in {@code directory}, taking over the entries an earlier process left
+     * there, oldest first, and deleting the images it was still decoding.
+     */
+    ImageStore(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> stored = new ArrayList<>();
+            for (Path file : files.toList()) {
+                if (isTemporaryFile(file)) {
+                    Files.deleteIfExists(file);
+                } else if (!file.getFileName().toString().endsWith(TEMPORARY_FILE_SUFFIX)) {
+                    stored.add(file);
+                }
+            }
+            stored.sort(Comparator.comparing(ImageStore::lastModified));
+            for (Path file : stored) {
+                long size = Files.size(file);
+                this.entries.put(file.getFileName().toString(), size);
+                this.storedBytes += size;
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        this.evict(null);
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String keyOf(MessageDigest digest) {
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Reads {@code content} to its end and returns its key.
+     */
+    static String keyOf(InputStream content) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+        int read;
+        while ((read = content.read(buffer)) >= 0) {
+            digest.update(buffer, 0, read);
+        }
+        return keyOf(digest);
+    }
+
+    /**
+     * Creates the file to decode a new image into, next to the entries so that
+     * {@link #add} can move it in place.
+     */
+    Path createTemporaryFile() throws IOException {
+        return Files.createTempFile(this.directory, TEMPORARY_FILE_PREFIX, TEMPORARY_FILE_SUFFIX);
+    }
+
+    /**
+     * Links {@code target} to the entry of {@code key}. Returns false when the store does not
+     * hold the image.
+     */
+    boolean linkTo(String key, Path target) throws IOException {
+        synchronized (this) {
+            if (this.entries.get(key) == null) {
+                return false;
+            }
+        }
+        Path entry = this.directory.resolve(key);
+        try {
+            link(entry, target);
+            return true;
+        } catch (NoSuchFileException e) {
+            // Evicted meanwhile, or removed behind the back of the store
+            synchronized (this) {
+                if (Files.notExists(entry)) {
+                    this.forget(key);
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Makes the decoded image in {@code file}, created with {@link #createTemporaryFile()}, the
+     * entry of {@code key} and links {@code target} to it. When another run stored the image in
+     * the meantime, {@code file} is dropped.
+     */
+    void add(String key, Path file, Path target) throws IOException {
+        // Linked to the file before it becomes the entry, which a concurrent eviction may delete
+        link(file, target);
+        synchronized (this) {
+            Path entry = this.directory.resolve(key);
+            if (this.entries.get(key) != null && Files.exists(entry)) {
+                Files.delete(file);
+                return;
+            }
+            long size = Files.size(file);
+            Files.move(file, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.forget(key);
+            this.entries.put(key, size);
+            this.storedBytes += size;
+            this.evict(key);
+        }
+    }
+
+    synchronized int getEntryCount() {
+        return this.entries.size();
+    }
+
+    synchronized long getStoredBytes() {
+        return this.storedBytes;
+    }
+
+    private void forget(String key) {
+        Long size = this.entries.remove(key);
+        if (size != null) {
+            this.storedBytes -= size;
+        }
+    }
+
+    // The entry just added stays, even when it alone exceeds the budget
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> iterator = this.entries.entrySet().iterator();
+        while (this.storedBytes > this.maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(this.directory.resolve(entry.getKey()));
+            } catch (IOException e) {
+                LOGGER.warn(EVICTION_FAILED_MESSAGE, entry.getKey(), e);
+                continue;
+            }
+            this.storedBytes -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    private static void link(Path entry, Path target) throws IOException {
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, entry);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            if (Files.notExists(entry)) {
+                throw new NoSuchFileException(entry.toString());
+            }
+            Files.copy(entry, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static boolean isTemporaryFile(Path file) {
+        String fileName = file.getFileName().toString();
+        return fileName.startsWith(TEMPORARY_FILE_PREFIX) && fileName.endsWith(TEMPORARY_FILE_SUFFIX);
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
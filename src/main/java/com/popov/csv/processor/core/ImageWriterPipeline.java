@@ -0,0 +1,133 @@
+package com.popov.csv.processor.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Bounded stage that decodes and writes the invoice images of one split run on worker threads,
+ * which the runs of a splitter share, so the row loop does not wait for the disk. At most
+ * {@code maxInFlight} images of the run are in flight, further submissions block until a
+ * worker finishes one. Images of the same file are written one after the other in the order
+ * they were submitted, so the last row naming a file wins. The first failure is kept and
+ * thrown by the next {@link #submit} or by {@link #await()}.
+ */
+final class ImageWriterPipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageWriterPipeline.class);
+
+    private static final String FAILED_IMAGES_MESSAGE = "Failed to write {} invoice images.";
+
+    @FunctionalInterface
+    interface ImageTask {
+        void write() throws IOException;
+    }
+
+    private final Executor executor;
+    private final Semaphore permits;
+    private final int maxInFlight;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final AtomicInteger failedImages = new AtomicInteger();
+    private final Map<String, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+
+    ImageWriterPipeline(Executor executor, int maxInFlight) {
+        this.executor = executor;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.permits = new Semaphore(this.maxInFlight);
+    }
+
+    /**
+     * Writes an image on a worker, after the images submitted earlier for the same
+     * {@code fileName}.
+     */
+    void submit(String fileName, ImageTask task) throws IOException {
+        this.throwIfFailed();
+        try {
+            this.permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        CompletableFuture<Void> tail;
+        try {
+            tail = this.tails.compute(fileName, (name, previous) -> previous == null
+                    ? CompletableFuture.runAsync(() -> this.run(task), this.executor)
+                    : previous.thenRunAsync(() -> this.run(task), this.executor));
+        } catch (RuntimeException e) {
+            this.permits.release();
+            throw e;
+        }
+        // The last image of a file forgets the chain, so the map only holds files in flight
+        tail.whenComplete((result, throwable) -> this.tails.remove(fileName, tail));
+    }
+
+    /**
+     * Waits until every submitted image is written and throws the first failure, if any.
+     */
+    void await() throws IOException {
+        this.waitForInFlight();
+
+        if (this.failedImages.get() > 0) {
+            LOGGER.error(FAILED_IMAGES_MESSAGE, this.failedImages.get());
+        }
+        this.throwIfFailed();
+    }
+
+    /**
+     * Waits until every submitted image is written and throws the first failure, if any. The
+     * pipeline accepts further images afterwards.
+     */
+    void drain() throws IOException {
+        this.waitForInFlight();
+        this.throwIfFailed();
+    }
+
+    int getFailedImageCount() {
+        return this.failedImages.get();
+    }
+
+    int getInFlightCount() {
+        return this.maxInFlight - this.permits.availablePermits();
+    }
+
+    private void waitForInFlight() throws InterruptedIOException {
+        try {
+            this.permits.acquire(this.maxInFlight);
+            this.permits.release(this.maxInFlight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void run(ImageTask task) {
+        try {
+            task.write();
+        } catch (IOException | RuntimeException e) {
+            this.failedImages.incrementAndGet();
+            this.failure.compareAndSet(null, e);
+        } finally {
+            this.permits.release();
+        }
+    }
+
+    private void throwIfFailed() throws IOException {
+        Throwable throwable = this.failure.get();
+        if (throwable instanceof IOException ioException) {
+            throw ioException;
+        }
+        if (throwable instanceof RuntimeException runtimeException) {
+            throw runtimeException;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.popov.csv.processor.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State of a split that appends to the buyer files earlier runs left in its output directory.
+ * The file of a buyer is continued when the buyer shows up for the first time in the run, so
+ * buyers without new rows are not touched at all. Every buyer file has a row key index in
+ * {@value #ROW_KEYS_DIRECTORY}: a 64-bit hash of the key columns of each row written to it.
+ * Rows whose key is already there are skipped, which makes it safe to send overlapping deltas.
+ * <p>
+ * The keys of a run are appended to the indices once its buyer files are complete. A run that
+ * fails before leaves its rows in the files without their keys; sending the delta again then
+ * duplicates them. Not thread-safe, an instance belongs to a single {@link SplitSession}.
+ */
+final class IncrementalSplit {
+
+    static final String ROW_KEYS_DIRECTORY = ".row-keys";
+
+    private static final String ROW_KEYS_EXTENSION = ".keys";
+    private static final String MISSING_KEY_COLUMN_MESSAGE = "Invalid input csv - key column %s is missing.";
+    private static final int KEYS_BUFFER_SIZE = 64 * 1024;
+
+    private final SplitSession session;
+    private final int[] keyColumns;
+    private final Path rowKeysDirectory;
+    private final Map<String, BuyerKeys> buyerKeys = new HashMap<>();
+    private final RowKeyHasher rowKeyHasher = new RowKeyHasher();
+
+    /**
+     * @param keyColumns headers of the columns that identify a row, all columns when empty
+     */
+    IncrementalSplit(SplitSession session, List<String> keyColumns) {
+        this.session = session;
+        this.keyColumns = keyColumns.stream().mapToInt(column -> indexOf(session.headers, column)).toArray();
+        this.rowKeysDirectory = Paths.get(session.outputDirectory, ROW_KEYS_DIRECTORY);
+    }
+
+    /**
+     * Tells whether {@code line} is new to the file of {@code buyer} and remembers its key.
+     * The first row of a buyer continues its existing file and loads its row keys.
+     */
+    boolean admit(String buyer, CsvRecord line) throws IOException {
+        BuyerKeys keys = this.buyerKeys.get(buyer);
+        if (keys == null) {
+            this.session.continueFile(buyer);
+            keys = this.loadKeys(buyer);
+            this.buyerKeys.put(buyer, keys);
+        }
+        return keys.add(this.rowKeyOf(line));
+    }
+
+    /**
+     * Appends the keys of the rows admitted since the last call to the row key indices.
+     */
+    void writeKeys() throws IOException {
+        for (BuyerKeys keys : this.buyerKeys.values()) {
+            if (keys.addedCount == 0) {
+                continue;
+            }
+            Files.createDirectories(this.rowKeysDirectory);
+            try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(keys.file,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND), KEYS_BUFFER_SIZE))) {
+                for (int i = 0; i < keys.addedCount; i++) {
+                    outputStream.writeLong(keys.added[i]);
+                }
+            }
+            keys.addedCount = 0;
+        }
+    }
+
+    private BuyerKeys loadKeys(String buyer) throws IOException {
+        BuyerKeys keys = new BuyerKeys(this.rowKeysDirectory.resolve(this.session.getBuyerFileName(buyer) + ROW_KEYS_EXTENSION));
+        if (Files.isRegularFile(keys.file)) {
+            long count = Files.size(keys.file) / Long.BYTES;
+            try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(keys.file), KEYS_BUFFER_SIZE))) {
+                for (long i = 0; i < count; i++) {
+                    keys.known.add(inputStream.readLong());
+                }
+            }
+            // Drops a key cut short by a crash while it was appended, the next keys go after it
+            try (FileChannel fileChannel = FileChannel.open(keys.file, StandardOpenOption.WRITE)) {
+                fileChannel.truncate(count * Long.BYTES);
+            }
+        }
+        return keys;
+    }
+
+    private long rowKeyOf(CsvRecord line) throws IOException {
+        this.rowKeyHasher.reset();
+        if (this.keyColumns.length == 0) {
+            for (int i = 0; i < line.size(); i++) {
+                this.rowKeyHasher.addField(line, i);
+            }
+        } else {
+            for (int keyColumn : this.keyColumns) {
+                this.rowKeyHasher.addField(line, keyColumn);
+            }
+        }
+        return this.rowKeyHasher.getHash();
+    }
+
+    private static int indexOf(String[] headers, String column) {
+        int index = Arrays.asList(headers).indexOf(column.trim());
+        if (index < 0) {
+            throw new RuntimeException(String.format(MISSING_KEY_COLUMN_MESSAGE, column));
+        }
+        return index;
+    }
+
+    /**
+     * Row keys of one buyer file: the ones on disk and the ones of this run not written yet.
+     */
+    private static final class BuyerKeys {
+
+        private final Path file;
+        private final LongSet known = new LongSet();
+        private long[] added = new long[16];
+        private int addedCount;
+
+        private BuyerKeys(Path file) {
+            this.file = file;
+        }
+
+        private boolean add(long key) {
+            if (!this.known.add(key)) {
+                return false;
+            }
+            if (this.addedCount == this.added.length) {
+                this.added = Arrays.copyOf(this.added, this.added.length * 2);
+            }
+            this.added[this.addedCount++] = key;
+            return true;
+        }
+    }
+
+    /**
+     * Open addressing set of longs, a boxed {@code HashSet<Long>} takes about six times the
+     * memory per key.
+     */
+    private static final class LongSet {
+
+        private long[] slots = new long[16];
+        private int size;
+        private boolean containsZero;
+
+        private boolean add(long key) {
+            if (key == 0) {
+                boolean added = !this.containsZero;
+                this.containsZero = true;
+                return added;
+            }
+            if ((this.size + 1) * 2 > this.slots.length) {
+                this.grow();
+            }
+            int mask = this.slots.length - 1;
+            int slot = (int) key & mask;
+            while (this.slots[slot] != 0) {
+                if (this.slots[slot] == key) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            this.slots[slot] = key;
+            this.size++;
+            return true;
+        }
+
+        private void grow() {
+            long[] previous = this.slots;
+            this.slots = new long[previous.length * 2];
+            int mask = this.slots.length - 1;
+            for (long key : previous) {
+                if (key != 0) {
+                    int slot = (int) key & mask;
+                    while (this.slots[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    this.slots[slot] = key;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.popov.csv.processor.core;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Container of an uploaded feed, told apart by its first bytes. Compressed feeds are
+ * decompressed while they are read, a zip archive holds one feed per entry.
+ */
+enum InputFormat {
+
+    PLAIN(new byte[0]),
+    GZIP(new byte[]{(byte) 0x1F, (byte) 0x8B}),
+    ZSTD(new byte[]{(byte) 0x28, (byte) 0xB5, (byte) 0x2F, (byte) 0xFD}),
+    ZIP(new byte[]{(byte) 0x50, (byte) 0x4B, (byte) 0x03, (byte) 0x04});
+
+    static final int MAGIC_LENGTH = 4;
+
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    private final byte[] magic;
+
+    InputFormat(byte[] magic) {
+        this.magic = magic;
+    }
+
+    /**
+     * Detects the format from the first bytes of {@code inputStream} and pushes them back.
+     * The stream needs room for {@value #MAGIC_LENGTH} pushed back bytes.
+     */
+    static InputFormat detect(PushbackInputStream inputStream) throws IOException {
+        byte[] head = inputStream.readNBytes(MAGIC_LENGTH);
+        inputStream.unread(head);
+        return of(head, head.length);
+    }
+
+    static InputFormat detect(Path file) throws IOException {
+        try (InputStream inputStream = Files.newInputStream(file)) {
+            byte[] head = inputStream.readNBytes(MAGIC_LENGTH);
+            return of(head, head.length);
+        }
+    }
+
+    /**
+     * Returns a stream of the decompressed feed. Not defined for {@link #ZIP}, whose entries
+     * are read one by one.
+     */
+    InputStream decompress(InputStream inputStream) throws IOException {
+        return switch (this) {
+            case PLAIN -> inputStream;
+            case GZIP -> new GZIPInputStream(inputStream, GZIP_BUFFER_SIZE);
+            case ZSTD -> new ZstdInputStream(inputStream);
+            case ZIP -> throw new IllegalStateException("Zip archives hold one feed per entry.");
+        };
+    }
+
+    private static InputFormat of(byte[] head, int length) {
+        for (InputFormat format : values()) {
+            if (format.magic.length > 0 && format.magic.length <= length
+                    && Arrays.equals(head, 0, format.magic.length, format.magic, 0, format.magic.length)) {
+                return format;
+            }
+        }
+        return PLAIN;
+    }
+}
@@ -1,19 +1,36 @@
 package com.popov.csv.processor.core;
 
-import com.opencsv.CSVReader;
 import com.opencsv.exceptions.CsvValidationException;
 import com.popov.csv.processor.config.OutputDirectoryResolver;
-import org.apache.commons.lang3.StringUtils;
+import com.popov.csv.processor.config.ThreadMode;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.Arrays;
-import java.util.stream.IntStream;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 public abstract class InvoiceCsvSplitter {
 
@@ -23,79 +40,959 @@ public abstract class InvoiceCsvSplitter {
     private static final String SUCCESSFUL_FILE_SPLIT_MESSAGE = "Finished splitting invoices file by buyers.";
 
     private static final String UTF8_BOM = "\uFEFF";
-    private static final String BUYER_HEADER = "buyer";
-    private static final String IMAGE_NAME_HEADER = "image_name";
-    private static final String INVOICE_IMAGE_HEADER = "invoice_image";
     private static final String MISSING_BUYER_MESSAGE = "Invalid input csv - buyer is missing.";
+    private static final String ERROR_BUDGET_EXCEEDED_MESSAGE = "Invalid input csv - more than %d malformed rows, see %s.";
+    private static final String SHORT_ROW_REASON = "Row has %d fields, the buyer is field %d.";
+    private static final String SPLIT_CANCELLED_MESSAGE = "Split was cancelled.";
+    private static final String ABORT_FAILED_MESSAGE = "Failed to close the buyer files in {}.";
+    private static final String NESTED_ARCHIVE_MESSAGE = "Invalid input - nested zip archives are not supported.";
+    private static final String INVALID_ARCHIVE_ENTRY_MESSAGE = "Invalid input - zip entry name is not a file in the archive.";
+    private static final String SPLITTING_ARCHIVE_ENTRY_MESSAGE = "Splitting zip entry {}.";
+    private static final String OVERSIZED_RECORD_MESSAGE = "{} holds records larger than {} bytes, reading it sequentially.";
+    private static final String RESUMING_FILE_SPLIT_MESSAGE = "Resuming split into {} from offset {} after {} rows.";
+    private static final String MISSING_CHECKPOINT_MESSAGE = "No split checkpoint in %s.";
+    private static final String CHECKPOINT_CONFIGURATION_CHANGED_MESSAGE = "Checkpoint was written for format %s with codec %s.";
+    private static final String CHECKPOINT_INPUT_CHANGED_MESSAGE = "Input file %s of the checkpoint is missing or changed.";
+    private static final String DUPLICATE_FEED_MESSAGE = "Input was split before into {}, reusing that output.";
+    private static final String FEED_KEY_SEPARATOR = ":";
+    private static final String INVALID_TARGET_MESSAGE = "Invalid target directory name %s.";
+    private static final String KEY_COLUMN_SEPARATOR = ",";
+    private static final String UNKNOWN_INDEX_COLUMN_MESSAGE = "Column %s is not indexed.";
 
-    protected int buyerIndex = -1;
-    protected int imageNameIndex = -1;
-    protected int invoiceImageIndex = -1;
+    private static final int DEFAULT_MAX_OPEN_WRITERS = 1024;
+    private static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int DEFAULT_READ_BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+    private static final int DEFAULT_COMPRESSION_BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_COMPRESSION_QUEUE_CAPACITY = 64;
+    private static final long DEFAULT_CHECKPOINT_INTERVAL_MILLIS = 60_000L;
+    private static final long DEFAULT_ERROR_BUDGET = 100L;
+    private static final int DEFAULT_MAX_WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final int DEFAULT_SORT_MEMORY_BUDGET = 64 * 1024 * 1024;
+    private static final int DEFAULT_SORT_MAX_MERGE_RUNS = 64;
+    private static final int DEFAULT_DEDUP_MAX_ENTRIES = 1000;
+
+    private static final String COMPRESSION_THREAD_PREFIX = "compress-";
+    private static final long IDLE_THREAD_SECONDS = 30L;
+
+    private static final String BYTES_READER = "bytes";
+    private static final String OPENCSV_READER = "opencsv";
 
     @Autowired
     protected OutputDirectoryResolver outputDirectoryResolver;
 
-    protected String outputDirectory;
+    @Value("${output.writer.max-open-files:" + DEFAULT_MAX_OPEN_WRITERS + "}")
+    protected int maxOpenWriters = DEFAULT_MAX_OPEN_WRITERS;
+
+    /**
+     * Largest write buffer a single busy buyer file grows to.
+     */
+    @Value("${output.writer.max-buffer-size:" + DEFAULT_MAX_WRITE_BUFFER_SIZE + "}")
+    protected int maxWriteBufferSize = DEFAULT_MAX_WRITE_BUFFER_SIZE;
+
+    @Value("${input.reader:" + BYTES_READER + "}")
+    protected String recordReader = BYTES_READER;
+
+    @Value("${input.parallel.threads:0}")
+    protected int parallelism = 0;
+
+    @Value("${input.parallel.chunk-size:" + DEFAULT_CHUNK_SIZE + "}")
+    protected int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * Records larger than this move their oversized field to a temporary file instead of
+     * growing the read buffer further. Only used by the bytes reader; a file with a record
+     * that stretches a parallel chunk by more than this is read sequentially instead.
+     */
+    @Value("${input.spill-threshold:" + DEFAULT_SPILL_THRESHOLD + "}")
+    protected int spillThreshold = DEFAULT_SPILL_THRESHOLD;
+
+    /**
+     * Runs the worker stages of a split on virtual threads when {@code virtual}.
+     */
+    @Value("${" + ThreadMode.PROPERTY + ":platform}")
+    protected String threadMode = "platform";
+
+    /**
+     * Codec of the buyer files: {@code none}, {@code gzip} or {@code zstd}.
+     */
+    @Value("${output.compression.codec:none}")
+    protected String compressionCodec = "none";
+
+    /**
+     * Compression level, -1 picks the codec default.
+     */
+    @Value("${output.compression.level:-1}")
+    protected int compressionLevel = -1;
+
+    /**
+     * Bytes buffered per buyer file before they are handed to a compression worker.
+     */
+    @Value("${output.compression.buffer-size:" + DEFAULT_COMPRESSION_BUFFER_SIZE + "}")
+    protected int compressionBufferSize = DEFAULT_COMPRESSION_BUFFER_SIZE;
+
+    /**
+     * Compression workers shared by all runs of the splitter, 0 means one per available core.
+     */
+    @Value("${output.compression.threads:0}")
+    protected int compressionThreads = 0;
+
+    /**
+     * Buffers of one run waiting for a compression worker before its row loop blocks.
+     */
+    @Value("${output.compression.queue-capacity:" + DEFAULT_COMPRESSION_QUEUE_CAPACITY + "}")
+    protected int compressionQueueCapacity = DEFAULT_COMPRESSION_QUEUE_CAPACITY;
+
+    /**
+     * Time between checkpoints of a split of a file, 0 disables them. A checkpoint suspends
+     * every open buyer file, so it costs about as much as reopening them all.
+     */
+    @Value("${split.checkpoint.interval-millis:" + DEFAULT_CHECKPOINT_INTERVAL_MILLIS + "}")
+    protected long checkpointIntervalMillis = DEFAULT_CHECKPOINT_INTERVAL_MILLIS;
 
-    public InvoiceCsvSplitter(OutputDirectoryResolver outputDirectoryResolver) {
+    /**
+     * Malformed rows a run routes to the error file of its output directory, see
+     * {@link ErrorRows}, before it fails; 0 fails on the first one.
+     */
+    @Value("${split.error-budget:" + DEFAULT_ERROR_BUDGET + "}")
+    protected long errorBudget = DEFAULT_ERROR_BUDGET;
+
+    /**
+     * Strategy of requests that do not choose one, see {@link SplitStrategy}.
+     */
+    @Value("${split.strategy:streaming}")
+    protected String splitStrategy = "streaming";
+
+    /**
+     * Bytes of rows the sorted strategy holds in memory before it writes them out as a run.
+     */
+    @Value("${split.sort.memory-budget:" + DEFAULT_SORT_MEMORY_BUDGET + "}")
+    protected int sortMemoryBudget = DEFAULT_SORT_MEMORY_BUDGET;
+
+    /**
+     * Runs the sorted strategy merges at once, and so the run files it keeps open. More runs
+     * are first merged in groups of this size.
+     */
+    @Value("${split.sort.max-merge-runs:" + DEFAULT_SORT_MAX_MERGE_RUNS + "}")
+    protected int sortMaxMergeRuns = DEFAULT_SORT_MAX_MERGE_RUNS;
+
+    /**
+     * Answers a file or upload whose content was split before with the output directory of
+     * that run. Costs one extra read of the input to hash it. A streamed body can only be read
+     * once, so it is hashed while it is split and its output removed when it was a duplicate.
+     */
+    @Value("${input.dedup.enabled:true}")
+    protected boolean dedupEnabled = true;
+
+    /**
+     * Finished runs remembered for deduplication.
+     */
+    @Value("${input.dedup.max-entries:" + DEFAULT_DEDUP_MAX_ENTRIES + "}")
+    protected int dedupMaxEntries = DEFAULT_DEDUP_MAX_ENTRIES;
+
+    /**
+     * Columns, comma separated, that identify a row when a split appends to a target
+     * directory; a row whose key the buyer file already holds is skipped. Empty means all
+     * columns.
+     */
+    @Value("${output.incremental.key-columns:}")
+    protected String incrementalKeyColumns = "";
+
+    /**
+     * Columns, comma separated, whose values index the rows of every uncompressed csv and xml
+     * buyer file, see {@link #findInvoice}. Empty disables the index. A split resumed from a
+     * checkpoint writes no index.
+     */
+    @Value("${output.index.key-columns:}")
+    protected String indexKeyColumns = "";
+
+    protected final String format;
+
+    protected SplitMetrics splitMetrics;
+
+    private FeedIndex feedIndex;
+
+    private WriteBufferPool writeBufferPool;
+
+    private ThreadPoolExecutor compressionExecutor;
+
+    public InvoiceCsvSplitter(OutputDirectoryResolver outputDirectoryResolver, String format) {
         this.outputDirectoryResolver = outputDirectoryResolver;
+        this.format = format;
+        this.splitMetrics = new SplitMetrics(new SimpleMeterRegistry(), format);
+    }
+
+    /**
+     * Publishes the split metrics to the application registry, which Actuator exports.
+     * Without one the metrics go to a private registry.
+     */
+    @Autowired(required = false)
+    public void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.splitMetrics = new SplitMetrics(meterRegistry, this.format);
+    }
+
+    /**
+     * Shares the write buffer memory with the runs of every other splitter. Without a pool the
+     * runs of this splitter share a pool of the default budget.
+     */
+    @Autowired(required = false)
+    public synchronized void setWriteBufferPool(WriteBufferPool writeBufferPool) {
+        this.writeBufferPool = writeBufferPool;
+    }
+
+    /**
+     * Name of the output format, e.g. {@code csv}, under which {@link OutputFormats} offers
+     * this splitter.
+     */
+    public String getFormat() {
+        return this.format;
+    }
+
+    public SplitMetrics getSplitMetrics() {
+        return this.splitMetrics;
     }
 
     public void splitCsvInvoicesByBuyer(InputStream inputStream) throws IOException, CsvValidationException {
+        this.splitCsvInvoicesByBuyer(inputStream, new SplitProgress());
+    }
+
+    /**
+     * Splits the input and reports rows, bytes and buyers to {@code progress} while doing so.
+     * Gzip and zstd input is decompressed on the fly, a zip archive is split entry by entry,
+     * see {@link InputFormat}.
+     *
+     * @throws java.util.concurrent.CancellationException when {@code progress} was cancelled,
+     * the buyer files written until then are closed
+     */
+    public void splitCsvInvoicesByBuyer(InputStream inputStream, SplitProgress progress) throws IOException, CsvValidationException {
+        this.splitCsvInvoicesByBuyer(inputStream, progress, SplitOptions.DEFAULTS);
+    }
+
+    public void splitCsvInvoicesByBuyer(InputStream inputStream, SplitProgress progress, SplitOptions options) throws IOException, CsvValidationException {
+        this.splitStream(inputStream, progress, options, null);
+    }
+
+    /**
+     * Splits a request body that can only be read once. It is hashed while it is split, so a
+     * feed that was split before is only recognized at the end: the output of this run is then
+     * removed and {@code progress} reports the output directory of the earlier run, see
+     * {@code input.dedup.enabled}.
+     */
+    public void splitStreamedCsvInvoicesByBuyer(InputStream inputStream, SplitProgress progress, SplitOptions options) throws IOException, CsvValidationException {
+        MessageDigest digest = this.dedupEnabled ? ImageStore.newDigest() : null;
+        this.splitStream(inputStream, progress, options, digest);
+        if (digest != null) {
+            this.deduplicate(this.feedKeyOf(ImageStore.keyOf(digest), options), progress, options);
+        }
+    }
+
+    /**
+     * Splits a stream, updating {@code digest}, if any, with every byte of it.
+     */
+    private void splitStream(InputStream inputStream, SplitProgress progress, SplitOptions options,
+                             MessageDigest digest) throws IOException, CsvValidationException {
+        LOGGER.debug(STARTING_FILE_SPLIT_MESSAGE);
+
+        String outputDirectory = this.outputDirectoryOf(options);
+        CountingInputStream countingInputStream = new CountingInputStream(inputStream);
+        progress.trackBytes(countingInputStream::getCount);
+        progress.start(outputDirectory);
+        InputStream rawInput = digest != null ? new DigestInputStream(countingInputStream, digest) : countingInputStream;
+        try(PushbackInputStream input = new PushbackInputStream(rawInput, InputFormat.MAGIC_LENGTH)) {
+            InputFormat inputFormat = InputFormat.detect(input);
+            if(inputFormat == InputFormat.ZIP) {
+                this.splitArchive(new ZipInputStream(input), outputDirectory, progress, options);
+                if(digest != null) {
+                    // The entries end before the central directory, which the digest covers as well
+                    input.transferTo(OutputStream.nullOutputStream());
+                }
+            } else {
+                this.splitFeed(inputFormat.decompress(input), outputDirectory, progress, options);
+            }
+        } finally {
+            this.splitMetrics.recordBytesIn(countingInputStream.getCount());
+        }
+
+        inputStream.close();
+
+        LOGGER.debug(SUCCESSFUL_FILE_SPLIT_MESSAGE);
+    }
+
+    /**
+     * Splits a file that is already on disk. Files larger than one chunk are parsed in parallel
+     * by a {@link ParallelCsvReader}, unless one of their records is too large to be held on the
+     * heap; the output is the same as for the stream based split.
+     */
+    public void splitCsvInvoicesByBuyer(Path inputFile) throws IOException, CsvValidationException {
+        this.splitCsvInvoicesByBuyer(inputFile, new SplitProgress());
+    }
+
+    public void splitCsvInvoicesByBuyer(Path inputFile, SplitProgress progress) throws IOException, CsvValidationException {
+        this.splitCsvInvoicesByBuyer(inputFile, progress, SplitOptions.DEFAULTS);
+    }
+
+    /**
+     * Splits an upload that can be read more than once, e.g. a multipart file. When its content
+     * was split before, the split is skipped and {@code progress} reports the output directory
+     * of the earlier run, see {@code input.dedup.enabled}.
+     */
+    public void splitCsvInvoicesByBuyer(InputStreamSource source, SplitProgress progress, SplitOptions options) throws IOException, CsvValidationException {
+        String feedKey = null;
+        if (this.dedupEnabled) {
+            try (InputStream inputStream = source.getInputStream()) {
+                feedKey = this.feedKeyOf(ImageStore.keyOf(inputStream), options);
+            }
+            if (this.reuseEarlierSplit(feedKey, progress)) {
+                return;
+            }
+        }
+
+        this.splitStream(source.getInputStream(), progress, options, null);
+        this.rememberSplit(feedKey, progress);
+    }
+
+    /**
+     * Splits a file that is already on disk, unless its content was split before, see
+     * {@link #splitCsvInvoicesByBuyer(InputStreamSource, SplitProgress, SplitOptions)}.
+     */
+    public void splitCsvInvoicesByBuyer(Path inputFile, SplitProgress progress, SplitOptions options) throws IOException, CsvValidationException {
+        String feedKey = null;
+        if (this.dedupEnabled) {
+            try (InputStream inputStream = Files.newInputStream(inputFile)) {
+                feedKey = this.feedKeyOf(ImageStore.keyOf(inputStream), options);
+            }
+            if (this.reuseEarlierSplit(feedKey, progress)) {
+                return;
+            }
+        }
+
+        this.splitInputFile(inputFile, progress, options);
+        this.rememberSplit(feedKey, progress);
+    }
+
+    private void splitInputFile(Path inputFile, SplitProgress progress, SplitOptions options) throws IOException, CsvValidationException {
+        if (InputFormat.detect(inputFile) != InputFormat.PLAIN) {
+            this.splitStream(Files.newInputStream(inputFile), progress, options, null);
+            return;
+        }
+
         LOGGER.debug(STARTING_FILE_SPLIT_MESSAGE);
 
-        try(InputStreamReader inputStreamReader = new InputStreamReader(inputStream, StandardCharsets.UTF_8);
-            BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
-            CSVReader csvReader = new CSVReader(bufferedReader)) {
+        String outputDirectory = this.outputDirectoryOf(options);
+        progress.start(outputDirectory);
+        if (this.parallelism == 1 || OPENCSV_READER.equals(this.recordReader) || Files.size(inputFile) <= this.chunkSize) {
+            this.splitFile(inputFile, outputDirectory, progress, options, null);
+        } else {
+            int threads = this.parallelism > 0 ? this.parallelism : Runtime.getRuntime().availableProcessors();
+            ParallelCsvReader parallelCsvReader = new ParallelCsvReader(inputFile, threads, this.chunkSize);
+            // Chunks are held on the heap whole, only the sequential reader spills large fields
+            if (parallelCsvReader.getLargestChunkLength() > (long) this.chunkSize + this.spillThreshold) {
+                parallelCsvReader.close();
+                LOGGER.info(OVERSIZED_RECORD_MESSAGE, inputFile, this.spillThreshold);
+                this.splitFile(inputFile, outputDirectory, progress, options, null);
+            } else {
+                try(parallelCsvReader) {
+                    progress.trackBytes(parallelCsvReader::getBytesConsumed);
+                    this.split(parallelCsvReader, outputDirectory, progress, options, inputFile, null);
+                } finally {
+                    this.splitMetrics.recordBytesIn(Files.size(inputFile));
+                }
+            }
+        }
+
+        LOGGER.debug(SUCCESSFUL_FILE_SPLIT_MESSAGE);
+    }
+
+    /**
+     * Finds the row of {@code buyer} whose {@code column} holds {@code key} among the buyer files
+     * a split wrote into {@code outputDirectory}, using the index the split wrote next to them.
+     * Empty when the buyer, its index or the key are unknown.
+     *
+     * @param column one of {@code output.index.key-columns}, null for the first one
+     * @throws IllegalArgumentException when {@code column} is not indexed
+     */
+    public Optional<InvoiceLocation> findInvoice(String outputDirectory, String buyer, String column, String key) throws IOException {
+        List<String> indexColumns = keyColumnsOf(this.indexKeyColumns);
+        String indexColumn = column == null && !indexColumns.isEmpty() ? indexColumns.get(0) : column;
+        if (indexColumn == null || !indexColumns.contains(indexColumn)) {
+            throw new IllegalArgumentException(String.format(UNKNOWN_INDEX_COLUMN_MESSAGE, column));
+        }
+
+        // The buyer comes from the request, its file must be right in the output directory
+        Path directory;
+        String buyerFileName = this.getBuyerFileName(buyer);
+        try {
+            directory = Paths.get(outputDirectory).toAbsolutePath().normalize();
+            if (!directory.equals(directory.resolve(buyerFileName).normalize().getParent())) {
+                return Optional.empty();
+            }
+        } catch (InvalidPathException e) {
+            return Optional.empty();
+        }
+        return InvoiceIndex.find(directory, indexColumn, buyerFileName, key);
+    }
+
+    /**
+     * Returns the checkpoint a split of a file left in {@code outputDirectory}, if it did not
+     * finish. Splits of a file write one every {@code split.checkpoint.interval-millis}.
+     */
+    public Optional<SplitCheckpoint> findCheckpoint(String outputDirectory) throws IOException {
+        return SplitCheckpoint.read(outputDirectory);
+    }
+
+    /**
+     * Continues an interrupted split of a file from the checkpoint in {@code outputDirectory}.
+     * Buyer files are cut back to their length at the checkpoint and the input is read on from
+     * the checkpoint offset, so the result is the same as that of an uninterrupted run.
+     *
+     * @throws IllegalStateException when there is no checkpoint, it was written with another
+     * format or codec, or the input file is gone or changed
+     */
+    public void resumeCsvInvoicesByBuyer(String outputDirectory, SplitProgress progress) throws IOException, CsvValidationException {
+        SplitCheckpoint checkpoint = this.findCheckpoint(outputDirectory)
+                .orElseThrow(() -> new IllegalStateException(String.format(MISSING_CHECKPOINT_MESSAGE, outputDirectory)));
+        if(!this.format.equals(checkpoint.format()) || !OutputCodec.of(this.compressionCodec).name().equals(checkpoint.codec())) {
+            throw new IllegalStateException(String.format(CHECKPOINT_CONFIGURATION_CHANGED_MESSAGE, checkpoint.format(), checkpoint.codec()));
+        }
+        Path inputFile = checkpoint.getInputPath();
+        if(!Files.isRegularFile(inputFile) || Files.size(inputFile) != checkpoint.inputSize()) {
+            throw new IllegalStateException(String.format(CHECKPOINT_INPUT_CHANGED_MESSAGE, inputFile));
+        }
+
+        LOGGER.info(RESUMING_FILE_SPLIT_MESSAGE, outputDirectory, checkpoint.offset(), checkpoint.rows());
+
+        progress.start(outputDirectory);
+        this.splitFile(inputFile, outputDirectory, progress, SplitOptions.DEFAULTS.withStrategy(SplitStrategy.STREAMING), checkpoint);
+
+        LOGGER.debug(SUCCESSFUL_FILE_SPLIT_MESSAGE);
+    }
+
+    protected RecordReader createRecordReader(InputStream inputStream) {
+        if (OPENCSV_READER.equals(this.recordReader)) {
+            return new OpenCsvRecordReader(inputStream);
+        }
+        return new ByteCsvRecordReader(inputStream, DEFAULT_READ_BUFFER_SIZE, this.spillThreshold);
+    }
+
+    // Runs with another codec, into another target or of other columns and filters wrote other files,
+    // so they do not count as the same output
+    private String feedKeyOf(String contentKey, SplitOptions options) {
+        return contentKey + FEED_KEY_SEPARATOR + OutputCodec.of(this.compressionCodec).name()
+                + FEED_KEY_SEPARATOR + Objects.toString(options.target(), "")
+                + FEED_KEY_SEPARATOR + Objects.toString(options.columns(), "")
+                + FEED_KEY_SEPARATOR + Objects.toString(options.filters(), "");
+    }
+
+    private boolean reuseEarlierSplit(String feedKey, SplitProgress progress) throws IOException {
+        Optional<String> outputDirectory = this.getFeedIndex().find(feedKey);
+        if (outputDirectory.isEmpty()) {
+            return false;
+        }
+        LOGGER.info(DUPLICATE_FEED_MESSAGE, outputDirectory.get());
+        progress.start(outputDirectory.get());
+        this.splitMetrics.recordDuplicateFeed();
+        return true;
+    }
+
+    private void rememberSplit(String feedKey, SplitProgress progress) {
+        if (feedKey != null && progress.getOutputDirectory() != null) {
+            this.getFeedIndex().put(feedKey, progress.getOutputDirectory());
+        }
+    }
+
+    /**
+     * Remembers a finished run of a streamed body under the hash of its content. When the same
+     * feed was split before, the output of this run is removed instead and {@code progress}
+     * reports the output directory of the earlier run. A target directory is shared by both
+     * runs and kept.
+     */
+    private void deduplicate(String feedKey, SplitProgress progress, SplitOptions options) throws IOException {
+        String outputDirectory = progress.getOutputDirectory();
+        if (outputDirectory == null) {
+            return;
+        }
+
+        Optional<String> earlierOutputDirectory = this.getFeedIndex().find(feedKey);
+        if (earlierOutputDirectory.isEmpty() || earlierOutputDirectory.get().equals(outputDirectory)) {
+            this.getFeedIndex().put(feedKey, outputDirectory);
+            return;
+        }
+        LOGGER.info(DUPLICATE_FEED_MESSAGE, earlierOutputDirectory.get());
+        if (options.target() == null) {
+            deleteDirectory(Paths.get(outputDirectory));
+        }
+        progress.start(earlierOutputDirectory.get());
+        this.splitMetrics.recordDuplicateFeed();
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static List<String> keyColumnsOf(String keyColumns) {
+        return Arrays.stream(keyColumns.split(KEY_COLUMN_SEPARATOR))
+                .map(String::trim)
+                .filter(column -> !column.isEmpty())
+                .toList();
+    }
+
+    private synchronized FeedIndex getFeedIndex() {
+        if (this.feedIndex == null) {
+            this.feedIndex = new FeedIndex(this.dedupMaxEntries);
+        }
+        return this.feedIndex;
+    }
+
+    /**
+     * Returns the stable directory of the target of {@code options}, or a new directory for
+     * every run when there is none.
+     */
+    private String outputDirectoryOf(SplitOptions options) {
+        if (options.target() == null) {
+            return this.outputDirectoryResolver.getOutputDirectory();
+        }
+        return this.outputDirectoryResolver.getTargetDirectory(options.target())
+                .orElseThrow(() -> new IllegalArgumentException(String.format(INVALID_TARGET_MESSAGE, options.target())));
+    }
+
+    private SplitStrategy strategyOf(SplitOptions options) {
+        return options.strategy() != null ? options.strategy() : SplitStrategy.of(this.splitStrategy);
+    }
 
-            this.outputDirectory = this.outputDirectoryResolver.getOutputDirectory();
-            String[] firstLine = csvReader.readNext();
+    private void splitFeed(InputStream inputStream, String outputDirectory, SplitProgress progress,
+                           SplitOptions options) throws IOException, CsvValidationException {
+        try(RecordReader recordReader = this.createRecordReader(inputStream)) {
+            this.split(recordReader, outputDirectory, progress, options, null, null);
+        }
+    }
+
+    private void splitFile(Path inputFile, String outputDirectory, SplitProgress progress, SplitOptions options,
+                           SplitCheckpoint resumeFrom) throws IOException, CsvValidationException {
+        CountingInputStream countingInputStream = new CountingInputStream(Files.newInputStream(inputFile));
+        progress.trackBytes(countingInputStream::getCount);
+        try(RecordReader recordReader = this.createRecordReader(countingInputStream)) {
+            this.split(recordReader, outputDirectory, progress, options, inputFile, resumeFrom);
+        } finally {
+            this.splitMetrics.recordBytesIn(countingInputStream.getCount());
+        }
+    }
 
-            if(firstLine != null) {
-                String[] headers = this.removeUtf8BomFromHeaders(firstLine);
+    /**
+     * Splits every file entry of a zip archive as a feed of its own, into a subdirectory named
+     * after the entry without its extensions, so feeds sharing a buyer do not overwrite each
+     * other. Entries may be gzip or zstd compressed.
+     */
+    private void splitArchive(ZipInputStream zipInputStream, String outputDirectory, SplitProgress progress,
+                              SplitOptions options) throws IOException, CsvValidationException {
+        ZipEntry entry;
+        while ((entry = zipInputStream.getNextEntry()) != null) {
+            if(entry.isDirectory()) {
+                continue;
+            }
 
-                this.initializeWriters();
-                this.setIndices(headers);
+            // The entry stream must stay open for the next entry when the reader closes it
+            PushbackInputStream entryInput = new PushbackInputStream(new FilterInputStream(zipInputStream) {
+                @Override
+                public void close() {
+                }
+            }, InputFormat.MAGIC_LENGTH);
+            InputFormat entryFormat = InputFormat.detect(entryInput);
+            if(entryFormat == InputFormat.ZIP) {
+                throw new RuntimeException(NESTED_ARCHIVE_MESSAGE);
+            }
 
-                String[] line;
+            LOGGER.debug(SPLITTING_ARCHIVE_ENTRY_MESSAGE, entry.getName());
+            this.splitFeed(entryFormat.decompress(entryInput), entryOutputDirectory(outputDirectory, entry), progress, options);
+            progress.nextFeed();
+        }
+    }
 
-                while ((line = csvReader.readNext()) != null) {
-                    if(!isValidIndex(buyerIndex, line)) {
-                        this.finalizeWriters();
-                        throw new RuntimeException(MISSING_BUYER_MESSAGE);
+    private static String entryOutputDirectory(String outputDirectory, ZipEntry entry) {
+        Path root = Paths.get(outputDirectory).toAbsolutePath().normalize();
+        Path entryPath = Paths.get(entry.getName());
+        Path fileName = entryPath.getFileName();
+        if(fileName == null) {
+            throw new RuntimeException(INVALID_ARCHIVE_ENTRY_MESSAGE);
+        }
+
+        String feedName = fileName.toString();
+        int extension = feedName.indexOf('.');
+        if(extension > 0) {
+            feedName = feedName.substring(0, extension);
+        }
+        Path parent = entryPath.getParent();
+        Path feedDirectory = root.resolve(parent != null ? parent.resolve(feedName) : Paths.get(feedName)).normalize();
+        if(!feedDirectory.startsWith(root) || feedDirectory.equals(root)) {
+            throw new RuntimeException(INVALID_ARCHIVE_ENTRY_MESSAGE);
+        }
+        return feedDirectory.toString();
+    }
+
+    /**
+     * Splits the records of {@code recordReader}. With an {@code inputFile} a checkpoint is
+     * written every {@code checkpointIntervalMillis}, provided the reader knows its offset;
+     * with {@code resumeFrom} the run continues from that checkpoint. The sorted strategy, splits
+     * into a target directory and splits that select columns or rows write no checkpoints.
+     */
+    private void split(RecordReader recordReader, String outputDirectory, SplitProgress progress, SplitOptions options,
+                       Path inputFile, SplitCheckpoint resumeFrom) throws IOException, CsvValidationException {
+        long splitStart = System.nanoTime();
+        CsvRecord firstLine = recordReader.next();
+
+        if(firstLine != null) {
+            String[] headers = this.removeUtf8BomFromHeaders(firstLine.toArray());
+            RowSelection selection = RowSelection.of(headers, options);
+            SplitSession session = this.createSession(outputDirectory, selection.getHeaders(), selection.project(firstLine));
+            // Every path that does not finish the writers gives them up, leaving no handle open
+            boolean completed = false;
+            try {
+                ErrorRows errorRows = new ErrorRows(outputDirectory, headers, this.errorBudget, resumeFrom != null ? resumeFrom.errorRows() : 0);
+                if(options.target() != null) {
+                    session.incrementalSplit = new IncrementalSplit(session, keyColumnsOf(this.incrementalKeyColumns));
+                }
+                // Offsets are only known in uncompressed files, and only for the rows of this process
+                List<String> indexColumns = keyColumnsOf(this.indexKeyColumns);
+                if(!indexColumns.isEmpty() && !session.compressionStage.isCompressed() && resumeFrom == null) {
+                    session.invoiceIndex = new InvoiceIndex(session, indexColumns);
+                }
+                if(this.strategyOf(options) == SplitStrategy.SORTED) {
+                    this.splitSorted(recordReader, session, selection, errorRows, progress, splitStart);
+                    completed = true;
+                    return;
+                }
+
+                CsvRecord line;
+                long rows = 0;
+                long skippedRows = 0;
+                long resumedRows = 0;
+                long resumedSkippedRows = 0;
+                long duplicateRows = 0;
+                long filteredRows = 0;
+                long rowNumber = 1;
+                int buyerIndex = selection.getBuyerIndex();
+                if(resumeFrom != null) {
+                    session.restore(resumeFrom.buyerFileLengths());
+                    ErrorRows.restore(outputDirectory, resumeFrom.errorFileLength());
+                    recordReader.skipTo(resumeFrom.offset());
+                    rows = resumedRows = resumeFrom.rows();
+                    skippedRows = resumedSkippedRows = resumeFrom.skippedRows();
+                    rowNumber += rows + skippedRows + resumeFrom.errorRows();
+                    progress.update(rows, session.getBuyerCount());
+                }
+
+                boolean checkpoints = inputFile != null && session.incrementalSplit == null && selection.selectsAll()
+                        && this.checkpointIntervalMillis > 0 && recordReader.getOffset() >= 0;
+                long checkpointIntervalNanos = TimeUnit.MILLISECONDS.toNanos(this.checkpointIntervalMillis);
+                long nextCheckpoint = System.nanoTime() + checkpointIntervalNanos;
+
+                long parseNanos = 0;
+                long writeNanos = 0;
+                long parseStart = System.nanoTime();
+
+                while ((line = recordReader.next()) != null) {
+                    long writeStart = System.nanoTime();
+                    parseNanos += writeStart - parseStart;
+                    rowNumber++;
+
+                    if(progress.isCancelled()) {
+                        throw new CancellationException(SPLIT_CANCELLED_MESSAGE);
+                    }
+
+                    if(!SplitSession.isValidIndex(buyerIndex, line)) {
+                        this.rejectRow(errorRows, rowNumber, buyerIndex, line, null);
+                        parseStart = System.nanoTime();
+                        continue;
                     }
-                    if(StringUtils.isEmpty(line[buyerIndex])) {
+                    if(line.isEmpty(buyerIndex)) {
                         // Skip line if buyer value is missing
+                        skippedRows++;
+                        parseStart = System.nanoTime();
+                        continue;
+                    }
+
+                    String buyer = line.get(buyerIndex);
+                    if(!selection.test(line)) {
+                        filteredRows++;
+                        parseStart = System.nanoTime();
                         continue;
                     }
+                    CsvRecord invoice = selection.project(line);
+                    String reason = session.validate(invoice);
+                    if(reason != null) {
+                        this.rejectRow(errorRows, rowNumber, buyerIndex, line, reason);
+                        parseStart = System.nanoTime();
+                        continue;
+                    }
+                    if(session.incrementalSplit != null && !session.incrementalSplit.admit(buyer, invoice)) {
+                        // Written by an earlier run into the same target
+                        duplicateRows++;
+                        parseStart = System.nanoTime();
+                        continue;
+                    }
+
+                    try {
+                        session.writeInvoice(invoice, buyer);
+                    } catch (IOException | RuntimeException e) {
+                        this.splitMetrics.recordFailedRows(1);
+                        throw e;
+                    }
+                    rows++;
+                    progress.update(rows, session.getBuyerCount());
 
-                    this.writeInvoice(line, headers, line[buyerIndex]);
+                    parseStart = System.nanoTime();
+                    writeNanos += parseStart - writeStart;
+
+                    if(checkpoints && parseStart - nextCheckpoint >= 0) {
+                        this.checkpoint(session, recordReader, inputFile, rows, skippedRows, errorRows);
+                        parseStart = System.nanoTime();
+                        nextCheckpoint = parseStart + checkpointIntervalNanos;
+                    }
                 }
 
-                this.finalizeWriters();
+                this.finalizeWriters(session);
+                completed = true;
+                if(checkpoints) {
+                    SplitCheckpoint.delete(outputDirectory);
+                }
+                this.splitMetrics.recordRun(System.nanoTime() - splitStart, parseNanos, writeNanos,
+                        rows - resumedRows, skippedRows - resumedSkippedRows, session.getBuyerCount());
+                this.splitMetrics.recordDuplicateRows(duplicateRows);
+                this.splitMetrics.recordFilteredRows(filteredRows);
+            } finally {
+                if(!completed) {
+                    this.abortWriters(session);
+                }
             }
         }
+    }
 
-        inputStream.close();
+    /**
+     * First pass: sorts the rows by buyer into runs. Second pass: merges the runs and writes
+     * every buyer file in one go, finishing it before the next buyer starts.
+     */
+    private void splitSorted(RecordReader recordReader, SplitSession session, RowSelection selection, ErrorRows errorRows,
+                             SplitProgress progress, long splitStart) throws IOException, CsvValidationException {
+        long rows = 0;
+        long skippedRows = 0;
+        long duplicateRows = 0;
+        long filteredRows = 0;
+        long rowNumber = 1;
+        int buyerIndex = selection.getBuyerIndex();
+        long parseNanos;
+        long writeNanos;
+        long[] sortedRows = new long[1];
 
-        LOGGER.debug(SUCCESSFUL_FILE_SPLIT_MESSAGE);
+        try(ExternalBuyerSorter sorter = new ExternalBuyerSorter(this.sortMemoryBudget, this.sortMaxMergeRuns)) {
+            long parseStart = System.nanoTime();
+            CsvRecord line;
+            while ((line = recordReader.next()) != null) {
+                rowNumber++;
+                if(progress.isCancelled()) {
+                    throw new CancellationException(SPLIT_CANCELLED_MESSAGE);
+                }
+
+                if(!SplitSession.isValidIndex(buyerIndex, line)) {
+                    this.rejectRow(errorRows, rowNumber, buyerIndex, line, null);
+                    continue;
+                }
+                if(line.isEmpty(buyerIndex)) {
+                    // Skip line if buyer value is missing
+                    skippedRows++;
+                    continue;
+                }
+
+                String buyer = line.get(buyerIndex);
+                if(!selection.test(line)) {
+                    filteredRows++;
+                    continue;
+                }
+                CsvRecord invoice = selection.project(line);
+                String reason = session.validate(invoice);
+                if(reason != null) {
+                    this.rejectRow(errorRows, rowNumber, buyerIndex, line, reason);
+                    continue;
+                }
+                if(session.incrementalSplit != null && !session.incrementalSplit.admit(buyer, invoice)) {
+                    duplicateRows++;
+                    continue;
+                }
+
+                // Rows are sorted whole and projected when they are written
+                sorter.add(buyer, line);
+                rows++;
+            }
+            parseNanos = System.nanoTime() - parseStart;
+
+            String[] currentBuyer = new String[1];
+            long mergeStart = System.nanoTime();
+            sorter.forEachSorted((buyer, record) -> {
+                if(progress.isCancelled()) {
+                    throw new CancellationException(SPLIT_CANCELLED_MESSAGE);
+                }
+                if(!buyer.equals(currentBuyer[0])) {
+                    if(currentBuyer[0] != null) {
+                        session.finishWriter(currentBuyer[0]);
+                    }
+                    currentBuyer[0] = buyer;
+                }
+
+                try {
+                    session.writeInvoice(selection.project(record), buyer);
+                } catch (IOException | RuntimeException e) {
+                    this.splitMetrics.recordFailedRows(1);
+                    throw e;
+                }
+                sortedRows[0]++;
+                progress.update(sortedRows[0], session.getBuyerCount());
+            });
+            writeNanos = System.nanoTime() - mergeStart;
+            this.splitMetrics.recordSortRuns(sorter.getRunCount());
+        }
+
+        this.finalizeWriters(session);
+        this.splitMetrics.recordRun(System.nanoTime() - splitStart, parseNanos, writeNanos,
+                rows, skippedRows, session.getBuyerCount());
+        this.splitMetrics.recordDuplicateRows(duplicateRows);
+        this.splitMetrics.recordFilteredRows(filteredRows);
     }
 
-    protected abstract void initializeWriters();
+    private void checkpoint(SplitSession session, RecordReader recordReader, Path inputFile, long rows, long skippedRows,
+                            ErrorRows errorRows) throws IOException {
+        long checkpointStart = System.nanoTime();
+        try {
+            SplitCheckpoint checkpoint = new SplitCheckpoint(inputFile.toAbsolutePath().toString(), Files.size(inputFile),
+                    this.format, OutputCodec.of(this.compressionCodec).name(), recordReader.getOffset(), rows, skippedRows,
+                    errorRows.getCount(), ErrorRows.lengthOf(session.outputDirectory), session.checkpoint());
+            checkpoint.write(session.outputDirectory);
+        } finally {
+            this.splitMetrics.recordCheckpoint(System.nanoTime() - checkpointStart);
+        }
+    }
 
-    protected abstract void writeInvoice(String[] line, String[] headers, String buyer) throws IOException;
+    /**
+     * Routes a malformed row to the error file instead of the buyer files, {@code reason} null
+     * meaning the row is too short for the buyer column. A header without a buyer column and a
+     * row past the error budget fail the run.
+     */
+    private void rejectRow(ErrorRows errorRows, long rowNumber, int buyerIndex, CsvRecord line, String reason) throws IOException {
+        this.splitMetrics.recordFailedRows(1);
+        if(buyerIndex < 0) {
+            throw new RuntimeException(MISSING_BUYER_MESSAGE);
+        }
 
-    protected abstract void finalizeWriters() throws IOException;
+        errorRows.add(rowNumber, reason != null ? reason : String.format(SHORT_ROW_REASON, line.size(), buyerIndex + 1), line);
+        if(!errorRows.isWithinBudget()) {
+            throw new RuntimeException(String.format(ERROR_BUDGET_EXCEEDED_MESSAGE, this.errorBudget, ErrorRows.FILE_NAME));
+        }
+    }
+
+    private void finalizeWriters(SplitSession session) throws IOException {
+        long finalizeStart = System.nanoTime();
+        try {
+            session.finalizeWriters();
+            // Only keys of rows that are complete on disk
+            if(session.incrementalSplit != null) {
+                session.incrementalSplit.writeKeys();
+            }
+            if(session.invoiceIndex != null) {
+                this.splitMetrics.recordIndexEntries(session.invoiceIndex.write());
+            }
+        } finally {
+            try {
+                session.writeBufferManager.close();
+            } finally {
+                this.splitMetrics.recordFinalize(System.nanoTime() - finalizeStart);
+            }
+        }
+    }
 
-    protected boolean isValidIndex(int index, Object[] arr) {
-        return 0 <= index && index < arr.length;
+    /**
+     * Closes the writers and the write buffers of a run that failed.
+     * Writes neither row keys nor index entries, the buyer files may lack rows the session
+     * already counted. A failure to close is logged, so that it does not hide the one that
+     * failed the run.
+     */
+    private void abortWriters(SplitSession session) {
+        try {
+            session.abortWriters();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn(ABORT_FAILED_MESSAGE, session.outputDirectory, e);
+        }
+        try {
+            session.writeBufferManager.close();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn(ABORT_FAILED_MESSAGE, session.outputDirectory, e);
+        }
     }
 
-    protected File createFile(String fileName) throws IOException {
-        Files.createDirectories(Paths.get(outputDirectory));
-        return new File(this.outputDirectory + File.separator + fileName);
+    /**
+     * Creates the stage compressing the buyer files of one split run.
+     */
+    protected CompressionStage createCompressionStage() {
+        OutputCodec codec = OutputCodec.of(this.compressionCodec);
+        if (codec == OutputCodec.NONE) {
+            return CompressionStage.uncompressed();
+        }
+        ThreadPoolExecutor executor = this.getCompressionExecutor();
+        return new CompressionStage(codec, this.compressionLevel, this.compressionBufferSize, executor,
+                executor.getMaximumPoolSize() + Math.max(0, this.compressionQueueCapacity));
+    }
+
+    private synchronized ThreadPoolExecutor getCompressionExecutor() {
+        if (this.compressionExecutor == null) {
+            int threads = this.compressionThreads > 0 ? this.compressionThreads : Runtime.getRuntime().availableProcessors();
+            this.compressionExecutor = newWorkerPool(threads, COMPRESSION_THREAD_PREFIX, ThreadMode.of(this.threadMode));
+        }
+        return this.compressionExecutor;
     }
 
+    /**
+     * Creates the bounded workers a stage shares across the runs of a splitter; every run
+     * bounds its own work in flight. Daemon threads with an idle timeout, so a splitter that
+     * is no longer used holds no threads.
+     */
+    static ThreadPoolExecutor newWorkerPool(int threads, String threadPrefix, ThreadMode threadMode) {
+        int workers = Math.max(1, threads);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, IDLE_THREAD_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), threadMode.threadFactory(threadPrefix, true));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Creates the write buffers of the uncompressed buyer files of one split run, drawing on the
+     * pool shared by all runs.
+     */
+    protected WriteBufferManager createWriteBufferManager() {
+        return new WriteBufferManager(this.getWriteBufferPool(), this.maxWriteBufferSize, this.splitMetrics);
+    }
+
+    private synchronized WriteBufferPool getWriteBufferPool() {
+        if (this.writeBufferPool == null) {
+            this.writeBufferPool = new WriteBufferPool(WriteBufferPool.DEFAULT_BUDGET);
+        }
+        return this.writeBufferPool;
+    }
+
+    /**
+     * Creates the writers and indices for one split run. Called once per input file,
+     * so implementations must keep all mutable state inside the returned session.
+     * The header record is only valid during this call.
+     */
+    protected abstract SplitSession createSession(String outputDirectory, String[] headers, CsvRecord headerRecord);
+
+    /**
+     * Returns the name of the uncompressed file of a buyer, the one its sessions write.
+     */
+    protected abstract String getBuyerFileName(String buyer);
+
     private String[] removeUtf8BomFromHeaders(String[] headers) {
         return Arrays
                 .stream(headers)
@@ -110,18 +1007,4 @@ public abstract class InvoiceCsvSplitter {
         return str;
     }
 
-    private void setIndices(String[] headers) {
-        buyerIndex = getElementIndex(BUYER_HEADER, headers);
-        imageNameIndex = getElementIndex(IMAGE_NAME_HEADER, headers);
-        invoiceImageIndex = getElementIndex(INVOICE_IMAGE_HEADER, headers);
-    }
-
-    private int getElementIndex(String element, String[] elements) {
-        return IntStream
-                .range(0, elements.length)
-                .filter(i -> elements[i].equals(element))
-                .findFirst()
-                .orElse(-1);
-    }
-
 }
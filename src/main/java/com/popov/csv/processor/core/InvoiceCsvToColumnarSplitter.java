@@ -0,0 +1,198 @@
+package com.popov.csv.processor.core;
+
+import com.popov.csv.processor.config.OutputDirectoryResolver;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Writes every buyer file as a sequence of {@link ColumnarBlock}s, with the header columns as
+ * columns. Rows are collected per buyer and written as a block once {@code block-rows} rows or
+ * {@code block-bytes} characters are buffered, so memory grows with the open writers, not with
+ * the input. Fields beyond the header are dropped, missing ones are written as empty values.
+ */
+@Component
+public class InvoiceCsvToColumnarSplitter extends InvoiceCsvSplitter {
+
+    static final String COLUMNAR_FORMAT = "columnar";
+
+    private static final String COLUMNAR_EXTENSION = ".col";
+    private static final String EMPTY_VALUE = "";
+
+    private static final int INITIAL_BLOCK_CAPACITY = 16;
+    private static final int DEFAULT_BLOCK_ROWS = 4096;
+    private static final int DEFAULT_BLOCK_BYTES = 64 * 1024;
+
+    /**
+     * Rows per block at most, more rows give smaller dictionaries relative to the data.
+     */
+    @Value("${output.columnar.block-rows:" + DEFAULT_BLOCK_ROWS + "}")
+    protected int blockRows = DEFAULT_BLOCK_ROWS;
+
+    /**
+     * Characters a buyer buffers before its block is written, whatever its row count.
+     */
+    @Value("${output.columnar.block-bytes:" + DEFAULT_BLOCK_BYTES + "}")
+    protected int blockBytes = DEFAULT_BLOCK_BYTES;
+
+    public InvoiceCsvToColumnarSplitter(OutputDirectoryResolver outputDirectoryResolver) {
+        super(outputDirectoryResolver, COLUMNAR_FORMAT);
+    }
+
+    @Override
+    protected SplitSession createSession(String outputDirectory, String[] headers, CsvRecord headerRecord) {
+        return new ColumnarSplitSession(outputDirectory, headers, Math.max(1, this.blockRows), this.blockBytes,
+                this.maxOpenWriters, this.splitMetrics, this.createCompressionStage(), this.createWriteBufferManager());
+    }
+
+    @Override
+    protected String getBuyerFileName(String buyer) {
+        return buyer + COLUMNAR_EXTENSION;
+    }
+
+    /**
+     * Open buyer file and the rows buffered for its next block, held column by column. The
+     * columns grow with the rows buffered, so quiet buyers hold small arrays.
+     */
+    private static final class ColumnarBuyerWriter {
+
+        private final DataOutputStream outputStream;
+        private final String[][] values;
+        private int rows;
+        private long bufferedBytes;
+
+        private ColumnarBuyerWriter(DataOutputStream outputStream, int columns, int blockRows) {
+            this.outputStream = outputStream;
+            this.values = new String[columns][Math.min(blockRows, INITIAL_BLOCK_CAPACITY)];
+        }
+
+        private void ensureCapacity() {
+            for (int i = 0; i < this.values.length; i++) {
+                if (this.rows == this.values[i].length) {
+                    this.values[i] = Arrays.copyOf(this.values[i], this.rows * 2);
+                }
+            }
+        }
+    }
+
+    private static class ColumnarSplitSession extends SplitSession implements WriterCache.WriterFactory<ColumnarBuyerWriter> {
+
+        private final WriterCache<ColumnarBuyerWriter> writerCache;
+        private final int blockRows;
+        private final int blockBytes;
+        private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+        private ColumnarSplitSession(String outputDirectory, String[] headers, int blockRows, int blockBytes,
+                                     int maxOpenWriters, SplitMetrics splitMetrics, CompressionStage compressionStage,
+                                     WriteBufferManager writeBufferManager) {
+            super(outputDirectory, headers, splitMetrics, compressionStage, writeBufferManager);
+            this.writerCache = new WriterCache<>(maxOpenWriters, this);
+            this.blockRows = blockRows;
+            this.blockBytes = blockBytes;
+        }
+
+        @Override
+        protected void writeInvoice(CsvRecord line, String buyer) throws IOException {
+            ColumnarBuyerWriter writer = this.writerCache.get(buyer);
+            writer.ensureCapacity();
+            for (int i = 0; i < this.headers.length; i++) {
+                String value = i < line.size() ? line.get(i) : EMPTY_VALUE;
+                writer.values[i][writer.rows] = value;
+                writer.bufferedBytes += value.length();
+            }
+            writer.rows++;
+
+            if (writer.rows == this.blockRows || writer.bufferedBytes >= this.blockBytes) {
+                this.writeBlock(writer);
+            }
+        }
+
+        @Override
+        protected void finalizeWriters() throws IOException {
+            try {
+                this.writerCache.finishAll();
+            } finally {
+                this.splitMetrics.recordWriterCache(this.writerCache);
+            }
+        }
+
+        @Override
+        protected void abortWriters() throws IOException {
+            try {
+                this.writerCache.closeAll();
+            } finally {
+                this.splitMetrics.recordWriterCache(this.writerCache);
+            }
+        }
+
+        @Override
+        protected int getBuyerCount() {
+            return this.writerCache.getWriterCount();
+        }
+
+        @Override
+        protected Collection<String> getBuyers() {
+            return this.writerCache.getKeys();
+        }
+
+        @Override
+        protected String getBuyerFileName(String buyer) {
+            return buyer + COLUMNAR_EXTENSION;
+        }
+
+        @Override
+        protected void finishWriter(String buyer) throws IOException {
+            this.writerCache.finish(buyer);
+        }
+
+        @Override
+        protected void suspendWriters() throws IOException {
+            this.writerCache.suspendAll();
+        }
+
+        @Override
+        protected void restoreWriters(Collection<String> buyers) {
+            this.writerCache.restore(buyers);
+        }
+
+        @Override
+        public ColumnarBuyerWriter open(String buyer, boolean reopen) throws IOException {
+            DataOutputStream outputStream = new DataOutputStream(this.openOutputStream(buyer, reopen));
+            this.splitMetrics.writerOpened();
+            return new ColumnarBuyerWriter(outputStream, this.headers.length, this.blockRows);
+        }
+
+        // Every block is complete on its own, so suspending and finishing a file are the same
+        @Override
+        public void suspend(String buyer, ColumnarBuyerWriter writer) throws IOException {
+            this.finish(buyer, writer);
+        }
+
+        @Override
+        public void finish(String buyer, ColumnarBuyerWriter writer) throws IOException {
+            this.splitMetrics.writerClosed();
+            try {
+                this.writeBlock(writer);
+            } finally {
+                writer.outputStream.close();
+            }
+        }
+
+        private void writeBlock(ColumnarBuyerWriter writer) throws IOException {
+            if (writer.rows == 0) {
+                return;
+            }
+            ColumnarBlock.write(writer.outputStream, this.headers, writer.values, writer.rows, this.payload);
+            for (String[] column : writer.values) {
+                Arrays.fill(column, 0, writer.rows, null);
+            }
+            writer.rows = 0;
+            writer.bufferedBytes = 0;
+        }
+    }
+}
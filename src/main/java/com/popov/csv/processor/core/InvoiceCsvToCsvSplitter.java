@@ -1,62 +1,210 @@
 package com.popov.csv.processor.core;
 
 import com.popov.csv.processor.config.OutputDirectoryResolver;
-import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
 
 @Component
-@ConditionalOnProperty(prefix = "output.file", name = "format", havingValue = "csv", matchIfMissing = true)
 public class InvoiceCsvToCsvSplitter extends InvoiceCsvSplitter {
 
+    static final String CSV_FORMAT = "csv";
+
     private static final String CSV_EXTENSION = ".csv";
     private static final String COMMA_DELIMITER = ",";
+    private static final byte[] UTF8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+    private static final String HEADER_CHANGED_MESSAGE = "Invalid input csv - header differs from the one of %s.";
 
-    private  Map<String, BufferedWriter> writerMap = new HashMap<>();
+    /**
+     * Copies every record byte for byte from the input when the reader keeps the raw record,
+     * which preserves the original quoting and line breaks. Disable to always re-join the fields.
+     */
+    @Value("${output.csv.pass-through:true}")
+    protected boolean passThrough = true;
 
     public InvoiceCsvToCsvSplitter(OutputDirectoryResolver outputDirectoryResolver) {
-        super(outputDirectoryResolver);
+        super(outputDirectoryResolver, CSV_FORMAT);
     }
 
     @Override
-    protected void initializeWriters() {
-        this.writerMap = new HashMap<>();
+    protected SplitSession createSession(String outputDirectory, String[] headers, CsvRecord headerRecord) {
+        boolean rawRecords = this.passThrough && headerRecord.hasRawBytes();
+        byte[] headerLine = rawRecords ? rawHeaderLine(headerRecord) : joinedHeaderLine(headers);
+        return new CsvSplitSession(outputDirectory, headers, headerLine, rawRecords, this.maxOpenWriters, this.splitMetrics,
+                this.createCompressionStage(), this.createWriteBufferManager());
     }
 
     @Override
-    protected void writeInvoice(String[] line, String[] headers, String buyer) throws IOException {
-        if(!this.writerMap.containsKey(buyer)) {
-            BufferedWriter newBufferedWriter = createBufferedWriter(buyer);
-            this.writerMap.put(buyer, newBufferedWriter);
-            this.writeNewLine(newBufferedWriter, headers);
-        }
+    protected String getBuyerFileName(String buyer) {
+        return buyer + CSV_EXTENSION;
+    }
 
-        BufferedWriter bufferedWriter = this.writerMap.get(buyer);
-        this.writeNewLine(bufferedWriter, line);
+    private static byte[] joinedHeaderLine(String[] headers) {
+        return (String.join(COMMA_DELIMITER, headers) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
     }
 
-    @Override
-    protected void finalizeWriters() throws IOException {
-        for (BufferedWriter writer: this.writerMap.values()) {
-            writer.flush();
-            writer.close();
+    private static byte[] rawHeaderLine(CsvRecord headerRecord) {
+        ByteArrayOutputStream headerLine = new ByteArrayOutputStream();
+        try {
+            headerRecord.writeRawTo(headerLine);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        byte[] bytes = headerLine.toByteArray();
+        if(startsWithUtf8Bom(bytes)) {
+            return Arrays.copyOfRange(bytes, UTF8_BOM.length, bytes.length);
+        }
+        return bytes;
     }
 
-    private BufferedWriter createBufferedWriter(String fileName) throws IOException {
-        File newFile = this.createFile(fileName + CSV_EXTENSION);
-        FileWriter fileWriter = new FileWriter(newFile);
-        return new BufferedWriter(fileWriter);
+    private static boolean startsWithUtf8Bom(byte[] bytes) {
+        return bytes.length >= UTF8_BOM.length
+                && Arrays.equals(bytes, 0, UTF8_BOM.length, UTF8_BOM, 0, UTF8_BOM.length);
     }
 
-    private void writeNewLine(BufferedWriter bufferedWriter, String[] line) throws IOException {
-        bufferedWriter.write(String.join(COMMA_DELIMITER, line));
-        bufferedWriter.newLine();
+    private static class CsvSplitSession extends SplitSession implements WriterCache.WriterFactory<OutputStream> {
+
+        private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+        private final WriterCache<OutputStream> writerCache;
+        private final byte[] headerLine;
+        private final boolean rawRecords;
+        private final FieldBuffer field = new FieldBuffer();
+
+        private CsvSplitSession(String outputDirectory, String[] headers, byte[] headerLine, boolean rawRecords,
+                                int maxOpenWriters, SplitMetrics splitMetrics, CompressionStage compressionStage,
+                                WriteBufferManager writeBufferManager) {
+            super(outputDirectory, headers, splitMetrics, compressionStage, writeBufferManager);
+            this.writerCache = new WriterCache<>(maxOpenWriters, this);
+            this.headerLine = headerLine;
+            this.rawRecords = rawRecords;
+        }
+
+        @Override
+        protected void writeInvoice(CsvRecord line, String buyer) throws IOException {
+            OutputStream outputStream = this.writerCache.get(buyer);
+            if(this.invoiceIndex == null) {
+                this.writeNewLine(outputStream, line);
+                return;
+            }
+            long offset = getPosition(outputStream);
+            this.writeNewLine(outputStream, line);
+            this.invoiceIndex.add(buyer, line, offset, getPosition(outputStream) - offset);
+        }
+
+        @Override
+        protected void finalizeWriters() throws IOException {
+            try {
+                this.writerCache.finishAll();
+            } finally {
+                this.splitMetrics.recordWriterCache(this.writerCache);
+            }
+        }
+
+        @Override
+        protected void abortWriters() throws IOException {
+            try {
+                this.writerCache.closeAll();
+            } finally {
+                this.splitMetrics.recordWriterCache(this.writerCache);
+            }
+        }
+
+        @Override
+        protected int getBuyerCount() {
+            return this.writerCache.getWriterCount();
+        }
+
+        @Override
+        protected Collection<String> getBuyers() {
+            return this.writerCache.getKeys();
+        }
+
+        @Override
+        protected String getBuyerFileName(String buyer) {
+            return buyer + CSV_EXTENSION;
+        }
+
+        @Override
+        protected void finishWriter(String buyer) throws IOException {
+            this.writerCache.finish(buyer);
+        }
+
+        @Override
+        protected void suspendWriters() throws IOException {
+            this.writerCache.suspendAll();
+        }
+
+        @Override
+        protected void restoreWriters(Collection<String> buyers) {
+            this.writerCache.restore(buyers);
+        }
+
+        /**
+         * Rows are only appended under the same header, line terminator aside. Compressed files
+         * are not checked.
+         */
+        @Override
+        protected long getContinuedLength(File file) throws IOException {
+            if(!this.compressionStage.isCompressed()) {
+                int headerLength = this.headerLine.length;
+                while (headerLength > 0 && (this.headerLine[headerLength - 1] == '\n' || this.headerLine[headerLength - 1] == '\r')) {
+                    headerLength--;
+                }
+                byte[] fileHeader = new byte[headerLength + 1];
+                int read;
+                try (InputStream inputStream = new FileInputStream(file)) {
+                    read = inputStream.readNBytes(fileHeader, 0, fileHeader.length);
+                }
+                if(read != fileHeader.length || !Arrays.equals(fileHeader, 0, headerLength, this.headerLine, 0, headerLength)
+                        || (fileHeader[headerLength] != '\n' && fileHeader[headerLength] != '\r')) {
+                    throw new RuntimeException(String.format(HEADER_CHANGED_MESSAGE, file.getName()));
+                }
+            }
+            return file.length();
+        }
+
+        @Override
+        public OutputStream open(String buyer, boolean reopen) throws IOException {
+            OutputStream outputStream = this.openOutputStream(buyer, reopen);
+            this.splitMetrics.writerOpened();
+            if(!reopen) {
+                outputStream.write(this.headerLine);
+            }
+            return outputStream;
+        }
+
+        @Override
+        public void suspend(String buyer, OutputStream writer) throws IOException {
+            this.splitMetrics.writerClosed();
+            writer.close();
+        }
+
+        @Override
+        public void finish(String buyer, OutputStream writer) throws IOException {
+            this.splitMetrics.writerClosed();
+            writer.flush();
+            writer.close();
+        }
+
+        // Fields are copied as raw UTF-8 bytes, only the buyer column is ever decoded
+        private void writeNewLine(OutputStream outputStream, CsvRecord line) throws IOException {
+            if(this.rawRecords) {
+                line.writeRawTo(outputStream);
+                return;
+            }
+            this.field.writeRecordTo(line, outputStream);
+            outputStream.write(LINE_SEPARATOR);
+        }
     }
 }
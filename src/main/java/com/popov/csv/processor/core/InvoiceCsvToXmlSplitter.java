@@ -1,126 +1,451 @@
 package com.popov.csv.processor.core;
 
 import com.popov.csv.processor.config.OutputDirectoryResolver;
+import com.popov.csv.processor.config.ThreadMode;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.ThreadPoolExecutor;
 
 @Component
-@ConditionalOnProperty(prefix = "output.file", name = "format", havingValue = "xml")
 public class InvoiceCsvToXmlSplitter extends InvoiceCsvSplitter {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(InvoiceCsvToXmlSplitter.class);
 
+    static final String XML_FORMAT = "xml";
+
     private static final String INVOICES_ELEMENT = "invoices";
     private static final String INVOICE_ELEMENT = "invoice";
     private static final String XML_EXTENSION = ".xml";
+    private static final String INVOICES_END_TAG = "</" + INVOICES_ELEMENT + ">";
 
     private static final String INVALID_IMAGE_COLUMN_MESSAGE = "Invalid value in invoice_image column.";
+    private static final String MISSING_FIELDS_REASON = "Row has %d of %d fields.";
     private static final String ERROR_FINALIZING_XMLSTREAM_MESSAGE = "Error finalizing XMLStreamWriter.";
+    private static final String COMPRESSED_APPEND_MESSAGE = "Compressed xml files cannot be appended to.";
+    private static final String UNFINISHED_FILE_MESSAGE = "Buyer file %s does not end with " + INVOICES_END_TAG + ".";
+    private static final String IMAGE_STORE_UNAVAILABLE_MESSAGE = "Image store {} is unavailable, images are decoded without it.";
+
+    private static final String IMAGE_THREAD_PREFIX = "image-";
+
+    private static final int IMAGE_BUFFER_SIZE = 64 * 1024;
+
+    private static final int DEFAULT_IMAGE_QUEUE_CAPACITY = 64;
+    private static final long DEFAULT_IMAGE_STORE_MAX_BYTES = 1024L * 1024 * 1024;
+
+    /**
+     * Worker threads decoding and writing images, shared by all runs of the splitter, 0 means
+     * one per available core.
+     */
+    @Value("${output.image.threads:0}")
+    protected int imageThreads = 0;
+
+    /**
+     * Images of one run waiting for a worker before its row loop blocks.
+     */
+    @Value("${output.image.queue-capacity:" + DEFAULT_IMAGE_QUEUE_CAPACITY + "}")
+    protected int imageQueueCapacity = DEFAULT_IMAGE_QUEUE_CAPACITY;
+
+    /**
+     * Directory of the {@link ImageStore} shared by all runs, empty disables it.
+     */
+    @Value("${output.image.store.directory:}")
+    protected String imageStoreDirectory = "";
 
-    private XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newFactory();
-    private Map<String, XMLStreamWriter> writerMap = new HashMap<>();
-    private Set<FileWriter> writerSet = new HashSet<>();
+    /**
+     * Bytes of decoded images the store keeps before it evicts the least recently used ones.
+     */
+    @Value("${output.image.store.max-bytes:" + DEFAULT_IMAGE_STORE_MAX_BYTES + "}")
+    protected long imageStoreMaxBytes = DEFAULT_IMAGE_STORE_MAX_BYTES;
+
+    private ImageStore imageStore;
+
+    private ThreadPoolExecutor imageExecutor;
 
     public InvoiceCsvToXmlSplitter(OutputDirectoryResolver outputDirectoryResolver) {
-        super(outputDirectoryResolver);
+        super(outputDirectoryResolver, XML_FORMAT);
     }
 
     @Override
-    protected void initializeWriters() {
-        this.xmlOutputFactory = XMLOutputFactory.newFactory();
-        this.writerMap = new HashMap<>();
-        this.writerSet = new HashSet<>();
+    protected SplitSession createSession(String outputDirectory, String[] headers, CsvRecord headerRecord) {
+        ThreadPoolExecutor executor = this.getImageExecutor();
+        ImageWriterPipeline imageWriterPipeline = new ImageWriterPipeline(executor,
+                executor.getMaximumPoolSize() + Math.max(0, this.imageQueueCapacity));
+        return new XmlSplitSession(outputDirectory, headers, this.maxOpenWriters, imageWriterPipeline, this.getImageStore(),
+                this.splitMetrics, this.createCompressionStage(), this.createWriteBufferManager());
     }
 
     @Override
-    protected void writeInvoice(String[] line, String[] headers, String buyer) throws IOException {
-        try {
-            if(!this.writerMap.containsKey(buyer)) {
-                XMLStreamWriter xmlStreamWriter = createXMLStreamWriter(buyer);
-                this.writerMap.put(buyer, xmlStreamWriter);
+    protected String getBuyerFileName(String buyer) {
+        return buyer + XML_EXTENSION;
+    }
 
-                xmlStreamWriter.writeStartDocument();
-                xmlStreamWriter.writeStartElement(INVOICES_ELEMENT);
-            }
+    private synchronized ThreadPoolExecutor getImageExecutor() {
+        if(this.imageExecutor == null) {
+            int threads = this.imageThreads > 0 ? this.imageThreads : Runtime.getRuntime().availableProcessors();
+            this.imageExecutor = newWorkerPool(threads, IMAGE_THREAD_PREFIX, ThreadMode.of(this.threadMode));
+        }
+        return this.imageExecutor;
+    }
 
-            XMLStreamWriter xmlStreamWriter = this.writerMap.get(buyer);
-            this.writeNewRow(xmlStreamWriter, line, headers);
-        } catch (XMLStreamException e) {
-            throw new IOException(e);
+    /**
+     * Opens the image store on first use. Runs go without it while it cannot be opened.
+     */
+    private synchronized ImageStore getImageStore() {
+        if(this.imageStore == null && StringUtils.isNotBlank(this.imageStoreDirectory)) {
+            try {
+                this.imageStore = new ImageStore(Paths.get(this.imageStoreDirectory), this.imageStoreMaxBytes);
+            } catch (IOException e) {
+                LOGGER.warn(IMAGE_STORE_UNAVAILABLE_MESSAGE, this.imageStoreDirectory, e);
+            }
         }
+        return this.imageStore;
     }
 
-    @Override
-    protected void finalizeWriters() throws IOException {
-        for (XMLStreamWriter writer: this.writerMap.values()) {
+    /**
+     * Writer of one buyer file. {@code rootOpen} is false for writers that continue a file
+     * after an eviction, their StAX writer does not know about the enclosing invoices element.
+     * {@code outputStream} is the byte stream below {@code fileWriter}.
+     */
+    private record XmlBuyerWriter(OutputStream outputStream, Writer fileWriter, XMLStreamWriter xmlStreamWriter, boolean rootOpen) {
+    }
+
+    private static class XmlSplitSession extends SplitSession implements WriterCache.WriterFactory<XmlBuyerWriter> {
+
+        private final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newFactory();
+        private final WriterCache<XmlBuyerWriter> writerCache;
+        private final ImageWriterPipeline imageWriterPipeline;
+        private final ImageStore imageStore;
+        private final Base64Validator base64Validator = new Base64Validator();
+
+        private XmlSplitSession(String outputDirectory, String[] headers, int maxOpenWriters,
+                                ImageWriterPipeline imageWriterPipeline, ImageStore imageStore, SplitMetrics splitMetrics,
+                                CompressionStage compressionStage, WriteBufferManager writeBufferManager) {
+            super(outputDirectory, headers, splitMetrics, compressionStage, writeBufferManager);
+            this.writerCache = new WriterCache<>(maxOpenWriters, this);
+            this.imageWriterPipeline = imageWriterPipeline;
+            this.imageStore = imageStore;
+        }
+
+        @Override
+        protected void writeInvoice(CsvRecord line, String buyer) throws IOException {
             try {
-                writer.writeEndDocument();
-                writer.flush();
-                writer.close();
+                XmlBuyerWriter writer = this.writerCache.get(buyer);
+                if(this.invoiceIndex == null) {
+                    this.writeNewRow(writer.xmlStreamWriter(), line);
+                    return;
+                }
+                // Flushing stops at the position stream, the row reaches the write buffer but not the disk
+                writer.xmlStreamWriter().flush();
+                long offset = getPosition(writer.outputStream());
+                this.writeNewRow(writer.xmlStreamWriter(), line);
+                writer.xmlStreamWriter().flush();
+                this.invoiceIndex.add(buyer, line, offset, getPosition(writer.outputStream()) - offset);
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+
+        /**
+         * Rows need a field for every element and an image that decodes. Images are decoded
+         * after their invoice element is written, too late to leave the row out, so the image
+         * field is read once more up front, from its spill file when it was spilled.
+         */
+        @Override
+        protected String validate(CsvRecord line) throws IOException {
+            if(line.size() < this.headers.length) {
+                return String.format(MISSING_FIELDS_REASON, line.size(), this.headers.length);
+            }
+            if(this.hasImage(line) && !this.base64Validator.isValid(line, this.invoiceImageIndex)) {
+                return INVALID_IMAGE_COLUMN_MESSAGE;
+            }
+            return null;
+        }
+
+        @Override
+        protected void finalizeWriters() throws IOException {
+            try {
+                this.imageWriterPipeline.await();
+            } finally {
+                this.splitMetrics.recordFailedRows(this.imageWriterPipeline.getFailedImageCount());
+                try {
+                    this.writerCache.finishAll();
+                } finally {
+                    this.splitMetrics.recordWriterCache(this.writerCache);
+                }
+            }
+        }
+
+        @Override
+        protected void abortWriters() throws IOException {
+            try {
+                this.imageWriterPipeline.await();
+            } finally {
+                try {
+                    this.writerCache.closeAll();
+                } finally {
+                    this.splitMetrics.recordWriterCache(this.writerCache);
+                }
+            }
+        }
+
+        @Override
+        protected int getBuyerCount() {
+            return this.writerCache.getWriterCount();
+        }
+
+        @Override
+        protected Collection<String> getBuyers() {
+            return this.writerCache.getKeys();
+        }
+
+        @Override
+        protected String getBuyerFileName(String buyer) {
+            return buyer + XML_EXTENSION;
+        }
+
+        @Override
+        protected void finishWriter(String buyer) throws IOException {
+            this.writerCache.finish(buyer);
+        }
+
+        @Override
+        protected void suspendWriters() throws IOException {
+            this.imageWriterPipeline.drain();
+            this.writerCache.suspendAll();
+        }
+
+        @Override
+        protected void restoreWriters(Collection<String> buyers) {
+            this.writerCache.restore(buyers);
+        }
+
+        /**
+         * Cuts the closing invoices tag off, the next invoice elements go in its place and the
+         * tag is written again when the file is finished.
+         */
+        @Override
+        protected long getContinuedLength(File file) throws IOException {
+            if(this.compressionStage.isCompressed()) {
+                throw new IllegalStateException(COMPRESSED_APPEND_MESSAGE);
+            }
+            byte[] endTag = INVOICES_END_TAG.getBytes(StandardCharsets.UTF_8);
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long length = fileChannel.size();
+                ByteBuffer tail = ByteBuffer.allocate(endTag.length);
+                int read = length >= endTag.length ? fileChannel.read(tail, length - endTag.length) : 0;
+                if(read != endTag.length || !Arrays.equals(tail.array(), endTag)) {
+                    throw new IOException(String.format(UNFINISHED_FILE_MESSAGE, file.getName()));
+                }
+                return length - endTag.length;
+            }
+        }
+
+        @Override
+        public XmlBuyerWriter open(String buyer, boolean reopen) throws IOException {
+            try {
+                XmlBuyerWriter writer = this.createXMLStreamWriter(buyer, reopen);
+                this.splitMetrics.writerOpened();
+                if(!reopen) {
+                    writer.xmlStreamWriter().writeStartDocument();
+                    writer.xmlStreamWriter().writeStartElement(INVOICES_ELEMENT);
+                    if(this.invoiceIndex != null) {
+                        // Closes the start tag, so the first invoice starts at its own tag
+                        writer.xmlStreamWriter().writeCharacters("");
+                    }
+                }
+                return writer;
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void suspend(String buyer, XmlBuyerWriter writer) throws IOException {
+            // The last event written is always a closed invoice element, so the file can be
+            // continued later by appending further invoice elements to it.
+            this.splitMetrics.writerClosed();
+            try {
+                writer.xmlStreamWriter().flush();
+                writer.xmlStreamWriter().close();
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+            writer.fileWriter().close();
+        }
+
+        @Override
+        public void finish(String buyer, XmlBuyerWriter writer) throws IOException {
+            this.splitMetrics.writerClosed();
+            try {
+                if(writer.rootOpen()) {
+                    writer.xmlStreamWriter().writeEndDocument();
+                }
+                writer.xmlStreamWriter().flush();
+                writer.xmlStreamWriter().close();
             } catch (XMLStreamException e) {
                 LOGGER.error(ERROR_FINALIZING_XMLSTREAM_MESSAGE);
                 throw new IOException(e);
             }
+
+            if(!writer.rootOpen()) {
+                writer.fileWriter().write(INVOICES_END_TAG);
+            }
+            writer.fileWriter().close();
         }
 
-        for (FileWriter writer: this.writerSet) {
-            writer.close();
+        @Override
+        public void finishEvicted(String buyer) throws IOException {
+            try(Writer fileWriter = this.createFileWriter(buyer, true)) {
+                fileWriter.write(INVOICES_END_TAG);
+            }
         }
-    }
 
-    private void writeNewRow(XMLStreamWriter xmlStreamWriter, String[] line, String[] headers) throws XMLStreamException, IOException {
-        xmlStreamWriter.writeStartElement(INVOICE_ELEMENT);
-        for (int i = 0; i < headers.length; i++) {
-            if(i == invoiceImageIndex && isValidIndex(imageNameIndex, line) && isValidIndex(invoiceImageIndex, line)) {
-                this.writeImageToFile(line[imageNameIndex], line[invoiceImageIndex]);
-            } else {
-                this.writeNewRowItem(xmlStreamWriter, headers[i], line[i]);
+        private void writeNewRow(XMLStreamWriter xmlStreamWriter, CsvRecord line) throws XMLStreamException, IOException {
+            xmlStreamWriter.writeStartElement(INVOICE_ELEMENT);
+            for (int i = 0; i < this.headers.length; i++) {
+                if(i == this.invoiceImageIndex && isValidIndex(this.imageNameIndex, line) && isValidIndex(this.invoiceImageIndex, line)) {
+                    this.writeImageToFile(line);
+                } else {
+                    this.writeNewRowItem(xmlStreamWriter, this.headers[i], line.get(i));
+                }
             }
+            xmlStreamWriter.writeEndElement();
         }
-        xmlStreamWriter.writeEndElement();
-    }
 
-    private void writeNewRowItem(XMLStreamWriter xmlStreamWriter, String header, String value) throws XMLStreamException {
-        xmlStreamWriter.writeStartElement(header);
-        xmlStreamWriter.writeCharacters(value);
-        xmlStreamWriter.writeEndElement();
-    }
+        private void writeNewRowItem(XMLStreamWriter xmlStreamWriter, String header, String value) throws XMLStreamException {
+            xmlStreamWriter.writeStartElement(header);
+            xmlStreamWriter.writeCharacters(value);
+            xmlStreamWriter.writeEndElement();
+        }
 
-    private void writeImageToFile(String fileName, String content) throws IOException {
-        if(StringUtils.isNotEmpty(fileName) && StringUtils.isNotEmpty(content)) {
-            byte[] binaryData = this.decodeBase64(content);
-            File file = this.createFile(fileName);
-            try( FileOutputStream fos = new FileOutputStream(file)) {
-                fos.write(binaryData);
+        /**
+         * Streams the base64 image column through the decoder into the image file, so neither
+         * the encoded field nor the decoded image is ever held on the heap as a whole.
+         */
+        private void writeImageToFile(CsvRecord line) throws IOException {
+            if(this.hasImage(line)) {
+                String fileName = line.get(this.imageNameIndex);
+                InputStream content = line.openField(this.invoiceImageIndex);
+                try {
+                    this.imageWriterPipeline.submit(fileName, () -> this.writeImage(content, fileName));
+                } catch (IOException | RuntimeException e) {
+                    content.close();
+                    throw e;
+                }
             }
         }
-    }
 
-    private XMLStreamWriter createXMLStreamWriter(String fileName) throws IOException, XMLStreamException {
-        File newFile = this.createFile(fileName + XML_EXTENSION);
-        FileWriter fileWriter = new FileWriter(newFile);
-        this.writerSet.add(fileWriter);
-        return this.xmlOutputFactory.createXMLStreamWriter(fileWriter);
-    }
+        private boolean hasImage(CsvRecord line) {
+            return isValidIndex(this.imageNameIndex, line) && isValidIndex(this.invoiceImageIndex, line)
+                    && !line.isEmpty(this.imageNameIndex) && !line.isEmpty(this.invoiceImageIndex);
+        }
+
+        private void writeImage(InputStream content, String fileName) throws IOException {
+            long start = System.nanoTime();
+            try {
+                if(this.imageStore == null) {
+                    this.decodeBase64ToFile(content, this.createFile(fileName));
+                } else {
+                    this.storeImage(content, this.createFile(fileName).toPath());
+                }
+            } finally {
+                this.splitMetrics.recordImageWrite(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Links the image file to the store entry of its base64 text. An image missing from the
+         * store is decoded into it first. Fields held in memory are hashed before decoding, so
+         * a known image is not decoded at all; spilled fields are hashed while they are decoded.
+         */
+        private void storeImage(InputStream content, Path file) throws IOException {
+            String key = null;
+            if(content.markSupported()) {
+                content.mark(Integer.MAX_VALUE);
+                key = ImageStore.keyOf(content);
+                if(this.imageStore.linkTo(key, file)) {
+                    content.close();
+                    this.splitMetrics.recordImageStoreHit();
+                    return;
+                }
+                content.reset();
+            }
+
+            MessageDigest digest = ImageStore.newDigest();
+            Path decodedFile = this.imageStore.createTemporaryFile();
+            boolean stored = false;
+            try {
+                this.decodeBase64ToFile(key == null ? new DigestInputStream(content, digest) : content, decodedFile.toFile());
+                this.imageStore.add(key == null ? ImageStore.keyOf(digest) : key, decodedFile, file);
+                this.splitMetrics.recordImageStoreMiss();
+                stored = true;
+            } finally {
+                if(!stored) {
+                    content.close();
+                    Files.deleteIfExists(decodedFile);
+                }
+            }
+        }
+
+        private void decodeBase64ToFile(InputStream content, File file) throws IOException {
+            boolean written = false;
+            try (InputStream decoded = Base64.getDecoder().wrap(content);
+                 OutputStream fos = new BufferedOutputStream(new CountingOutputStream(new FileOutputStream(file), this.splitMetrics), IMAGE_BUFFER_SIZE)) {
+                byte[] chunk = new byte[IMAGE_BUFFER_SIZE];
+                int read;
+                while ((read = this.readBase64(decoded, chunk)) >= 0) {
+                    fos.write(chunk, 0, read);
+                }
+                written = true;
+            } finally {
+                if(!written) {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+        }
 
-    private byte[] decodeBase64(String base64) {
-        try {
-            return Base64.getDecoder().decode(base64);
-        } catch (IllegalArgumentException e) {
-            LOGGER.error(INVALID_IMAGE_COLUMN_MESSAGE);
-            throw new RuntimeException(INVALID_IMAGE_COLUMN_MESSAGE, e);
+        private XmlBuyerWriter createXMLStreamWriter(String fileName, boolean append) throws IOException, XMLStreamException {
+            OutputStream outputStream = this.openOutputStream(fileName, append);
+            Writer fileWriter = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+            return new XmlBuyerWriter(outputStream, fileWriter, this.xmlOutputFactory.createXMLStreamWriter(fileWriter), !append);
+        }
+
+        private Writer createFileWriter(String buyer, boolean append) throws IOException {
+            return new OutputStreamWriter(this.openOutputStream(buyer, append), StandardCharsets.UTF_8);
+        }
+
+        private int readBase64(InputStream decoded, byte[] chunk) {
+            try {
+                return decoded.read(chunk);
+            } catch (IOException e) {
+                LOGGER.error(INVALID_IMAGE_COLUMN_MESSAGE);
+                throw new RuntimeException(INVALID_IMAGE_COLUMN_MESSAGE, e);
+            }
         }
     }
 }
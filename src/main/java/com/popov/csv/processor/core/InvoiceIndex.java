@@ -0,0 +1,303 @@
+package com.popov.csv.processor.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Secondary index of the rows of every buyer file, by the value of a key column such as an
+ * invoice number. For each key column and buyer file, {@value #INDEX_DIRECTORY} holds entries
+ * of the 64-bit hash of the value, the offset of the row in the file, its length and the
+ * position of the value in a keys file next to the index, sorted by hash. A lookup is a binary
+ * search of the index, then the stored value of each entry of that hash is compared, so two
+ * values of the same hash are told apart without reading the rows. Rows of the same value are
+ * found in the order they were written, the first one wins.
+ * <p>
+ * The sessions report the position of every row they write; the entries are written once
+ * the buyer files are complete. Entries an earlier run left for a buyer file that this run
+ * continued are kept where they end before the first row of this run. Not thread-safe, an
+ * instance belongs to a single {@link SplitSession}; {@link #find} may run at any time.
+ */
+final class InvoiceIndex {
+
+    static final String INDEX_DIRECTORY = ".index";
+
+    private static final String INDEX_EXTENSION = ".idx";
+    private static final String KEYS_EXTENSION = ".keys";
+    private static final String TEMPORARY_EXTENSION = ".tmp";
+    private static final int ENTRY_LONGS = 4;
+    private static final int ENTRY_SIZE = ENTRY_LONGS * Long.BYTES;
+    private static final int INDEX_BUFFER_SIZE = 64 * 1024;
+
+    private final SplitSession session;
+    private final List<String> columns;
+    private final int[] columnIndices;
+    private final Path indexDirectory;
+    private final Map<String, Entries[]> buyerEntries = new HashMap<>();
+    private final RowKeyHasher rowKeyHasher = new RowKeyHasher();
+    private final ByteArrayOutputStream keyBuffer = new ByteArrayOutputStream();
+
+    /**
+     * @param columns headers of the key columns; the ones missing from the input are not indexed
+     */
+    InvoiceIndex(SplitSession session, List<String> columns) {
+        List<String> headers = Arrays.asList(session.headers);
+        this.session = session;
+        this.columns = columns.stream().map(String::trim).filter(headers::contains).toList();
+        this.columnIndices = this.columns.stream().mapToInt(headers::indexOf).toArray();
+        this.indexDirectory = Paths.get(session.outputDirectory, INDEX_DIRECTORY);
+    }
+
+    /**
+     * Records the row of {@code buyer} written at {@code offset} of its file. Rows with an
+     * empty key are left out of the index of that column.
+     */
+    void add(String buyer, CsvRecord line, long offset, long length) throws IOException {
+        Entries[] entries = this.buyerEntries.computeIfAbsent(buyer, key -> new Entries[this.columnIndices.length]);
+        for (int i = 0; i < this.columnIndices.length; i++) {
+            int columnIndex = this.columnIndices[i];
+            if (columnIndex >= line.size() || line.isEmpty(columnIndex)) {
+                continue;
+            }
+            this.rowKeyHasher.reset();
+            this.rowKeyHasher.addField(line, columnIndex);
+            this.keyBuffer.reset();
+            line.writeTo(columnIndex, this.keyBuffer);
+            if (entries[i] == null) {
+                entries[i] = new Entries();
+            }
+            entries[i].add(this.rowKeyHasher.getHash(), offset, length, this.keyBuffer);
+        }
+    }
+
+    /**
+     * Writes the index files of every buyer file written to, each replaced at once, and returns
+     * the number of entries added.
+     */
+    long write() throws IOException {
+        long added = 0;
+        for (Map.Entry<String, Entries[]> buyer : this.buyerEntries.entrySet()) {
+            String buyerFileName = this.session.getBuyerFileName(buyer.getKey());
+            for (int i = 0; i < this.columns.size(); i++) {
+                Entries entries = buyer.getValue()[i];
+                if (entries == null) {
+                    continue;
+                }
+                added += entries.count;
+                Path indexFile = this.indexDirectory.resolve(this.columns.get(i)).resolve(buyerFileName + INDEX_EXTENSION);
+                Path keysFile = keysFileOf(indexFile);
+                if (Files.isRegularFile(indexFile) && Files.isRegularFile(keysFile)) {
+                    entries.addEarlier(indexFile, keysFile);
+                }
+                entries.sort();
+                writeEntries(indexFile, keysFile, entries);
+            }
+        }
+        this.buyerEntries.clear();
+        return added;
+    }
+
+    /**
+     * Looks {@code key} up in the index of {@code column} for the buyer file {@code buyerFileName}
+     * in {@code outputDirectory}. Empty when there is no such index or no row of that key.
+     */
+    static Optional<InvoiceLocation> find(Path outputDirectory, String column, String buyerFileName, String key) throws IOException {
+        Path buyerFile = outputDirectory.resolve(buyerFileName);
+        Path indexFile = outputDirectory.resolve(INDEX_DIRECTORY).resolve(column).resolve(buyerFileName + INDEX_EXTENSION);
+        Path keysFile = keysFileOf(indexFile);
+        if (!Files.isRegularFile(indexFile) || !Files.isRegularFile(keysFile) || !Files.isRegularFile(buyerFile)) {
+            return Optional.empty();
+        }
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        RowKeyHasher rowKeyHasher = new RowKeyHasher();
+        rowKeyHasher.addField(keyBytes);
+        long hash = rowKeyHasher.getHash();
+        try (FileChannel fileChannel = FileChannel.open(indexFile, StandardOpenOption.READ);
+             FileChannel keysChannel = FileChannel.open(keysFile, StandardOpenOption.READ)) {
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+            // First entry whose hash is not below the key
+            long entryCount = fileChannel.size() / ENTRY_SIZE;
+            long low = 0;
+            long high = entryCount;
+            while (low < high) {
+                long middle = (low + high) >>> 1;
+                if (Long.compare(readFully(fileChannel, middle * ENTRY_SIZE, entry).getLong(0), hash) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            ByteBuffer storedKey = ByteBuffer.allocate(Integer.BYTES + keyBytes.length);
+            for (long i = low; i < entryCount && readFully(fileChannel, i * ENTRY_SIZE, entry).getLong(0) == hash; i++) {
+                if (isKey(keysChannel, entry.getLong(3 * Long.BYTES), storedKey, keyBytes)) {
+                    return Optional.of(new InvoiceLocation(buyerFile, entry.getLong(Long.BYTES), entry.getLong(2 * Long.BYTES)));
+                }
+            }
+            return Optional.empty();
+        }
+    }
+
+    // The stored key is its length followed by its bytes, a longer one never fits the buffer
+    private static boolean isKey(FileChannel keysChannel, long position, ByteBuffer storedKey, byte[] keyBytes) throws IOException {
+        if (position + storedKey.capacity() > keysChannel.size()) {
+            return false;
+        }
+        readFully(keysChannel, position, storedKey);
+        return storedKey.getInt(0) == keyBytes.length
+                && Arrays.equals(storedKey.array(), Integer.BYTES, storedKey.capacity(), keyBytes, 0, keyBytes.length);
+    }
+
+    private static Path keysFileOf(Path indexFile) {
+        return indexFile.resolveSibling(indexFile.getFileName() + KEYS_EXTENSION);
+    }
+
+    private static ByteBuffer readFully(FileChannel fileChannel, long position, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Writes the keys in the order of the sorted entries, pointing the entries at their new
+     * position, then the entries. The keys file is replaced first, an index read in between
+     * finds keys that do not match and misses rather than answering with the wrong row.
+     */
+    private static void writeEntries(Path indexFile, Path keysFile, Entries entries) throws IOException {
+        Files.createDirectories(indexFile.getParent());
+        ByteBuffer keys = ByteBuffer.wrap(entries.keyBytes.toByteArray());
+        Path temporaryKeysFile = keysFile.resolveSibling(keysFile.getFileName() + TEMPORARY_EXTENSION);
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temporaryKeysFile), INDEX_BUFFER_SIZE))) {
+            for (int i = 0; i < entries.count; i++) {
+                int position = (int) entries.values[i * ENTRY_LONGS + 3];
+                entries.values[i * ENTRY_LONGS + 3] = outputStream.size();
+                outputStream.write(keys.array(), position, Integer.BYTES + keys.getInt(position));
+            }
+        }
+        Path temporaryFile = indexFile.resolveSibling(indexFile.getFileName() + TEMPORARY_EXTENSION);
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temporaryFile), INDEX_BUFFER_SIZE))) {
+            for (int i = 0; i < entries.count * ENTRY_LONGS; i++) {
+                outputStream.writeLong(entries.values[i]);
+            }
+        }
+        Files.move(temporaryKeysFile, keysFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(temporaryFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Entries of one index file as hash, offset, length and key position quadruples. Until they
+     * are written, the keys are kept length first in {@code keyBytes}.
+     */
+    private static final class Entries {
+
+        private long[] values = new long[16 * ENTRY_LONGS];
+        private int count;
+        private long firstOffset = Long.MAX_VALUE;
+        private final ByteArrayOutputStream keyBytes = new ByteArrayOutputStream();
+        private final DataOutputStream keys = new DataOutputStream(this.keyBytes);
+
+        private void add(long hash, long offset, long length, ByteArrayOutputStream key) throws IOException {
+            if (this.count * ENTRY_LONGS == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.values.length * 2);
+            }
+            int i = this.count++ * ENTRY_LONGS;
+            this.values[i] = hash;
+            this.values[i + 1] = offset;
+            this.values[i + 2] = length;
+            this.values[i + 3] = this.keys.size();
+            this.keys.writeInt(key.size());
+            key.writeTo(this.keys);
+            this.firstOffset = Math.min(this.firstOffset, offset);
+        }
+
+        // Entries of rows past the first one of this run belong to a file that was rewritten.
+        // Keys are written in the order of the entries, so both files are read alongside.
+        private void addEarlier(Path indexFile, Path keysFile) throws IOException {
+            long earlierCount = Files.size(indexFile) / ENTRY_SIZE;
+            long firstOffset = this.firstOffset;
+            ByteArrayOutputStream key = new ByteArrayOutputStream();
+            try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(indexFile), INDEX_BUFFER_SIZE));
+                 DataInputStream keysInputStream = new DataInputStream(new BufferedInputStream(
+                         Files.newInputStream(keysFile), INDEX_BUFFER_SIZE))) {
+                for (long i = 0; i < earlierCount; i++) {
+                    long hash = inputStream.readLong();
+                    long offset = inputStream.readLong();
+                    long length = inputStream.readLong();
+                    inputStream.readLong();
+                    key.reset();
+                    key.write(keysInputStream.readNBytes(keysInputStream.readInt()));
+                    if (offset + length <= firstOffset) {
+                        this.add(hash, offset, length, key);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Heap sort by hash, then offset, which needs no boxed entries nor extra memory.
+         */
+        private void sort() {
+            for (int i = this.count / 2 - 1; i >= 0; i--) {
+                this.siftDown(i, this.count);
+            }
+            for (int end = this.count - 1; end > 0; end--) {
+                this.swap(0, end);
+                this.siftDown(0, end);
+            }
+        }
+
+        private void siftDown(int parent, int end) {
+            while (true) {
+                int child = 2 * parent + 1;
+                if (child >= end) {
+                    return;
+                }
+                if (child + 1 < end && this.compare(child + 1, child) > 0) {
+                    child++;
+                }
+                if (this.compare(child, parent) <= 0) {
+                    return;
+                }
+                this.swap(parent, child);
+                parent = child;
+            }
+        }
+
+        private int compare(int a, int b) {
+            int byHash = Long.compare(this.values[a * ENTRY_LONGS], this.values[b * ENTRY_LONGS]);
+            return byHash != 0 ? byHash : Long.compare(this.values[a * ENTRY_LONGS + 1], this.values[b * ENTRY_LONGS + 1]);
+        }
+
+        private void swap(int a, int b) {
+            for (int i = 0; i < ENTRY_LONGS; i++) {
+                long value = this.values[a * ENTRY_LONGS + i];
+                this.values[a * ENTRY_LONGS + i] = this.values[b * ENTRY_LONGS + i];
+                this.values[b * ENTRY_LONGS + i] = value;
+            }
+        }
+    }
+}
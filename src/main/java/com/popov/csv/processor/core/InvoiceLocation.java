@@ -0,0 +1,37 @@
+package com.popov.csv.processor.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Where the {@link InvoiceIndex} found an invoice: {@code length} bytes at {@code offset} of a
+ * buyer file, a CSV line or an {@code invoice} element.
+ */
+public record InvoiceLocation(Path file, long offset, long length) {
+
+    private static final String FILE_TOO_SHORT_MESSAGE = "Buyer file %s is shorter than its index.";
+
+    /**
+     * Copies the invoice to {@code outputStream} straight from the file channel, without reading
+     * the rest of the file.
+     */
+    public void transferTo(OutputStream outputStream) throws IOException {
+        WritableByteChannel target = Channels.newChannel(outputStream);
+        try (FileChannel fileChannel = FileChannel.open(this.file, StandardOpenOption.READ)) {
+            long transferred = 0;
+            while (transferred < this.length) {
+                long count = fileChannel.transferTo(this.offset + transferred, this.length - transferred, target);
+                if (count <= 0) {
+                    throw new EOFException(String.format(FILE_TOO_SHORT_MESSAGE, this.file.getFileName()));
+                }
+                transferred += count;
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.popov.csv.processor.core;
+
+import com.opencsv.exceptions.CsvValidationException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Worker running in the JVM of the coordinator. Every partition is split by the same
+ * {@link InvoiceCsvSplitter} into a run directory of its own.
+ */
+public class LocalSplitWorker implements SplitWorker {
+
+    private final String name;
+    private final InvoiceCsvSplitter invoiceCsvSplitter;
+
+    public LocalSplitWorker(String name, InvoiceCsvSplitter invoiceCsvSplitter) {
+        this.name = name;
+        this.invoiceCsvSplitter = invoiceCsvSplitter;
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public String split(InputStream partition, SplitOptions options) throws IOException, CsvValidationException {
+        SplitProgress progress = new SplitProgress();
+        this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(partition, progress, options);
+        return progress.getOutputDirectory();
+    }
+}
@@ -0,0 +1,46 @@
+package com.popov.csv.processor.core;
+
+import com.opencsv.CSVReader;
+import com.opencsv.exceptions.CsvValidationException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link RecordReader} backed by opencsv. Slower than {@link ByteCsvRecordReader} because every
+ * field becomes a String, but it also understands backslash escapes.
+ */
+public class OpenCsvRecordReader implements RecordReader {
+
+    private static final String SKIP_UNSUPPORTED_MESSAGE = "The opencsv reader does not track input offsets "
+            + "and cannot resume a split, resume it with input.reader set to bytes.";
+
+    private final CSVReader csvReader;
+
+    public OpenCsvRecordReader(InputStream inputStream) {
+        this.csvReader = new CSVReader(new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public CsvRecord next() throws IOException, CsvValidationException {
+        String[] line = this.csvReader.readNext();
+        return line != null ? new ArrayCsvRecord(line) : null;
+    }
+
+    /**
+     * opencsv decodes the input into characters, so the byte offset of a record is never known
+     * and {@link #getOffset()} stays -1. Splits read with it write no checkpoints.
+     */
+    @Override
+    public void skipTo(long offset) {
+        throw new IllegalStateException(SKIP_UNSUPPORTED_MESSAGE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.csvReader.close();
+    }
+}
@@ -0,0 +1,56 @@
+package com.popov.csv.processor.core;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression applied to every buyer file, selected with {@code output.compression.codec}.
+ * Both codecs accept concatenated streams, so a file continued after an eviction simply gets
+ * a further gzip member or zstd frame appended and still decompresses as one.
+ */
+enum OutputCodec {
+
+    NONE("", 0),
+    GZIP(".gz", Deflater.DEFAULT_COMPRESSION),
+    ZSTD(".zst", 3);
+
+    private final String extension;
+    private final int defaultLevel;
+
+    OutputCodec(String extension, int defaultLevel) {
+        this.extension = extension;
+        this.defaultLevel = defaultLevel;
+    }
+
+    static OutputCodec of(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Suffix appended to the file name, e.g. {@code .gz} for {@code John.csv.gz}.
+     */
+    String getExtension() {
+        return this.extension;
+    }
+
+    /**
+     * Wraps {@code outputStream} in a compressor. A negative level picks the codec default.
+     */
+    OutputStream wrap(OutputStream outputStream, int level, int bufferSize) throws IOException {
+        int effectiveLevel = level < 0 ? this.defaultLevel : level;
+        return switch (this) {
+            case NONE -> outputStream;
+            case GZIP -> new GZIPOutputStream(outputStream, bufferSize) {
+                {
+                    this.def.setLevel(effectiveLevel);
+                }
+            };
+            case ZSTD -> new ZstdOutputStream(outputStream, effectiveLevel);
+        };
+    }
+}
@@ -0,0 +1,66 @@
+package com.popov.csv.processor.core;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The output formats a split can write, one {@link InvoiceCsvSplitter} bean per format keyed
+ * by {@link InvoiceCsvSplitter#getFormat()}. A new format is added by declaring another
+ * splitter bean. Requests that name no format get {@code output.file.format}.
+ */
+@Component
+public class OutputFormats {
+
+    private static final String DEFAULT_FORMAT = "csv";
+    private static final String DUPLICATE_FORMAT_MESSAGE = "Output format %s is provided by %s and %s.";
+    private static final String UNKNOWN_DEFAULT_FORMAT_MESSAGE = "Unknown output format %s, available formats are %s.";
+
+    private final Map<String, InvoiceCsvSplitter> splitters = new LinkedHashMap<>();
+    private final InvoiceCsvSplitter defaultSplitter;
+
+    public OutputFormats(List<InvoiceCsvSplitter> splitters,
+                         @Value("${output.file.format:" + DEFAULT_FORMAT + "}") String defaultFormat) {
+        for (InvoiceCsvSplitter splitter : splitters) {
+            InvoiceCsvSplitter previous = this.splitters.putIfAbsent(normalize(splitter.getFormat()), splitter);
+            if (previous != null) {
+                throw new IllegalStateException(String.format(DUPLICATE_FORMAT_MESSAGE, splitter.getFormat(),
+                        previous.getClass().getSimpleName(), splitter.getClass().getSimpleName()));
+            }
+        }
+        this.defaultSplitter = this.splitters.get(normalize(defaultFormat));
+        if (this.defaultSplitter == null) {
+            throw new IllegalStateException(String.format(UNKNOWN_DEFAULT_FORMAT_MESSAGE, defaultFormat, this.splitters.keySet()));
+        }
+    }
+
+    public InvoiceCsvSplitter getDefault() {
+        return this.defaultSplitter;
+    }
+
+    /**
+     * Returns the splitter of {@code format}, the default one for {@code null} or a blank name,
+     * or empty when there is no such format.
+     */
+    public Optional<InvoiceCsvSplitter> find(String format) {
+        if (format == null || format.isBlank()) {
+            return Optional.of(this.defaultSplitter);
+        }
+        return Optional.ofNullable(this.splitters.get(normalize(format)));
+    }
+
+    public Set<String> getFormats() {
+        return Collections.unmodifiableSet(this.splitters.keySet());
+    }
+
+    private static String normalize(String format) {
+        return format.trim().toLowerCase(Locale.ROOT);
+    }
+}
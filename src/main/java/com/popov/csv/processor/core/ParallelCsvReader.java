@@ -0,0 +1,239 @@
+package com.popov.csv.processor.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+/**
+ * Reads a CSV file from disk by tokenizing chunks of it on a fork-join pool. Records are returned
+ * by {@link #next()} in file order, exactly as a sequential {@link ByteCsvRecordReader} would
+ * return them.
+ * <p>
+ * The file is memory-mapped and cut into chunks of about {@code chunkSize} bytes on record
+ * boundaries. Finding those boundaries is parallel as well: the quotes of every chunk are counted
+ * first, the parity of the quotes before a chunk tells whether it starts inside a quoted field,
+ * and each chunk then moves its start to the first line break outside quotes.
+ * Quoting follows RFC 4180, so input that escapes quotes with a backslash is not supported.
+ * <p>
+ * Every chunk in flight is copied to the heap, so a record much larger than a chunk is held
+ * there whole. Callers check {@link #getLargestChunkLength()} and read such files sequentially.
+ */
+public class ParallelCsvReader implements RecordReader {
+
+    private static final byte QUOTE = '"';
+    private static final byte LINE_FEED = '\n';
+    private static final int RECORD_END_SLICE = 2;
+
+    private final FileChannel fileChannel;
+    private final ForkJoinPool pool;
+    private final Iterator<long[]> chunks;
+    private final Deque<Future<ParsedChunk>> pending = new ArrayDeque<>();
+    private final int window;
+    private final ByteCsvRecord record = new ByteCsvRecord();
+
+    private ParsedChunk currentChunk = new ParsedChunk(new byte[0], new int[0], 0, 0);
+    private int sliceOffset;
+    private volatile long bytesConsumed;
+    private long offset;
+    private long largestChunkLength;
+
+    public ParallelCsvReader(Path inputFile, int parallelism, int chunkSize) throws IOException {
+        this.fileChannel = FileChannel.open(inputFile, StandardOpenOption.READ);
+        this.pool = new ForkJoinPool(parallelism);
+        // Parse a few chunks ahead of the consumer, but never the whole file at once
+        this.window = parallelism * 2;
+
+        try {
+            this.chunks = this.findChunks(chunkSize).iterator();
+        } catch (RuntimeException | IOException e) {
+            this.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public CsvRecord next() throws IOException {
+        while (this.sliceOffset >= this.currentChunk.slicesSize()) {
+            while (this.pending.size() < this.window && this.chunks.hasNext()) {
+                long[] chunk = this.chunks.next();
+                this.pending.add(this.pool.submit(() -> this.parseChunk(chunk[0], chunk[1])));
+            }
+            if (this.pending.isEmpty()) {
+                return null;
+            }
+            this.currentChunk = this.awaitChunk(this.pending.poll());
+            this.sliceOffset = 0;
+            this.bytesConsumed = this.currentChunk.end();
+        }
+
+        this.record.reset(this.currentChunk.bytes(), this.currentChunk.slices(), this.sliceOffset);
+        this.offset = this.currentChunk.end() - this.currentChunk.bytes().length
+                + this.currentChunk.slices()[this.sliceOffset + RECORD_END_SLICE];
+        this.sliceOffset += CsvTokenizer.RECORD_HEADER_WIDTH + this.record.size() * CsvTokenizer.SLICE_WIDTH;
+        return this.record;
+    }
+
+    /**
+     * Returns the end of the chunk records are currently served from. Safe to call from any thread.
+     */
+    public long getBytesConsumed() {
+        return this.bytesConsumed;
+    }
+
+    /**
+     * Returns the length of the largest chunk, which is more than the chunk size when a record
+     * reaches across one or more chunk boundaries.
+     */
+    public long getLargestChunkLength() {
+        return this.largestChunkLength;
+    }
+
+    @Override
+    public long getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * Serves and drops the records before {@code offset}, their chunks being parsed ahead anyway.
+     */
+    @Override
+    public void skipTo(long offset) throws IOException {
+        if (offset < this.offset) {
+            throw new IllegalArgumentException("Cannot skip back to offset " + offset + ".");
+        }
+        while (this.offset < offset) {
+            if (this.next() == null) {
+                throw new EOFException();
+            }
+        }
+        if (this.offset != offset) {
+            throw new IllegalArgumentException("Offset " + offset + " is not a record boundary.");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.pool.shutdownNow();
+        this.fileChannel.close();
+    }
+
+    private List<long[]> findChunks(int chunkSize) throws IOException {
+        long size = this.fileChannel.size();
+        int blockCount = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+
+        long[] quoteCounts = this.pool.submit(() -> IntStream
+                .range(0, blockCount)
+                .parallel()
+                .mapToLong(block -> this.countQuotes(block * (long) chunkSize, Math.min(size, (block + 1) * (long) chunkSize)))
+                .toArray()).join();
+
+        boolean[] startsInQuotes = new boolean[blockCount];
+        long quotes = 0;
+        for (int block = 0; block < blockCount; block++) {
+            startsInQuotes[block] = quotes % 2 == 1;
+            quotes += quoteCounts[block];
+        }
+
+        long[] starts = this.pool.submit(() -> IntStream
+                .range(0, blockCount)
+                .parallel()
+                .mapToLong(block -> block == 0 ? 0 : this.findRecordStart(block * (long) chunkSize, startsInQuotes[block], size))
+                .toArray()).join();
+
+        List<long[]> chunks = new ArrayList<>();
+        long chunkStart = 0;
+        for (int block = 1; block <= blockCount; block++) {
+            long chunkEnd = block < blockCount ? starts[block] : size;
+            // A record longer than a block swallows the following blocks
+            if (chunkEnd > chunkStart) {
+                chunks.add(new long[]{chunkStart, chunkEnd});
+                this.largestChunkLength = Math.max(this.largestChunkLength, chunkEnd - chunkStart);
+                chunkStart = chunkEnd;
+            }
+        }
+        return chunks;
+    }
+
+    private long countQuotes(long from, long to) {
+        MappedByteBuffer buffer = this.map(from, to);
+        long count = 0;
+        while (buffer.hasRemaining()) {
+            if (buffer.get() == QUOTE) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private long findRecordStart(long from, boolean inQuotes, long size) {
+        long position = from;
+        while (position < size) {
+            long to = Math.min(size, position + Integer.MAX_VALUE);
+            MappedByteBuffer buffer = this.map(position, to);
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == QUOTE) {
+                    inQuotes = !inQuotes;
+                } else if (b == LINE_FEED && !inQuotes) {
+                    return position + buffer.position();
+                }
+            }
+            position = to;
+        }
+        return size;
+    }
+
+    private ParsedChunk parseChunk(long from, long to) throws IOException {
+        MappedByteBuffer buffer = this.map(from, to);
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+
+        CsvTokenizer.Slices slices = new CsvTokenizer.Slices();
+        int position = 0;
+        while (position < bytes.length) {
+            position = CsvTokenizer.parseRecord(bytes, position, bytes.length, true, slices);
+        }
+        return new ParsedChunk(bytes, slices.values(), slices.size(), to);
+    }
+
+    private ParsedChunk awaitChunk(Future<ParsedChunk> chunk) throws IOException {
+        try {
+            return chunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Bytes of a chunk with the field slices of all its records, see {@link CsvTokenizer}.
+     */
+    private record ParsedChunk(byte[] bytes, int[] slices, int slicesSize, long end) {
+    }
+
+    private MappedByteBuffer map(long from, long to) {
+        try {
+            return this.fileChannel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
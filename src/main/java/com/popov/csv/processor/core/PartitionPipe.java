@@ -0,0 +1,191 @@
+package com.popov.csv.processor.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands the rows of one partition from the coordinator thread to its worker. The coordinator
+ * writes into {@link #getOutputStream()}, which passes on chunks of {@code chunkSize} bytes
+ * through a queue of {@code capacity} chunks, so a slow worker holds up the coordinator
+ * instead of filling the heap. The worker reads {@link #getInputStream()}. Either side can
+ * give up: {@link #fail(Throwable)} ends the input of the worker with an error, closing the
+ * input stream makes further writes fail.
+ */
+final class PartitionPipe {
+
+    private static final byte[] END = new byte[0];
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+    private static final String WORKER_STOPPED_MESSAGE = "Worker stopped reading its partition.";
+    private static final String COORDINATOR_FAILED_MESSAGE = "Coordinator failed to read the input.";
+
+    private final BlockingQueue<byte[]> chunks;
+    private final int chunkSize;
+    private final OutputStream outputStream = new PipeOutputStream();
+    private final InputStream inputStream = new PipeInputStream();
+    private volatile boolean readerClosed;
+    private volatile Throwable writerFailure;
+    private long bytesWritten;
+
+    PartitionPipe(int chunkSize, int capacity) {
+        this.chunkSize = Math.max(1, chunkSize);
+        this.chunks = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    OutputStream getOutputStream() {
+        return this.outputStream;
+    }
+
+    InputStream getInputStream() {
+        return this.inputStream;
+    }
+
+    long getBytesWritten() {
+        return this.bytesWritten;
+    }
+
+    /**
+     * Tells whether the worker closed its input, which is why writes to the pipe fail.
+     */
+    boolean isReaderClosed() {
+        return this.readerClosed;
+    }
+
+    /**
+     * Drops the chunks not read yet and lets the next read of the worker fail.
+     */
+    void fail(Throwable cause) {
+        this.writerFailure = cause;
+        this.chunks.clear();
+        this.chunks.offer(END);
+    }
+
+    private void put(byte[] chunk) throws IOException {
+        try {
+            while (true) {
+                if (this.readerClosed) {
+                    throw new IOException(WORKER_STOPPED_MESSAGE);
+                }
+                if (this.chunks.offer(chunk, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private final class PipeOutputStream extends OutputStream {
+
+        private byte[] chunk = new byte[PartitionPipe.this.chunkSize];
+        private int count;
+        private boolean closed;
+
+        @Override
+        public void write(int value) throws IOException {
+            if (this.count == this.chunk.length) {
+                this.passOn();
+            }
+            this.chunk[this.count++] = (byte) value;
+            PartitionPipe.this.bytesWritten++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (this.count == this.chunk.length) {
+                    this.passOn();
+                }
+                int copied = Math.min(length, this.chunk.length - this.count);
+                System.arraycopy(bytes, offset, this.chunk, this.count, copied);
+                this.count += copied;
+                PartitionPipe.this.bytesWritten += copied;
+                offset += copied;
+                length -= copied;
+            }
+        }
+
+        // Ends the input of the worker after the last chunk
+        @Override
+        public void close() throws IOException {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            if (this.count > 0) {
+                PartitionPipe.this.put(Arrays.copyOf(this.chunk, this.count));
+            }
+            PartitionPipe.this.put(END);
+        }
+
+        // The queue owns a chunk once it is passed on
+        private void passOn() throws IOException {
+            PartitionPipe.this.put(this.chunk);
+            this.chunk = new byte[PartitionPipe.this.chunkSize];
+            this.count = 0;
+        }
+    }
+
+    private final class PipeInputStream extends InputStream {
+
+        private byte[] chunk;
+        private int position;
+        private boolean ended;
+
+        @Override
+        public int read() throws IOException {
+            if (!this.ensureAvailable()) {
+                return -1;
+            }
+            return this.chunk[this.position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!this.ensureAvailable()) {
+                return -1;
+            }
+            int copied = Math.min(length, this.chunk.length - this.position);
+            System.arraycopy(this.chunk, this.position, bytes, offset, copied);
+            this.position += copied;
+            return copied;
+        }
+
+        @Override
+        public void close() {
+            PartitionPipe.this.readerClosed = true;
+            PartitionPipe.this.chunks.clear();
+        }
+
+        private boolean ensureAvailable() throws IOException {
+            while (this.chunk == null || this.position == this.chunk.length) {
+                if (this.ended) {
+                    return false;
+                }
+                try {
+                    this.chunk = PartitionPipe.this.chunks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                this.position = 0;
+                if (this.chunk == END) {
+                    this.ended = true;
+                    if (PartitionPipe.this.writerFailure != null) {
+                        throw new IOException(COORDINATOR_FAILED_MESSAGE, PartitionPipe.this.writerFailure);
+                    }
+                }
+            }
+            return true;
+        }
+    }
+}
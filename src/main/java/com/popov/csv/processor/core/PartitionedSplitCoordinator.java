@@ -0,0 +1,308 @@
+package com.popov.csv.processor.core;
+
+import com.opencsv.exceptions.CsvValidationException;
+import com.popov.csv.processor.config.ThreadMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads the split of one input over several {@link SplitWorker}s. The coordinator reads the
+ * input once and hands every row to the worker of partition
+ * {@code floorMod(buyer.hashCode(), workers)}, so each buyer file is written by exactly one
+ * worker. {@link String#hashCode()} is the same on every JVM, so the partition of a buyer does
+ * not depend on the node computing it. Rows reach the workers while the input is still being
+ * read, through a {@link PartitionPipe} each; a worker that falls behind slows down the
+ * coordinator rather than filling its heap.
+ * <p>
+ * The workers are the instances listed in {@code split.coordinator.workers}, reached with
+ * {@link HttpSplitWorker}, or, when none are listed, {@code split.coordinator.local-workers}
+ * {@link LocalSplitWorker}s in this JVM.
+ * <p>
+ * Malformed rows end up in the error files of the workers, numbered by their row in the
+ * partition of the worker, and every worker has an error budget of its own.
+ */
+@Component
+public class PartitionedSplitCoordinator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PartitionedSplitCoordinator.class);
+
+    private static final String UTF8_BOM = "\uFEFF";
+    private static final String BUYER_HEADER = "buyer";
+    private static final String MISSING_BUYER_MESSAGE = "Invalid input csv - buyer is missing.";
+    private static final String ARCHIVE_NOT_SUPPORTED_MESSAGE = "Invalid input - zip archives cannot be split by partition.";
+    private static final String UNKNOWN_OUTPUT_FORMAT_MESSAGE = "Unknown output format %s.";
+    private static final String MISSING_WORKERS_MESSAGE = "A partitioned split needs at least one worker.";
+    private static final String LOCAL_WORKER_NAME = "local-%d";
+    private static final String WORKER_THREAD_PREFIX = "split-worker-";
+    private static final String PARTITIONED_SPLIT_MESSAGE = "Split {} rows over {} workers in {} ms.";
+    private static final String WORKER_FINISHED_MESSAGE = "Worker {} split {} rows of partition {} in {} ms.";
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int DEFAULT_QUEUE_CAPACITY = 16;
+    private static final int DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+
+    private final OutputFormats outputFormats;
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+
+    /**
+     * Base URLs of the worker instances, comma separated. Empty means local workers.
+     */
+    @Value("${split.coordinator.workers:}")
+    protected String workers = "";
+
+    /**
+     * Workers in this JVM when no worker instances are listed, 0 for one per available core.
+     */
+    @Value("${split.coordinator.local-workers:0}")
+    protected int localWorkers = 0;
+
+    /**
+     * Chunks of {@value #CHUNK_SIZE} bytes queued per worker before the coordinator waits.
+     */
+    @Value("${split.coordinator.queue-capacity:" + DEFAULT_QUEUE_CAPACITY + "}")
+    protected int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    @Value("${input.spill-threshold:" + DEFAULT_SPILL_THRESHOLD + "}")
+    protected int spillThreshold = DEFAULT_SPILL_THRESHOLD;
+
+    @Value("${" + ThreadMode.PROPERTY + ":platform}")
+    protected String threadMode = "platform";
+
+    public PartitionedSplitCoordinator(OutputFormats outputFormats) {
+        this.outputFormats = outputFormats;
+    }
+
+    /**
+     * Splits the input over the configured workers. Gzip and zstd input is decompressed here,
+     * the workers get plain CSV.
+     *
+     * @throws IllegalArgumentException when {@code options} name an unknown output format
+     */
+    public PartitionedSplitResult split(InputStream inputStream, SplitOptions options) throws IOException, CsvValidationException {
+        InvoiceCsvSplitter splitter = this.outputFormats.find(options.format())
+                .orElseThrow(() -> new IllegalArgumentException(String.format(UNKNOWN_OUTPUT_FORMAT_MESSAGE, options.format())));
+        return this.split(inputStream, options, this.createWorkers(splitter));
+    }
+
+    /**
+     * Splits the input over {@code workers}, one partition each. Fails with the error of the
+     * first worker that failed; the others stop at the end of their input, which is cut short.
+     */
+    public PartitionedSplitResult split(InputStream inputStream, SplitOptions options, List<SplitWorker> workers)
+            throws IOException, CsvValidationException {
+        if (workers.isEmpty()) {
+            throw new IllegalArgumentException(MISSING_WORKERS_MESSAGE);
+        }
+
+        long start = System.nanoTime();
+        List<Partition> partitions = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(workers.size(),
+                ThreadMode.of(this.threadMode).threadFactory(WORKER_THREAD_PREFIX, true));
+        long rows = 0;
+        long skippedRows = 0;
+        try (PushbackInputStream input = new PushbackInputStream(inputStream, InputFormat.MAGIC_LENGTH)) {
+            InputFormat inputFormat = InputFormat.detect(input);
+            if (inputFormat == InputFormat.ZIP) {
+                throw new RuntimeException(ARCHIVE_NOT_SUPPORTED_MESSAGE);
+            }
+
+            try (RecordReader recordReader = new ByteCsvRecordReader(inputFormat.decompress(input), READ_BUFFER_SIZE, this.spillThreshold)) {
+                CsvRecord header = recordReader.next();
+                if (header == null) {
+                    return new PartitionedSplitResult(0, 0, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), List.of());
+                }
+                int buyerIndex = buyerIndex(header);
+
+                for (int i = 0; i < workers.size(); i++) {
+                    Partition partition = new Partition(i, workers.get(i), new PartitionPipe(CHUNK_SIZE, this.queueCapacity));
+                    header.writeRawTo(partition.pipe.getOutputStream());
+                    partition.future = executor.submit(() -> this.run(partition, options, start));
+                    partitions.add(partition);
+                }
+
+                CsvRecord line;
+                while ((line = recordReader.next()) != null) {
+                    if (buyerIndex < 0) {
+                        throw new RuntimeException(MISSING_BUYER_MESSAGE);
+                    }
+                    if (!SplitSession.isValidIndex(buyerIndex, line)) {
+                        // Too short for a buyer, the first worker routes it to its error file
+                        line.writeRawTo(partitions.get(0).pipe.getOutputStream());
+                        continue;
+                    }
+                    if (line.isEmpty(buyerIndex)) {
+                        skippedRows++;
+                        continue;
+                    }
+
+                    Partition partition = partitions.get(partitionOf(line.get(buyerIndex), partitions.size()));
+                    line.writeRawTo(partition.pipe.getOutputStream());
+                    partition.rows++;
+                    rows++;
+                }
+            }
+
+            for (Partition partition : partitions) {
+                partition.pipe.getOutputStream().close();
+            }
+        } catch (IOException | CsvValidationException | RuntimeException e) {
+            // Workers that stopped reading before the coordinator failed caused the failure
+            List<Partition> stopped = partitions.stream().filter(partition -> partition.pipe.isReaderClosed()).toList();
+            for (Partition partition : partitions) {
+                partition.pipe.fail(e);
+            }
+            this.awaitWorkers(partitions);
+            Optional<Throwable> workerFailure = firstFailure(stopped);
+            if (workerFailure.isPresent()) {
+                throw propagate(workerFailure.get());
+            }
+            throw e;
+        } finally {
+            executor.shutdown();
+        }
+
+        this.awaitWorkers(partitions);
+        Optional<Throwable> workerFailure = firstFailure(partitions);
+        if (workerFailure.isPresent()) {
+            throw propagate(workerFailure.get());
+        }
+
+        long elapsedNanos = System.nanoTime() - start;
+        LOGGER.info(PARTITIONED_SPLIT_MESSAGE, rows, partitions.size(), TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        return new PartitionedSplitResult(rows, skippedRows, TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                partitions.stream().map(Partition::toResult).toList());
+    }
+
+    /**
+     * Returns the partition of {@code buyer} among {@code partitions}.
+     */
+    static int partitionOf(String buyer, int partitions) {
+        return Math.floorMod(buyer.hashCode(), partitions);
+    }
+
+    /**
+     * Creates the workers of a run, splitting locally with {@code splitter}.
+     */
+    protected List<SplitWorker> createWorkers(InvoiceCsvSplitter splitter) {
+        List<SplitWorker> splitWorkers = new ArrayList<>();
+        for (String worker : this.workers.split(",")) {
+            if (!worker.isBlank()) {
+                splitWorkers.add(new HttpSplitWorker(URI.create(worker.trim()), this.httpClient));
+            }
+        }
+        if (splitWorkers.isEmpty()) {
+            int count = this.localWorkers > 0 ? this.localWorkers : Runtime.getRuntime().availableProcessors();
+            for (int i = 0; i < count; i++) {
+                splitWorkers.add(new LocalSplitWorker(String.format(LOCAL_WORKER_NAME, i), splitter));
+            }
+        }
+        return splitWorkers;
+    }
+
+    private Void run(Partition partition, SplitOptions options, long start) throws IOException, CsvValidationException {
+        try (InputStream input = partition.pipe.getInputStream()) {
+            partition.outputDirectory = partition.worker.split(input, options);
+        } finally {
+            partition.elapsedNanos = System.nanoTime() - start;
+        }
+        LOGGER.debug(WORKER_FINISHED_MESSAGE, partition.worker.getName(), partition.rows, partition.index,
+                TimeUnit.NANOSECONDS.toMillis(partition.elapsedNanos));
+        return null;
+    }
+
+    /**
+     * Waits for every worker, keeping the error of each one that failed.
+     */
+    private void awaitWorkers(List<Partition> partitions) throws InterruptedIOException {
+        for (Partition partition : partitions) {
+            try {
+                partition.future.get();
+            } catch (ExecutionException e) {
+                partition.failure = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private static Optional<Throwable> firstFailure(List<Partition> partitions) {
+        return partitions.stream().map(partition -> partition.failure).filter(Objects::nonNull).findFirst();
+    }
+
+    private static int buyerIndex(CsvRecord header) {
+        String[] headers = header.toArray();
+        if (headers.length > 0 && headers[0].startsWith(UTF8_BOM)) {
+            headers[0] = headers[0].substring(1);
+        }
+        return Arrays.asList(headers).indexOf(BUYER_HEADER);
+    }
+
+    /**
+     * Throws the unchecked and the declared errors of a worker as they are, anything else is
+     * returned as an {@link IOException} to throw.
+     */
+    private static IOException propagate(Throwable failure) throws CsvValidationException {
+        if (failure instanceof IOException e) {
+            return e;
+        }
+        if (failure instanceof CsvValidationException e) {
+            throw e;
+        }
+        if (failure instanceof RuntimeException e) {
+            throw e;
+        }
+        if (failure instanceof Error e) {
+            throw e;
+        }
+        return new IOException(failure);
+    }
+
+    /**
+     * One worker and the rows handed to it.
+     */
+    private static final class Partition {
+
+        private final int index;
+        private final SplitWorker worker;
+        private final PartitionPipe pipe;
+        private long rows;
+        private Future<Void> future;
+        private volatile long elapsedNanos;
+        private volatile String outputDirectory;
+        private Throwable failure;
+
+        private Partition(int index, SplitWorker worker, PartitionPipe pipe) {
+            this.index = index;
+            this.worker = worker;
+            this.pipe = pipe;
+        }
+
+        private PartitionedSplitResult.Worker toResult() {
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(this.elapsedNanos);
+            double rowsPerSecond = this.elapsedNanos > 0 ? this.rows * 1e9 / this.elapsedNanos : 0;
+            return new PartitionedSplitResult.Worker(this.worker.getName(), this.index, this.rows,
+                    this.pipe.getBytesWritten(), elapsedMillis, rowsPerSecond, this.outputDirectory);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.popov.csv.processor.core;
+
+import java.util.List;
+
+/**
+ * Report of a {@link PartitionedSplitCoordinator} run.
+ *
+ * @param rows          rows handed to the workers
+ * @param skippedRows   rows without a buyer, which no worker gets
+ * @param elapsedMillis time until the last worker finished
+ * @param workers       one entry per partition, in partition order
+ */
+public record PartitionedSplitResult(long rows, long skippedRows, long elapsedMillis, List<Worker> workers) {
+
+    /**
+     * @param name            name of the worker, see {@link SplitWorker#getName()}
+     * @param partition       index of the partition the worker split
+     * @param rows            rows of the partition
+     * @param bytes           bytes of the partition, header included
+     * @param elapsedMillis   time from the start of the run until the worker finished
+     * @param rowsPerSecond   throughput of the worker over that time
+     * @param outputDirectory where the worker wrote its buyer files, null when it does not tell
+     */
+    public record Worker(String name, int partition, long rows, long bytes, long elapsedMillis,
+                         double rowsPerSecond, String outputDirectory) {
+    }
+}
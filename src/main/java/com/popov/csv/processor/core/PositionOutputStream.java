@@ -0,0 +1,41 @@
+package com.popov.csv.processor.core;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Keeps the position in its file of the next byte written through it, for the
+ * {@link InvoiceIndex}. {@link #flush()} stops here, so writers above it can be flushed after
+ * every row to learn where the row ended without forcing the buffer below to disk; the
+ * buffer is written out when the stream is closed.
+ */
+class PositionOutputStream extends FilterOutputStream {
+
+    private long position;
+
+    PositionOutputStream(OutputStream outputStream, long position) {
+        super(outputStream);
+        this.position = position;
+    }
+
+    long getPosition() {
+        return this.position;
+    }
+
+    @Override
+    public void write(int value) throws IOException {
+        this.out.write(value);
+        this.position++;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        this.out.write(buffer, offset, length);
+        this.position += length;
+    }
+
+    @Override
+    public void flush() {
+    }
+}
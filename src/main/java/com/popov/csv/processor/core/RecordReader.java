@@ -0,0 +1,34 @@
+package com.popov.csv.processor.core;
+
+import com.opencsv.exceptions.CsvValidationException;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Source of the CSV records of a split run.
+ */
+public interface RecordReader extends Closeable {
+
+    /**
+     * Returns the next record, or {@code null} at the end of the input. The returned record may
+     * be reused by the reader and is only valid until the next call.
+     */
+    CsvRecord next() throws IOException, CsvValidationException;
+
+    /**
+     * Returns the input offset just past the last record returned, or -1 when the reader does
+     * not track it. A split can be resumed from this offset.
+     */
+    default long getOffset() {
+        return -1;
+    }
+
+    /**
+     * Skips the input up to {@code offset}, which must be a record boundary at or after
+     * {@link #getOffset()}. The next call to {@link #next()} returns the record starting there.
+     *
+     * @throws IllegalStateException when the reader does not track offsets and cannot resume a split
+     */
+    void skipTo(long offset) throws IOException;
+}
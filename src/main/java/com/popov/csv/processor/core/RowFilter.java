@@ -0,0 +1,69 @@
+package com.popov.csv.processor.core;
+
+/**
+ * Row predicate of a split request, {@code <column><operator><value>}, e.g. {@code amount>=100}
+ * or {@code issued<2024-01-01}. The value is compared as a number when it is one, as an ISO
+ * date when it is one, and as text otherwise; a row whose field does not parse as that type
+ * does not match. Compiled against the header of every feed by {@link RowSelection}.
+ */
+public record RowFilter(String column, Operator operator, String value) {
+
+    private static final String INVALID_FILTER_MESSAGE = "Invalid row filter %s.";
+
+    /**
+     * Comparison of a row filter, by its symbol.
+     */
+    public enum Operator {
+        NOT_EQUAL("!="),
+        LESS_OR_EQUAL("<="),
+        GREATER_OR_EQUAL(">="),
+        EQUAL("="),
+        LESS("<"),
+        GREATER(">");
+
+        private final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        boolean matches(int comparison) {
+            return switch (this) {
+                case NOT_EQUAL -> comparison != 0;
+                case LESS_OR_EQUAL -> comparison <= 0;
+                case GREATER_OR_EQUAL -> comparison >= 0;
+                case EQUAL -> comparison == 0;
+                case LESS -> comparison < 0;
+                case GREATER -> comparison > 0;
+            };
+        }
+    }
+
+    /**
+     * Parses a filter, splitting it at its first operator.
+     *
+     * @throws IllegalArgumentException when there is no operator or no column
+     */
+    public static RowFilter parse(String filter) {
+        for (int i = 0; i < filter.length(); i++) {
+            char c = filter.charAt(i);
+            if (c != '=' && c != '!' && c != '<' && c != '>') {
+                continue;
+            }
+            String column = filter.substring(0, i).trim();
+            // The symbols are ordered so that two character operators are tried first
+            for (Operator operator : Operator.values()) {
+                if (filter.startsWith(operator.symbol, i) && !column.isEmpty()) {
+                    return new RowFilter(column, operator, filter.substring(i + operator.symbol.length()).trim());
+                }
+            }
+            break;
+        }
+        throw new IllegalArgumentException(String.format(INVALID_FILTER_MESSAGE, filter));
+    }
+
+    @Override
+    public String toString() {
+        return this.column + this.operator.symbol + this.value;
+    }
+}
@@ -0,0 +1,72 @@
+package com.popov.csv.processor.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 64-bit FNV-1a over the unquoted bytes of key fields, each followed by its length so that
+ * moving bytes between fields changes the key, and finished with the MurmurHash3 mixer.
+ * Fields are streamed in through {@link CsvRecord#writeTo}, without creating Strings.
+ * Not thread-safe.
+ */
+final class RowKeyHasher extends OutputStream {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private long hash = FNV_OFFSET_BASIS;
+    private long fieldLength;
+
+    void reset() {
+        this.hash = FNV_OFFSET_BASIS;
+    }
+
+    /**
+     * Adds field {@code index} of {@code line}; a field the row is too short for counts as
+     * a field of its own, distinct from an empty one.
+     */
+    void addField(CsvRecord line, int index) throws IOException {
+        this.fieldLength = 0;
+        if (index < line.size()) {
+            line.writeTo(index, this);
+        } else {
+            this.fieldLength = -1;
+        }
+        this.hash = (this.hash ^ this.fieldLength) * FNV_PRIME;
+    }
+
+    /**
+     * Adds a field given as its UTF-8 bytes, the same key as the field added from a record.
+     */
+    void addField(byte[] field) {
+        this.fieldLength = 0;
+        this.write(field, 0, field.length);
+        this.hash = (this.hash ^ this.fieldLength) * FNV_PRIME;
+    }
+
+    long getHash() {
+        long hash = this.hash;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public void write(int value) {
+        this.hash = (this.hash ^ (value & 0xFF)) * FNV_PRIME;
+        this.fieldLength++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        long hash = this.hash;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ (bytes[i] & 0xFF)) * FNV_PRIME;
+        }
+        this.hash = hash;
+        this.fieldLength += length;
+    }
+}
@@ -0,0 +1,315 @@
+package com.popov.csv.processor.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Columns and row filters of a split request, compiled against the header of one feed: the
+ * columns become the indices a row is projected to and every filter a predicate on one field
+ * index with its value parsed up front. Only filtered fields are turned into Strings, and text
+ * equality is tested on the bytes of the field. The projection is a view, so the columns left
+ * out are never read. Not thread-safe, an instance belongs to a single split.
+ */
+final class RowSelection {
+
+    private static final String BUYER_HEADER = "buyer";
+    private static final String MISSING_COLUMN_MESSAGE = "Invalid input csv - column %s is missing.";
+    private static final Pattern NUMBER = Pattern.compile("[+-]?(\\d+(\\.\\d*)?|\\.\\d+)([eE][+-]?\\d+)?");
+    private static final Pattern ISO_DATE = Pattern.compile("\\d{4}-\\d{2}-\\d{2}");
+    private static final int ISO_DATE_LENGTH = 10;
+
+    private final String[] headers;
+    private final int buyerIndex;
+    private final Predicate[] predicates;
+    private final ProjectedRecord projection;
+
+    private RowSelection(String[] headers, int buyerIndex, Predicate[] predicates, ProjectedRecord projection) {
+        this.headers = headers;
+        this.buyerIndex = buyerIndex;
+        this.predicates = predicates;
+        this.projection = projection;
+    }
+
+    /**
+     * Compiles the columns and filters of {@code options} against {@code headers}; without
+     * either, every row is selected as it is.
+     *
+     * @throws RuntimeException when a column or filter names a column missing from the header
+     */
+    static RowSelection of(String[] headers, SplitOptions options) {
+        int buyerIndex = Arrays.asList(headers).indexOf(BUYER_HEADER);
+        List<RowFilter> filters = options.filters() != null ? options.filters() : List.of();
+        Predicate[] predicates = new Predicate[filters.size()];
+        for (int i = 0; i < predicates.length; i++) {
+            predicates[i] = Predicate.of(filters.get(i), indexOf(headers, filters.get(i).column()));
+        }
+
+        if (options.columns() == null || options.columns().isEmpty()) {
+            return new RowSelection(headers, buyerIndex, predicates, null);
+        }
+        int[] indices = options.columns().stream().mapToInt(column -> indexOf(headers, column)).toArray();
+        String[] projectedHeaders = Arrays.stream(indices).mapToObj(index -> headers[index]).toArray(String[]::new);
+        return new RowSelection(projectedHeaders, buyerIndex, predicates, new ProjectedRecord(indices));
+    }
+
+    /**
+     * Returns true when every row is written as it is, with all its columns.
+     */
+    boolean selectsAll() {
+        return this.projection == null && this.predicates.length == 0;
+    }
+
+    /**
+     * Returns the headers of the written rows.
+     */
+    String[] getHeaders() {
+        return this.headers;
+    }
+
+    /**
+     * Returns the index of the buyer column in the input rows, -1 when there is none.
+     */
+    int getBuyerIndex() {
+        return this.buyerIndex;
+    }
+
+    /**
+     * Tells whether an input row passes every filter.
+     */
+    boolean test(CsvRecord line) throws IOException {
+        for (Predicate predicate : this.predicates) {
+            if (!predicate.test(line)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the row to write for an input row. The projected view is reused for the next
+     * row and, like the row, only valid until the reader moves on.
+     */
+    CsvRecord project(CsvRecord line) {
+        if (this.projection == null) {
+            return line;
+        }
+        this.projection.wrap(line);
+        return this.projection;
+    }
+
+    private static int indexOf(String[] headers, String column) {
+        int index = Arrays.asList(headers).indexOf(column.trim());
+        if (index < 0) {
+            throw new RuntimeException(String.format(MISSING_COLUMN_MESSAGE, column));
+        }
+        return index;
+    }
+
+    /**
+     * One filter bound to the index of its column.
+     */
+    private abstract static class Predicate {
+
+        protected final int index;
+        protected final RowFilter.Operator operator;
+
+        private Predicate(int index, RowFilter.Operator operator) {
+            this.index = index;
+            this.operator = operator;
+        }
+
+        private static Predicate of(RowFilter filter, int index) {
+            if (NUMBER.matcher(filter.value()).matches()) {
+                return new NumberPredicate(index, filter.operator(), new BigDecimal(filter.value()));
+            }
+            if (ISO_DATE.matcher(filter.value()).matches()) {
+                try {
+                    return new DatePredicate(index, filter.operator(), LocalDate.parse(filter.value()));
+                } catch (DateTimeParseException e) {
+                    // Not a calendar date after all, compared as text
+                }
+            }
+            if (filter.operator() == RowFilter.Operator.EQUAL || filter.operator() == RowFilter.Operator.NOT_EQUAL) {
+                return new TextEqualityPredicate(index, filter.operator(), filter.value());
+            }
+            return new TextPredicate(index, filter.operator(), filter.value());
+        }
+
+        private boolean test(CsvRecord line) throws IOException {
+            return this.index < line.size() && this.testField(line);
+        }
+
+        protected abstract boolean testField(CsvRecord line) throws IOException;
+    }
+
+    private static final class NumberPredicate extends Predicate {
+
+        private final BigDecimal value;
+
+        private NumberPredicate(int index, RowFilter.Operator operator, BigDecimal value) {
+            super(index, operator);
+            this.value = value;
+        }
+
+        @Override
+        protected boolean testField(CsvRecord line) {
+            String field = line.get(this.index).trim();
+            if (!NUMBER.matcher(field).matches()) {
+                return false;
+            }
+            return this.operator.matches(new BigDecimal(field).compareTo(this.value));
+        }
+    }
+
+    /**
+     * Compares the date of a field, a date-time field by its date.
+     */
+    private static final class DatePredicate extends Predicate {
+
+        private final LocalDate value;
+
+        private DatePredicate(int index, RowFilter.Operator operator, LocalDate value) {
+            super(index, operator);
+            this.value = value;
+        }
+
+        @Override
+        protected boolean testField(CsvRecord line) {
+            String field = line.get(this.index).trim();
+            if (field.length() > ISO_DATE_LENGTH && (field.charAt(ISO_DATE_LENGTH) == 'T' || field.charAt(ISO_DATE_LENGTH) == ' ')) {
+                field = field.substring(0, ISO_DATE_LENGTH);
+            }
+            try {
+                return this.operator.matches(LocalDate.parse(field).compareTo(this.value));
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+    }
+
+    private static final class TextPredicate extends Predicate {
+
+        private final String value;
+
+        private TextPredicate(int index, RowFilter.Operator operator, String value) {
+            super(index, operator);
+            this.value = value;
+        }
+
+        @Override
+        protected boolean testField(CsvRecord line) {
+            return this.operator.matches(line.get(this.index).compareTo(this.value));
+        }
+    }
+
+    /**
+     * Compares the UTF-8 bytes of the field to those of the value as they are streamed in.
+     */
+    private static final class TextEqualityPredicate extends Predicate {
+
+        private final byte[] value;
+        private final OutputStream matcher = new OutputStream() {
+            @Override
+            public void write(int value) {
+                TextEqualityPredicate.this.match((byte) value);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                for (int i = offset; i < offset + length && TextEqualityPredicate.this.equal; i++) {
+                    TextEqualityPredicate.this.match(bytes[i]);
+                }
+            }
+        };
+        private int matched;
+        private boolean equal;
+
+        private TextEqualityPredicate(int index, RowFilter.Operator operator, String value) {
+            super(index, operator);
+            this.value = value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        protected boolean testField(CsvRecord line) throws IOException {
+            this.matched = 0;
+            this.equal = true;
+            line.writeTo(this.index, this.matcher);
+            boolean equal = this.equal && this.matched == this.value.length;
+            return this.operator == RowFilter.Operator.EQUAL ? equal : !equal;
+        }
+
+        private void match(byte value) {
+            if (this.matched == this.value.length || this.value[this.matched] != value) {
+                this.equal = false;
+            } else {
+                this.matched++;
+            }
+        }
+    }
+
+    /**
+     * Row restricted to the projected columns, in their requested order. A row too short for a
+     * column ends before it.
+     */
+    private static final class ProjectedRecord implements CsvRecord {
+
+        private final int[] indices;
+        private CsvRecord line;
+        private int size;
+
+        private ProjectedRecord(int[] indices) {
+            this.indices = indices;
+        }
+
+        private void wrap(CsvRecord line) {
+            this.line = line;
+            this.size = 0;
+            while (this.size < this.indices.length && this.indices[this.size] < line.size()) {
+                this.size++;
+            }
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+
+        @Override
+        public String get(int index) {
+            return this.line.get(this.indices[index]);
+        }
+
+        @Override
+        public boolean isEmpty(int index) {
+            return this.line.isEmpty(this.indices[index]);
+        }
+
+        @Override
+        public void writeTo(int index, OutputStream outputStream) throws IOException {
+            this.line.writeTo(this.indices[index], outputStream);
+        }
+
+        @Override
+        public InputStream openField(int index) throws IOException {
+            return this.line.openField(this.indices[index]);
+        }
+
+        @Override
+        public void writeRawTo(OutputStream outputStream) throws IOException {
+            FieldBuffer.writeLineTo(this, outputStream);
+        }
+
+        @Override
+        public byte[] rawBytes() {
+            return FieldBuffer.lineBytes(this);
+        }
+    }
+}
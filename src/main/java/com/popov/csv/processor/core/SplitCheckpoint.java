@@ -0,0 +1,118 @@
+package com.popov.csv.processor.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Point a split run of an input file can be resumed from: the input offset and row counts
+ * after the last row written, and the length every buyer file and the error file had at that
+ * moment. Stored as
+ * {@value #FILE_NAME} in the output directory of the run and replaced atomically.
+ *
+ * @param inputFile        the file being split
+ * @param inputSize        its size, a resume refuses to continue with a changed input
+ * @param format           output format of the run
+ * @param codec            output codec of the run
+ * @param offset           input offset right after the last row written
+ * @param rows             rows written up to {@code offset}
+ * @param skippedRows      rows skipped up to {@code offset}
+ * @param errorRows        malformed rows written to the error file up to {@code offset}
+ * @param errorFileLength  length of the error file, 0 while there is none
+ * @param buyerFileLengths length of every buyer file, keyed by buyer
+ */
+public record SplitCheckpoint(String inputFile, long inputSize, String format, String codec,
+                              long offset, long rows, long skippedRows, long errorRows, long errorFileLength,
+                              Map<String, Long> buyerFileLengths) {
+
+    public static final String FILE_NAME = ".split-checkpoint";
+
+    private static final int VERSION = 1;
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final String UNSUPPORTED_VERSION_MESSAGE = "Unsupported checkpoint version %d.";
+
+    public SplitCheckpoint {
+        buyerFileLengths = Collections.unmodifiableMap(new LinkedHashMap<>(buyerFileLengths));
+    }
+
+    public Path getInputPath() {
+        return Paths.get(this.inputFile);
+    }
+
+    static Path file(String outputDirectory) {
+        return Paths.get(outputDirectory, FILE_NAME);
+    }
+
+    /**
+     * Reads the checkpoint of a run, if it left one.
+     */
+    static Optional<SplitCheckpoint> read(String outputDirectory) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file(outputDirectory))))) {
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(String.format(UNSUPPORTED_VERSION_MESSAGE, version));
+            }
+
+            String inputFile = in.readUTF();
+            long inputSize = in.readLong();
+            String format = in.readUTF();
+            String codec = in.readUTF();
+            long offset = in.readLong();
+            long rows = in.readLong();
+            long skippedRows = in.readLong();
+            long errorRows = in.readLong();
+            long errorFileLength = in.readLong();
+            int buyers = in.readInt();
+            Map<String, Long> buyerFileLengths = new LinkedHashMap<>();
+            for (int i = 0; i < buyers; i++) {
+                buyerFileLengths.put(in.readUTF(), in.readLong());
+            }
+            return Optional.of(new SplitCheckpoint(inputFile, inputSize, format, codec, offset, rows, skippedRows,
+                    errorRows, errorFileLength, buyerFileLengths));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Writes the checkpoint next to the current one and moves it into place, so a crash
+     * while writing keeps the previous checkpoint.
+     */
+    void write(String outputDirectory) throws IOException {
+        Path file = file(outputDirectory);
+        Path temporaryFile = file.resolveSibling(FILE_NAME + TEMPORARY_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+            out.writeInt(VERSION);
+            out.writeUTF(this.inputFile);
+            out.writeLong(this.inputSize);
+            out.writeUTF(this.format);
+            out.writeUTF(this.codec);
+            out.writeLong(this.offset);
+            out.writeLong(this.rows);
+            out.writeLong(this.skippedRows);
+            out.writeLong(this.errorRows);
+            out.writeLong(this.errorFileLength);
+            out.writeInt(this.buyerFileLengths.size());
+            for (Map.Entry<String, Long> buyerFileLength : this.buyerFileLengths.entrySet()) {
+                out.writeUTF(buyerFileLength.getKey());
+                out.writeLong(buyerFileLength.getValue());
+            }
+        }
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static void delete(String outputDirectory) throws IOException {
+        Files.deleteIfExists(file(outputDirectory));
+    }
+}
@@ -0,0 +1,262 @@
+package com.popov.csv.processor.core;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Meters of one splitter, all tagged with its output format so the cost of {@code csv} and
+ * {@code xml} can be compared. Per row work is summed inside a run and recorded once per run,
+ * so the row loop only pays for reading the clock.
+ */
+public class SplitMetrics {
+
+    static final String FORMAT_TAG = "format";
+
+    static final String SPLIT_TIMER = "csv.split";
+    static final String PARSE_TIMER = "csv.split.parse";
+    static final String WRITE_TIMER = "csv.split.write";
+    static final String FINALIZE_TIMER = "csv.split.finalize";
+    static final String IMAGE_WRITE_TIMER = "csv.split.image.write";
+    static final String CHECKPOINT_TIMER = "csv.split.checkpoint";
+    static final String ROWS_COUNTER = "csv.split.rows";
+    static final String SKIPPED_ROWS_COUNTER = "csv.split.rows.skipped";
+    static final String FAILED_ROWS_COUNTER = "csv.split.rows.failed";
+    static final String DUPLICATE_ROWS_COUNTER = "csv.split.rows.duplicate";
+    static final String FILTERED_ROWS_COUNTER = "csv.split.rows.filtered";
+    static final String BYTES_IN_COUNTER = "csv.split.bytes.in";
+    static final String BYTES_OUT_COUNTER = "csv.split.bytes.out";
+    static final String WRITE_CALLS_COUNTER = "csv.split.write.calls";
+    static final String BUYERS_SUMMARY = "csv.split.buyers";
+    static final String IMAGE_STORE_HITS_COUNTER = "csv.split.image.store.hits";
+    static final String IMAGE_STORE_MISSES_COUNTER = "csv.split.image.store.misses";
+    static final String DUPLICATE_FEEDS_COUNTER = "csv.split.feeds.duplicate";
+    static final String INDEX_ENTRIES_COUNTER = "csv.split.index.entries";
+    static final String WRITER_HITS_COUNTER = "csv.split.writers.hits";
+    static final String WRITER_EVICTIONS_COUNTER = "csv.split.writers.evictions";
+    static final String WRITER_REOPENS_COUNTER = "csv.split.writers.reopens";
+    static final String SORT_RUNS_SUMMARY = "csv.split.sort.runs";
+    static final String OPEN_WRITERS_GAUGE = "csv.split.writers.open";
+
+    private static final String BYTES_UNIT = "bytes";
+    private static final String ROWS_UNIT = "rows";
+
+    private final Timer splitTimer;
+    private final Timer parseTimer;
+    private final Timer writeTimer;
+    private final Timer finalizeTimer;
+    private final Timer imageWriteTimer;
+    private final Timer checkpointTimer;
+    private final Counter rows;
+    private final Counter skippedRows;
+    private final Counter failedRows;
+    private final Counter duplicateRows;
+    private final Counter filteredRows;
+    private final Counter bytesIn;
+    private final Counter bytesOut;
+    private final Counter writeCalls;
+    private final Counter imageStoreHits;
+    private final Counter imageStoreMisses;
+    private final Counter duplicateFeeds;
+    private final Counter indexEntries;
+    private final Counter writerHits;
+    private final Counter writerEvictions;
+    private final Counter writerReopens;
+    private final DistributionSummary sortRuns;
+    private final DistributionSummary buyers;
+    private final AtomicInteger openWriters = new AtomicInteger();
+
+    public SplitMetrics(MeterRegistry meterRegistry, String format) {
+        this.splitTimer = Timer.builder(SPLIT_TIMER)
+                .description("Duration of a whole split run")
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.parseTimer = Timer.builder(PARSE_TIMER)
+                .description("Time per split run spent reading and tokenizing rows")
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.writeTimer = Timer.builder(WRITE_TIMER)
+                .description("Time per split run spent writing invoices to buyer files")
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.finalizeTimer = Timer.builder(FINALIZE_TIMER)
+                .description("Time spent closing buyer files and waiting for images")
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.imageWriteTimer = Timer.builder(IMAGE_WRITE_TIMER)
+                .description("Time spent decoding and writing one image")
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.checkpointTimer = Timer.builder(CHECKPOINT_TIMER)
+                .description("Time spent suspending buyer files and writing a checkpoint")
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.rows = Counter.builder(ROWS_COUNTER)
+                .description("Rows written to buyer files")
+                .baseUnit(ROWS_UNIT)
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.skippedRows = Counter.builder(SKIPPED_ROWS_COUNTER)
+                .description("Rows skipped because the buyer is empty")
+                .baseUnit(ROWS_UNIT)
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.failedRows = Counter.builder(FAILED_ROWS_COUNTER)
+                .description("Rows that failed the split")
+                .baseUnit(ROWS_UNIT)
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.duplicateRows = Counter.builder(DUPLICATE_ROWS_COUNTER)
+                .description("Rows skipped because the buyer file of the target already holds them")
+                .baseUnit(ROWS_UNIT)
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.filteredRows = Counter.builder(FILTERED_ROWS_COUNTER)
+                .description("Rows left out because they do not pass the filters of the request")
+                .baseUnit(ROWS_UNIT)
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.bytesIn = Counter.builder(BYTES_IN_COUNTER)
+                .description("Bytes read from input files")
+                .baseUnit(BYTES_UNIT)
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.bytesOut = Counter.builder(BYTES_OUT_COUNTER)
+                .description("Bytes written to buyer files and images")
+                .baseUnit(BYTES_UNIT)
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.writeCalls = Counter.builder(WRITE_CALLS_COUNTER)
+                .description("Gathering writes issued for buffered buyer files")
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.imageStoreHits = Counter.builder(IMAGE_STORE_HITS_COUNTER)
+                .description("Images linked to the image store without decoding them")
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.imageStoreMisses = Counter.builder(IMAGE_STORE_MISSES_COUNTER)
+                .description("Images decoded because the image store did not hold them")
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.duplicateFeeds = Counter.builder(DUPLICATE_FEEDS_COUNTER)
+                .description("Inputs answered with the output of an earlier split of the same content")
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.indexEntries = Counter.builder(INDEX_ENTRIES_COUNTER)
+                .description("Rows added to the buyer index, once per key column")
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.writerHits = Counter.builder(WRITER_HITS_COUNTER)
+                .description("Rows written through a buyer file that was already open")
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.writerEvictions = Counter.builder(WRITER_EVICTIONS_COUNTER)
+                .description("Buyer files suspended to stay within the open file limit")
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.writerReopens = Counter.builder(WRITER_REOPENS_COUNTER)
+                .description("Suspended buyer files opened again to continue them")
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.buyers = DistributionSummary.builder(BUYERS_SUMMARY)
+                .description("Distinct buyers per split run")
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        this.sortRuns = DistributionSummary.builder(SORT_RUNS_SUMMARY)
+                .description("Sorted runs spilled per split run of the sorted strategy")
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+        Gauge.builder(OPEN_WRITERS_GAUGE, this.openWriters, AtomicInteger::get)
+                .description("Buyer files currently open over all split runs")
+                .tag(FORMAT_TAG, format)
+                .register(meterRegistry);
+    }
+
+    void recordRun(long splitNanos, long parseNanos, long writeNanos, long rows, long skippedRows, int buyers) {
+        this.splitTimer.record(splitNanos, TimeUnit.NANOSECONDS);
+        this.parseTimer.record(parseNanos, TimeUnit.NANOSECONDS);
+        this.writeTimer.record(writeNanos, TimeUnit.NANOSECONDS);
+        this.rows.increment(rows);
+        this.skippedRows.increment(skippedRows);
+        this.buyers.record(buyers);
+    }
+
+    void recordFinalize(long nanos) {
+        this.finalizeTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void recordImageWrite(long nanos) {
+        this.imageWriteTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void recordCheckpoint(long nanos) {
+        this.checkpointTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void recordSortRuns(int runs) {
+        this.sortRuns.record(runs);
+    }
+
+    void recordFailedRows(long count) {
+        this.failedRows.increment(count);
+    }
+
+    void recordDuplicateRows(long count) {
+        this.duplicateRows.increment(count);
+    }
+
+    void recordFilteredRows(long count) {
+        this.filteredRows.increment(count);
+    }
+
+    void recordBytesIn(long count) {
+        this.bytesIn.increment(count);
+    }
+
+    void recordBytesOut(long count) {
+        this.bytesOut.increment(count);
+    }
+
+    void recordWriteCall() {
+        this.writeCalls.increment();
+    }
+
+    void recordImageStoreHit() {
+        this.imageStoreHits.increment();
+    }
+
+    void recordImageStoreMiss() {
+        this.imageStoreMisses.increment();
+    }
+
+    void recordDuplicateFeed() {
+        this.duplicateFeeds.increment();
+    }
+
+    void recordIndexEntries(long count) {
+        this.indexEntries.increment(count);
+    }
+
+    void recordWriterCache(WriterCache<?> writerCache) {
+        this.writerHits.increment(writerCache.getHits());
+        this.writerEvictions.increment(writerCache.getEvictions());
+        this.writerReopens.increment(writerCache.getReopens());
+    }
+
+    void writerOpened() {
+        this.openWriters.incrementAndGet();
+    }
+
+    void writerClosed() {
+        this.openWriters.decrementAndGet();
+    }
+
+    int getOpenWriterCount() {
+        return this.openWriters.get();
+    }
+}
@@ -0,0 +1,39 @@
+package com.popov.csv.processor.core;
+
+import java.util.List;
+
+/**
+ * Settings of a single split request that override the configured defaults. A {@code null}
+ * component keeps the default.
+ *
+ * @param strategy how rows reach the buyer files, see {@link SplitStrategy}
+ * @param format   output format, picks the splitter from {@link OutputFormats}
+ * @param target   name of a stable output directory the split appends its new rows to, instead
+ *                 of writing a new directory per run
+ * @param columns  columns written to the buyer files, in this order, instead of all of them
+ * @param filters  filters every written row passes, see {@link RowFilter}
+ */
+public record SplitOptions(SplitStrategy strategy, String format, String target, List<String> columns, List<RowFilter> filters) {
+
+    public static final SplitOptions DEFAULTS = new SplitOptions(null, null, null, null, null);
+
+    public SplitOptions withStrategy(SplitStrategy strategy) {
+        return new SplitOptions(strategy, this.format, this.target, this.columns, this.filters);
+    }
+
+    public SplitOptions withFormat(String format) {
+        return new SplitOptions(this.strategy, format, this.target, this.columns, this.filters);
+    }
+
+    public SplitOptions withTarget(String target) {
+        return new SplitOptions(this.strategy, this.format, target, this.columns, this.filters);
+    }
+
+    public SplitOptions withColumns(List<String> columns) {
+        return new SplitOptions(this.strategy, this.format, this.target, columns, this.filters);
+    }
+
+    public SplitOptions withFilters(List<RowFilter> filters) {
+        return new SplitOptions(this.strategy, this.format, this.target, this.columns, filters);
+    }
+}
@@ -0,0 +1,66 @@
+package com.popov.csv.processor.core;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Live view of one split run. The splitter updates it after every row and another thread may
+ * read it at any time; {@link #cancel()} stops the run at the next row.
+ */
+public class SplitProgress {
+
+    private static final LongSupplier NOTHING_READ = () -> 0L;
+
+    private volatile String outputDirectory;
+    private volatile LongSupplier bytesConsumed = NOTHING_READ;
+    private volatile long rowsProcessed;
+    private volatile int buyersSeen;
+    private volatile boolean cancelled;
+    private long previousRows;
+    private int previousBuyers;
+
+    public String getOutputDirectory() {
+        return this.outputDirectory;
+    }
+
+    public long getBytesConsumed() {
+        return this.bytesConsumed.getAsLong();
+    }
+
+    public long getRowsProcessed() {
+        return this.rowsProcessed;
+    }
+
+    public int getBuyersSeen() {
+        return this.buyersSeen;
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    void trackBytes(LongSupplier bytesConsumed) {
+        this.bytesConsumed = bytesConsumed;
+    }
+
+    void start(String outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Keeps the counts of the feed just split, the counts of the next feed of the same upload
+     * are added to them.
+     */
+    void nextFeed() {
+        this.previousRows = this.rowsProcessed;
+        this.previousBuyers = this.buyersSeen;
+    }
+
+    void update(long rowsProcessed, int buyersSeen) {
+        this.rowsProcessed = this.previousRows + rowsProcessed;
+        this.buyersSeen = this.previousBuyers + buyersSeen;
+    }
+}
@@ -0,0 +1,204 @@
+package com.popov.csv.processor.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * State of a single split run: the output directory, the header indices and the
+ * writers opened for every buyer. A new session is created for each call to
+ * {@link InvoiceCsvSplitter#splitCsvInvoicesByBuyer(java.io.InputStream)}, which keeps
+ * the splitter beans stateless and safe to share between concurrent uploads.
+ */
+public abstract class SplitSession {
+
+    private static final String BUYER_HEADER = "buyer";
+    private static final String IMAGE_NAME_HEADER = "image_name";
+    private static final String INVOICE_IMAGE_HEADER = "invoice_image";
+    private static final String BUYER_FILE_TOO_SHORT_MESSAGE = "Buyer file %s is shorter than its checkpoint.";
+
+    protected final String outputDirectory;
+    protected final String[] headers;
+    protected final SplitMetrics splitMetrics;
+    protected final CompressionStage compressionStage;
+    protected final WriteBufferManager writeBufferManager;
+
+    protected final int buyerIndex;
+    protected final int imageNameIndex;
+    protected final int invoiceImageIndex;
+
+    // Set by the splitter when the run appends to the files of earlier runs
+    IncrementalSplit incrementalSplit;
+
+    // Set by the splitter when the rows of the uncompressed buyer files are indexed
+    InvoiceIndex invoiceIndex;
+
+    protected SplitSession(String outputDirectory, String[] headers, SplitMetrics splitMetrics,
+                           CompressionStage compressionStage, WriteBufferManager writeBufferManager) {
+        this.outputDirectory = outputDirectory;
+        this.headers = headers;
+        this.splitMetrics = splitMetrics;
+        this.compressionStage = compressionStage;
+        this.writeBufferManager = writeBufferManager;
+        this.buyerIndex = getElementIndex(BUYER_HEADER, headers);
+        this.imageNameIndex = getElementIndex(IMAGE_NAME_HEADER, headers);
+        this.invoiceImageIndex = getElementIndex(INVOICE_IMAGE_HEADER, headers);
+    }
+
+    protected abstract void writeInvoice(CsvRecord line, String buyer) throws IOException;
+
+    /**
+     * Returns why a row cannot be written by this session, null when it can. Called before
+     * {@link #writeInvoice}, so a malformed row leaves the buyer files untouched.
+     */
+    protected String validate(CsvRecord line) throws IOException {
+        return null;
+    }
+
+    protected abstract void finalizeWriters() throws IOException;
+
+    /**
+     * Closes every writer of a run that failed, completing the files as far as they got. Unlike
+     * {@link #finalizeWriters()} it carries on past a writer that fails.
+     */
+    protected abstract void abortWriters() throws IOException;
+
+    /**
+     * Returns the number of distinct buyers written so far.
+     */
+    protected abstract int getBuyerCount();
+
+    /**
+     * Returns every buyer written so far, including the ones restored from a checkpoint.
+     */
+    protected abstract Collection<String> getBuyers();
+
+    /**
+     * Returns the name of the file of a buyer, without the extension of the output codec.
+     */
+    protected abstract String getBuyerFileName(String buyer);
+
+    /**
+     * Completes the file of a buyer that gets no further rows in this run.
+     */
+    protected abstract void finishWriter(String buyer) throws IOException;
+
+    /**
+     * Suspends every open writer and waits for output still in flight, so every buyer file
+     * on disk ends right after the last row written.
+     */
+    protected abstract void suspendWriters() throws IOException;
+
+    /**
+     * Marks buyers as written by an earlier run, so their files are continued on their next row
+     * and completed at the end even when no further row arrives.
+     */
+    protected abstract void restoreWriters(Collection<String> buyers);
+
+    /**
+     * Suspends all writers and returns the length of every buyer file, keyed by buyer.
+     */
+    Map<String, Long> checkpoint() throws IOException {
+        this.suspendWriters();
+        Map<String, Long> fileLengths = new LinkedHashMap<>();
+        for (String buyer : this.getBuyers()) {
+            fileLengths.put(buyer, this.getBuyerFile(buyer).length());
+        }
+        return fileLengths;
+    }
+
+    /**
+     * Cuts every buyer file back to its length at the checkpoint, dropping the rows written
+     * after it, and continues the files from there.
+     */
+    void restore(Map<String, Long> fileLengths) throws IOException {
+        for (Map.Entry<String, Long> fileLength : fileLengths.entrySet()) {
+            File file = this.getBuyerFile(fileLength.getKey());
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                if (fileChannel.size() < fileLength.getValue()) {
+                    throw new IOException(String.format(BUYER_FILE_TOO_SHORT_MESSAGE, file));
+                }
+                fileChannel.truncate(fileLength.getValue());
+            }
+        }
+        this.restoreWriters(fileLengths.keySet());
+    }
+
+    /**
+     * Continues the file an earlier run wrote for {@code buyer} into the output directory, so
+     * the next rows of the buyer are appended to it. Returns false when there is no such file.
+     */
+    boolean continueFile(String buyer) throws IOException {
+        File file = this.getBuyerFile(buyer);
+        if (!file.isFile()) {
+            return false;
+        }
+        this.restore(Map.of(buyer, this.getContinuedLength(file)));
+        return true;
+    }
+
+    /**
+     * Returns the length a finished buyer file is cut back to before rows are appended to it,
+     * by default its whole length.
+     *
+     * @throws IOException when the file cannot be continued in the format of the session
+     */
+    protected long getContinuedLength(File file) throws IOException {
+        return file.length();
+    }
+
+    protected static boolean isValidIndex(int index, CsvRecord line) {
+        return 0 <= index && index < line.size();
+    }
+
+    protected File createFile(String fileName) throws IOException {
+        Files.createDirectories(Paths.get(this.outputDirectory));
+        return new File(this.outputDirectory + File.separator + fileName);
+    }
+
+    protected File getBuyerFile(String buyer) throws IOException {
+        return this.createFile(this.getBuyerFileName(buyer) + this.compressionStage.getExtension());
+    }
+
+    /**
+     * Opens a buffered stream to the file of {@code buyer}, compressed with the codec of the run,
+     * whose extension is appended to the name. Uncompressed files are buffered by the
+     * {@link WriteBufferManager} of the session. The bytes out metric counts the bytes that reach
+     * the disk. When the session keeps an {@link InvoiceIndex}, the stream tells its position, see
+     * {@link #getPosition}.
+     */
+    protected OutputStream openOutputStream(String buyer, boolean append) throws IOException {
+        File file = this.getBuyerFile(buyer);
+        if (!this.compressionStage.isCompressed()) {
+            OutputStream outputStream = this.writeBufferManager.open(file.toPath(), append);
+            return this.invoiceIndex == null ? outputStream : new PositionOutputStream(outputStream, append ? file.length() : 0);
+        }
+        FileOutputStream fileOutputStream = new FileOutputStream(file, append);
+        return this.compressionStage.open(new CountingOutputStream(fileOutputStream, this.splitMetrics));
+    }
+
+    /**
+     * Returns the position in its buyer file of the next byte written to a stream opened with
+     * {@link #openOutputStream} while the session keeps an {@link InvoiceIndex}.
+     */
+    protected static long getPosition(OutputStream outputStream) {
+        return ((PositionOutputStream) outputStream).getPosition();
+    }
+
+    private static int getElementIndex(String element, String[] elements) {
+        return IntStream
+                .range(0, elements.length)
+                .filter(i -> elements[i].equals(element))
+                .findFirst()
+                .orElse(-1);
+    }
+}
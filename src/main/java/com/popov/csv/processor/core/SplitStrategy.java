@@ -0,0 +1,31 @@
+package com.popov.csv.processor.core;
+
+import java.util.Locale;
+
+/**
+ * How the rows of an input reach the buyer files, selected with {@code split.strategy} or per
+ * request.
+ */
+public enum SplitStrategy {
+
+    /**
+     * Every row is appended to its buyer file as it is read. Buyer files stay open, up to
+     * {@code output.writer.max-open-files} of them, and are reopened after an eviction.
+     */
+    STREAMING,
+
+    /**
+     * Rows are first sorted by buyer into temporary runs within {@code split.sort.memory-budget}
+     * and then merged, so every buyer file is opened once, written sequentially and closed.
+     * Costs a second pass over the data, but memory and file handles stay fixed however many
+     * buyers the input has. Splits in this mode write no checkpoints.
+     */
+    SORTED;
+
+    /**
+     * @throws IllegalArgumentException for an unknown strategy
+     */
+    public static SplitStrategy of(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+}
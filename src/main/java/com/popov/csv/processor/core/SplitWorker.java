@@ -0,0 +1,26 @@
+package com.popov.csv.processor.core;
+
+import com.opencsv.exceptions.CsvValidationException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits one partition of a {@link PartitionedSplitCoordinator} run. The partition is a CSV
+ * feed of its own, the header followed by every row whose buyer hashes to the partition, so a
+ * worker can be anything that splits a feed: a splitter in this JVM or another instance of
+ * the application.
+ */
+public interface SplitWorker {
+
+    /**
+     * Name of the worker in the run report, e.g. its address.
+     */
+    String getName();
+
+    /**
+     * Splits {@code partition}, reading it to its end. Returns the output directory of the
+     * buyer files, or null when the worker does not tell.
+     */
+    String split(InputStream partition, SplitOptions options) throws IOException, CsvValidationException;
+}
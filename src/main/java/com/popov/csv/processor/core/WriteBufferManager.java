@@ -0,0 +1,243 @@
+package com.popov.csv.processor.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Write buffers of the uncompressed buyer files of one split session, taking their memory from
+ * the {@link WriteBufferPool} all sessions share. A buffer is a list of direct segments of
+ * {@value #SEGMENT_SIZE} bytes, written out with one gathering {@link FileChannel} write. Every
+ * buyer starts with a single segment; a buffer that fills up doubles the segments it may hold
+ * before its next write, up to {@code maxBufferSize}, so hot buyers write large blocks while
+ * cold buyers hold one segment. When the pool has no segment left, the buffer of the session
+ * holding the most bytes is written out and its segments go to the buyer that needs one.
+ * Closing a stream returns its segments to the pool. Not thread-safe, a manager belongs to a
+ * single {@link SplitSession}.
+ */
+final class WriteBufferManager {
+
+    static final int SEGMENT_SIZE = 8 * 1024;
+
+    private final WriteBufferPool writeBufferPool;
+    private final int maxSegmentsPerBuffer;
+    private final SplitMetrics splitMetrics;
+    private final Set<BufferedChannelOutputStream> openStreams = new LinkedHashSet<>();
+
+    WriteBufferManager(WriteBufferPool writeBufferPool, int maxBufferSize, SplitMetrics splitMetrics) {
+        this.writeBufferPool = writeBufferPool;
+        this.maxSegmentsPerBuffer = Math.max(1, maxBufferSize / SEGMENT_SIZE);
+        this.splitMetrics = splitMetrics;
+    }
+
+    /**
+     * Opens a buffered stream to {@code file}, continuing it when {@code append} is set. Closing
+     * the stream writes out its buffer and returns the segments to the manager.
+     */
+    OutputStream open(Path file, boolean append) throws IOException {
+        FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+        BufferedChannelOutputStream outputStream = new BufferedChannelOutputStream(fileChannel);
+        this.openStreams.add(outputStream);
+        return outputStream;
+    }
+
+    /**
+     * Closes the streams of the session still open, which writes out their buffers and returns
+     * every segment of the session to the pool. A stream that fails to close still gives back
+     * its segments; the first failure is thrown after all streams are closed.
+     */
+    void close() throws IOException {
+        IOException failure = null;
+        for (BufferedChannelOutputStream outputStream : new ArrayList<>(this.openStreams)) {
+            try {
+                outputStream.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Returns a segment for {@code requester}, or null when the pool is used up and no other
+     * buffer of the session holds more bytes, in which case the requester has to write out its
+     * own buffer.
+     */
+    private ByteBuffer acquire(BufferedChannelOutputStream requester) throws IOException {
+        ByteBuffer segment = this.writeBufferPool.acquire();
+        if (segment != null) {
+            return segment;
+        }
+
+        // Empty buffers give up their segments for free, otherwise the largest buffer is written out
+        BufferedChannelOutputStream victim = null;
+        for (BufferedChannelOutputStream outputStream : this.openStreams) {
+            if (outputStream == requester || outputStream.owned == 0) {
+                continue;
+            }
+            if (outputStream.buffered == 0) {
+                victim = outputStream;
+                break;
+            }
+            if (victim == null || outputStream.buffered > victim.buffered) {
+                victim = outputStream;
+            }
+        }
+        if (victim == null || (victim.buffered > 0 && victim.buffered <= requester.buffered)) {
+            return null;
+        }
+        victim.writeBuffer();
+        // One segment goes straight to the requester, so no other session takes it meanwhile
+        segment = victim.segments[--victim.owned];
+        victim.segments[victim.owned] = null;
+        victim.releaseSegments();
+        return segment;
+    }
+
+    /**
+     * Buffer of one buyer file. Bytes go into {@code segments[current]}; the segments before it
+     * are full, the ones after it empty.
+     */
+    private final class BufferedChannelOutputStream extends OutputStream {
+
+        private final FileChannel fileChannel;
+        private ByteBuffer[] segments = new ByteBuffer[1];
+        private int owned;
+        private int current;
+        private int limit = 1;
+        private long buffered;
+        private boolean closed;
+
+        private BufferedChannelOutputStream(FileChannel fileChannel) {
+            this.fileChannel = fileChannel;
+        }
+
+        @Override
+        public void write(int value) throws IOException {
+            this.ensureSpace();
+            this.segments[this.current].put((byte) value);
+            this.buffered++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                this.ensureSpace();
+                ByteBuffer segment = this.segments[this.current];
+                int copied = Math.min(length, segment.remaining());
+                segment.put(bytes, offset, copied);
+                this.buffered += copied;
+                offset += copied;
+                length -= copied;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.writeBuffer();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            try {
+                this.writeBuffer();
+            } finally {
+                this.releaseSegments();
+                WriteBufferManager.this.openStreams.remove(this);
+                this.fileChannel.close();
+            }
+        }
+
+        private void ensureSpace() throws IOException {
+            if (this.owned > 0 && this.segments[this.current].hasRemaining()) {
+                return;
+            }
+            if (this.current + 1 < this.owned) {
+                this.current++;
+                return;
+            }
+
+            if (this.owned < this.limit) {
+                ByteBuffer segment = WriteBufferManager.this.acquire(this);
+                if (segment == null && this.owned == 0) {
+                    // No other buffer of the session holds a segment, the pool lends one beyond its budget
+                    segment = WriteBufferManager.this.writeBufferPool.acquireBeyondBudget();
+                }
+                if (segment != null) {
+                    this.addSegment(segment);
+                    return;
+                }
+            } else {
+                // Filled every segment it may hold, give this buyer a larger buffer
+                this.limit = Math.min(this.limit * 2, WriteBufferManager.this.maxSegmentsPerBuffer);
+            }
+            this.writeBuffer();
+        }
+
+        private void addSegment(ByteBuffer segment) {
+            if (this.owned == this.segments.length) {
+                this.segments = Arrays.copyOf(this.segments, this.segments.length * 2);
+            }
+            this.segments[this.owned] = segment;
+            this.current = this.owned++;
+        }
+
+        /**
+         * Writes every buffered byte with gathering writes and empties the segments.
+         */
+        private void writeBuffer() throws IOException {
+            if (this.buffered == 0) {
+                return;
+            }
+            int count = this.current + 1;
+            for (int i = 0; i < count; i++) {
+                this.segments[i].flip();
+            }
+            try {
+                long remaining = this.buffered;
+                int first = 0;
+                while (remaining > 0) {
+                    remaining -= this.fileChannel.write(this.segments, first, count - first);
+                    WriteBufferManager.this.splitMetrics.recordWriteCall();
+                    while (first < count && !this.segments[first].hasRemaining()) {
+                        first++;
+                    }
+                }
+                WriteBufferManager.this.splitMetrics.recordBytesOut(this.buffered);
+            } finally {
+                for (int i = 0; i < count; i++) {
+                    this.segments[i].clear();
+                }
+                this.buffered = 0;
+                this.current = 0;
+            }
+        }
+
+        private void releaseSegments() {
+            for (int i = 0; i < this.owned; i++) {
+                WriteBufferManager.this.writeBufferPool.release(this.segments[i]);
+                this.segments[i] = null;
+            }
+            this.owned = 0;
+            this.current = 0;
+        }
+    }
+}
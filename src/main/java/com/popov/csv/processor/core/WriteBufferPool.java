@@ -0,0 +1,77 @@
+package com.popov.csv.processor.core;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Direct segments of {@value WriteBufferManager#SEGMENT_SIZE} bytes shared by the
+ * {@link WriteBufferManager} of every split session, so concurrent runs split one memory
+ * budget instead of taking a budget each. Segments are allocated on demand up to the budget
+ * and come back when a buffer gives them up or its file is closed. A buffer that gets no
+ * segment at all may take one beyond the budget, which is dropped on its return while the
+ * pool is over budget. Thread-safe.
+ */
+@Component
+public class WriteBufferPool {
+
+    static final long DEFAULT_BUDGET = 32L * 1024 * 1024;
+
+    private final int maxSegments;
+    private final ArrayDeque<ByteBuffer> freeSegments = new ArrayDeque<>();
+    private int allocatedSegments;
+
+    /**
+     * @param budget direct memory shared by the write buffers of the uncompressed buyer files
+     *               of all runs
+     */
+    public WriteBufferPool(@Value("${output.writer.buffer-budget:" + DEFAULT_BUDGET + "}") long budget) {
+        this.maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budget / WriteBufferManager.SEGMENT_SIZE));
+    }
+
+    /**
+     * Returns a free segment, or null when the budget is used up.
+     */
+    synchronized ByteBuffer acquire() {
+        ByteBuffer segment = this.freeSegments.poll();
+        if (segment != null) {
+            return segment;
+        }
+        if (this.allocatedSegments < this.maxSegments) {
+            return this.allocate();
+        }
+        return null;
+    }
+
+    /**
+     * Returns a free segment, allocating one beyond the budget when there is none.
+     */
+    synchronized ByteBuffer acquireBeyondBudget() {
+        ByteBuffer segment = this.acquire();
+        return segment != null ? segment : this.allocate();
+    }
+
+    synchronized void release(ByteBuffer segment) {
+        if (this.allocatedSegments > this.maxSegments) {
+            this.allocatedSegments--;
+            return;
+        }
+        segment.clear();
+        this.freeSegments.push(segment);
+    }
+
+    synchronized int getAllocatedSegments() {
+        return this.allocatedSegments;
+    }
+
+    synchronized int getFreeSegments() {
+        return this.freeSegments.size();
+    }
+
+    private ByteBuffer allocate() {
+        this.allocatedSegments++;
+        return ByteBuffer.allocateDirect(WriteBufferManager.SEGMENT_SIZE);
+    }
+}
@@ -0,0 +1,228 @@
+package com.popov.csv.processor.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per-buyer writers of a split session, with at most {@code maxOpenWriters} of them open at
+ * the same time. When a new buyer needs a handle and the cache is full, the least recently
+ * used writer is suspended; its buyer is reopened through the {@link WriterFactory} on the
+ * next row. Not thread-safe, a cache belongs to a single {@link SplitSession}.
+ */
+public class WriterCache<W> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriterCache.class);
+
+    private static final String WRITER_CACHE_STATISTICS_MESSAGE = "Finished {} writers: {} hits, {} evictions, {} reopens.";
+
+    /**
+     * Opens, suspends and finishes the writers of a {@link WriterCache}.
+     */
+    public interface WriterFactory<W> {
+
+        /**
+         * Opens the writer of a buyer. {@code reopen} is set when the buyer already had a writer
+         * that got evicted, in which case the output must be continued rather than started over.
+         */
+        W open(String key, boolean reopen) throws IOException;
+
+        /**
+         * Releases the handle of an evicted writer so that it can be reopened later.
+         */
+        void suspend(String key, W writer) throws IOException;
+
+        /**
+         * Completes and closes a writer that is still open when the session ends.
+         */
+        void finish(String key, W writer) throws IOException;
+
+        /**
+         * Completes the output of a buyer whose writer was evicted and never reopened.
+         */
+        default void finishEvicted(String key) throws IOException {
+        }
+    }
+
+    private final int maxOpenWriters;
+    private final WriterFactory<W> writerFactory;
+
+    private final LinkedHashMap<String, W> openWriters = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> knownKeys = new HashSet<>();
+    private final Set<String> finishedKeys = new HashSet<>();
+
+    private long hits;
+    private long evictions;
+    private long reopens;
+
+    public WriterCache(int maxOpenWriters, WriterFactory<W> writerFactory) {
+        this.maxOpenWriters = Math.max(1, maxOpenWriters);
+        this.writerFactory = writerFactory;
+    }
+
+    public W get(String key) throws IOException {
+        W writer = this.openWriters.get(key);
+        if (writer != null) {
+            this.hits++;
+            return writer;
+        }
+
+        boolean reopen = !this.knownKeys.add(key);
+        if (reopen) {
+            this.reopens++;
+        }
+
+        this.evictLeastRecentlyUsed();
+        writer = this.writerFactory.open(key, reopen);
+        this.openWriters.put(key, writer);
+        return writer;
+    }
+
+    /**
+     * Finishes every writer handed out by this cache, including the ones evicted earlier.
+     */
+    public void finishAll() throws IOException {
+        this.finishRemaining(false);
+
+        LOGGER.debug(WRITER_CACHE_STATISTICS_MESSAGE, this.knownKeys.size(), this.hits, this.evictions, this.reopens);
+    }
+
+    /**
+     * Finishes every writer not finished yet, like {@link #finishAll()}, but carries on past a
+     * writer that fails, so that every file gets closed when a session is given up. Throws the
+     * first failure with the further ones suppressed.
+     */
+    public void closeAll() throws IOException {
+        this.finishRemaining(true);
+    }
+
+    /**
+     * Finishes the writer of a key before the session ends, for callers that know no further
+     * row of it will come. {@link #finishAll()} skips the key afterwards.
+     */
+    public void finish(String key) throws IOException {
+        W writer = this.openWriters.remove(key);
+        if (writer != null) {
+            this.writerFactory.finish(key, writer);
+        } else if (this.knownKeys.contains(key) && !this.finishedKeys.contains(key)) {
+            this.writerFactory.finishEvicted(key);
+        }
+        this.finishedKeys.add(key);
+    }
+
+    /**
+     * Suspends every open writer, as if all of them were evicted. The next row of a buyer
+     * reopens its writer.
+     */
+    public void suspendAll() throws IOException {
+        Iterator<Map.Entry<String, W>> iterator = this.openWriters.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, W> entry = iterator.next();
+            iterator.remove();
+            this.writerFactory.suspend(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Marks keys as already written by an earlier run, so they are reopened rather than
+     * started over. Only valid before the first {@link #get} of those keys.
+     */
+    public void restore(Collection<String> keys) {
+        this.knownKeys.addAll(keys);
+    }
+
+    /**
+     * Returns every key handed out or restored so far.
+     */
+    public Set<String> getKeys() {
+        return Collections.unmodifiableSet(this.knownKeys);
+    }
+
+    public int getOpenWriterCount() {
+        return this.openWriters.size();
+    }
+
+    public int getWriterCount() {
+        return this.knownKeys.size();
+    }
+
+    public long getHits() {
+        return this.hits;
+    }
+
+    public long getEvictions() {
+        return this.evictions;
+    }
+
+    public long getReopens() {
+        return this.reopens;
+    }
+
+    /**
+     * Finishes the open writers, then the evicted ones. A key counts as finished once it is
+     * attempted, so a later call does not complete its output twice.
+     */
+    private void finishRemaining(boolean carryOn) throws IOException {
+        Throwable failure = null;
+        Iterator<Map.Entry<String, W>> iterator = this.openWriters.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, W> entry = iterator.next();
+            iterator.remove();
+            this.finishedKeys.add(entry.getKey());
+            try {
+                this.writerFactory.finish(entry.getKey(), entry.getValue());
+            } catch (IOException | RuntimeException e) {
+                if (!carryOn) {
+                    throw e;
+                }
+                failure = addFailure(failure, e);
+            }
+        }
+
+        for (String key : this.knownKeys) {
+            if (this.finishedKeys.add(key)) {
+                try {
+                    this.writerFactory.finishEvicted(key);
+                } catch (IOException | RuntimeException e) {
+                    if (!carryOn) {
+                        throw e;
+                    }
+                    failure = addFailure(failure, e);
+                }
+            }
+        }
+
+        if (failure instanceof IOException ioException) {
+            throw ioException;
+        }
+        if (failure instanceof RuntimeException runtimeException) {
+            throw runtimeException;
+        }
+    }
+
+    private static Throwable addFailure(Throwable failure, Throwable e) {
+        if (failure == null) {
+            return e;
+        }
+        failure.addSuppressed(e);
+        return failure;
+    }
+
+    private void evictLeastRecentlyUsed() throws IOException {
+        Iterator<Map.Entry<String, W>> iterator = this.openWriters.entrySet().iterator();
+        while (this.openWriters.size() >= this.maxOpenWriters && iterator.hasNext()) {
+            Map.Entry<String, W> eldest = iterator.next();
+            iterator.remove();
+            this.evictions++;
+            this.writerFactory.suspend(eldest.getKey(), eldest.getValue());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.popov.csv.processor.job;
+
+import com.popov.csv.processor.core.SplitProgress;
+
+import java.nio.file.Path;
+import java.util.concurrent.Future;
+
+/**
+ * One split submitted through the job API. The uploaded file is kept in {@code inputFile}
+ * until the job is over; the live counters are in {@link #getProgress()}.
+ */
+public class SplitJob {
+
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED;
+
+        public boolean isFinished() {
+            return this == SUCCEEDED || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    private final String id;
+    private final Path inputFile;
+    private final long totalBytes;
+    private final SplitProgress progress = new SplitProgress();
+
+    private volatile State state = State.QUEUED;
+    private volatile String error;
+    private volatile long startNanos;
+    private volatile long endNanos;
+    private volatile Future<?> future;
+
+    SplitJob(String id, Path inputFile, long totalBytes) {
+        this.id = id;
+        this.inputFile = inputFile;
+        this.totalBytes = totalBytes;
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    public long getTotalBytes() {
+        return this.totalBytes;
+    }
+
+    public SplitProgress getProgress() {
+        return this.progress;
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    public String getError() {
+        return this.error;
+    }
+
+    /**
+     * Estimates the remaining run time from the bytes consumed so far, or returns -1 while there
+     * is nothing to estimate from.
+     */
+    public long getEtaMillis() {
+        if (this.state == State.SUCCEEDED) {
+            return 0;
+        }
+        long consumed = this.progress.getBytesConsumed();
+        if (this.state != State.RUNNING || consumed <= 0 || this.totalBytes <= 0) {
+            return -1;
+        }
+        long elapsedNanos = System.nanoTime() - this.startNanos;
+        long remainingBytes = Math.max(0, this.totalBytes - consumed);
+        return (long) (elapsedNanos / 1_000_000d * remainingBytes / consumed);
+    }
+
+    public long getElapsedMillis() {
+        if (this.startNanos == 0) {
+            return 0;
+        }
+        long end = this.endNanos != 0 ? this.endNanos : System.nanoTime();
+        return (end - this.startNanos) / 1_000_000;
+    }
+
+    Path getInputFile() {
+        return this.inputFile;
+    }
+
+    Future<?> getFuture() {
+        return this.future;
+    }
+
+    void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    void start() {
+        this.startNanos = System.nanoTime();
+        this.state = State.RUNNING;
+    }
+
+    void finish(State state, String error) {
+        this.error = error;
+        this.endNanos = System.nanoTime();
+        this.state = state;
+    }
+}
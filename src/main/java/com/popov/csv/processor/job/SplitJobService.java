@@ -0,0 +1,253 @@
+package com.popov.csv.processor.job;
+
+import com.opencsv.exceptions.CsvValidationException;
+import com.popov.csv.processor.config.OutputDirectoryResolver;
+import com.popov.csv.processor.core.InvoiceCsvSplitter;
+import com.popov.csv.processor.core.OutputFormats;
+import com.popov.csv.processor.core.SplitCheckpoint;
+import com.popov.csv.processor.core.SplitOptions;
+import com.popov.csv.processor.core.SplitProgress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs splits in the background. An upload is copied to a temporary file, so the request can
+ * return right away, and is split from there on the job executor. Finished jobs stay queryable
+ * until {@code split.jobs.max-retained} newer ones have finished. A job interrupted by a crash
+ * keeps its temporary file and checkpoint, and {@link #resume(String)} continues it. A run
+ * that a job of this service is still writing cannot be resumed.
+ */
+@Service
+public class SplitJobService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SplitJobService.class);
+
+    private static final String JOB_FILE_PREFIX = "split-job-";
+    private static final String JOB_FILE_SUFFIX = ".csv";
+    private static final String INVALID_CSV_INPUT_FILE = "Invalid csv input file.";
+    private static final String UNABLE_TO_PROCESS_THE_REQUEST = "Unable to process the request";
+    private static final String JOB_FAILED_MESSAGE = "Split job {} failed.";
+    private static final String DELETE_FAILED_MESSAGE = "Unable to delete input file of split job {}.";
+    private static final String UNKNOWN_OUTPUT_FORMAT_MESSAGE = "Unknown output format %s.";
+    private static final String RESUMING_JOB_MESSAGE = "Resuming split of {} into {} as job {}.";
+    private static final String RUN_IN_PROGRESS_MESSAGE = "Run %s is still being split.";
+
+    private static final String TEMPORARY_DIRECTORY_PROPERTY = "java.io.tmpdir";
+
+    private static final int DEFAULT_MAX_RETAINED_JOBS = 1000;
+
+    @FunctionalInterface
+    private interface SplitTask {
+        void split(SplitProgress progress) throws IOException, CsvValidationException;
+    }
+
+    @Autowired
+    private final OutputFormats outputFormats;
+
+    @Autowired
+    private final ExecutorService jobExecutor;
+
+    @Autowired
+    private OutputDirectoryResolver outputDirectoryResolver;
+
+    @Value("${split.jobs.max-retained:" + DEFAULT_MAX_RETAINED_JOBS + "}")
+    protected int maxRetainedJobs = DEFAULT_MAX_RETAINED_JOBS;
+
+    private final Map<String, SplitJob> jobs = new ConcurrentHashMap<>();
+    private final Queue<String> finishedJobs = new ConcurrentLinkedQueue<>();
+    // Output directories claimed by resumed jobs until they finish, keyed by directory
+    private final Map<Path, String> resumedRuns = new ConcurrentHashMap<>();
+
+    public SplitJobService(OutputFormats outputFormats, @Qualifier("jobExecutor") ExecutorService jobExecutor) {
+        this.outputFormats = outputFormats;
+        this.jobExecutor = jobExecutor;
+    }
+
+    /**
+     * @throws RejectedExecutionException when the job queue is full
+     */
+    public SplitJob submit(MultipartFile file) throws IOException {
+        return this.submit(file, SplitOptions.DEFAULTS);
+    }
+
+    public boolean supportsFormat(String format) {
+        return this.outputFormats.find(format).isPresent();
+    }
+
+    /**
+     * @throws IllegalArgumentException when {@code options} name an unknown output format
+     * @throws RejectedExecutionException when the job queue is full
+     */
+    public SplitJob submit(MultipartFile file, SplitOptions options) throws IOException {
+        InvoiceCsvSplitter splitter = this.outputFormats.find(options.format())
+                .orElseThrow(() -> new IllegalArgumentException(String.format(UNKNOWN_OUTPUT_FORMAT_MESSAGE, options.format())));
+        Path inputFile = Files.createTempFile(JOB_FILE_PREFIX, JOB_FILE_SUFFIX);
+        try {
+            file.transferTo(inputFile);
+            SplitJob job = new SplitJob(UUID.randomUUID().toString(), inputFile, Files.size(inputFile));
+            return this.schedule(job, progress -> splitter.splitCsvInvoicesByBuyer(inputFile, progress, options));
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(inputFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Continues the job that split into the output directory {@code run} from its last
+     * checkpoint. Empty when the run left no checkpoint of a job, e.g. because it finished.
+     *
+     * @throws IllegalStateException when a job of this service is still writing the run
+     * @throws RejectedExecutionException when the job queue is full
+     */
+    public Optional<SplitJob> resume(String run) throws IOException {
+        Optional<String> outputDirectory = this.outputDirectoryResolver.getOutputDirectory(run);
+        if (outputDirectory.isEmpty()) {
+            return Optional.empty();
+        }
+        // The checkpoint names the format of the run, and so the splitter that continues it
+        Optional<SplitCheckpoint> checkpoint = this.outputFormats.getDefault().findCheckpoint(outputDirectory.get());
+        if (checkpoint.isEmpty() || !isJobFile(checkpoint.get().getInputPath())
+                || !Files.isRegularFile(checkpoint.get().getInputPath())) {
+            return Optional.empty();
+        }
+        Optional<InvoiceCsvSplitter> splitter = this.outputFormats.find(checkpoint.get().format());
+        if (splitter.isEmpty()) {
+            return Optional.empty();
+        }
+
+        Path inputFile = checkpoint.get().getInputPath();
+        SplitJob job = new SplitJob(UUID.randomUUID().toString(), inputFile, checkpoint.get().inputSize());
+        this.claimRun(run, outputDirectory.get(), job);
+        LOGGER.info(RESUMING_JOB_MESSAGE, inputFile, outputDirectory.get(), job.getId());
+        try {
+            return Optional.of(this.schedule(job,
+                    progress -> splitter.get().resumeCsvInvoicesByBuyer(outputDirectory.get(), progress)));
+        } catch (RejectedExecutionException e) {
+            this.resumedRuns.values().remove(job.getId());
+            throw e;
+        }
+    }
+
+    public Optional<SplitJob> find(String id) {
+        return Optional.ofNullable(this.jobs.get(id));
+    }
+
+    /**
+     * Cancels a queued job right away; a running job stops at its next row and keeps the
+     * buyer files written so far.
+     */
+    public Optional<SplitJob> cancel(String id) {
+        SplitJob job = this.jobs.get(id);
+        if (job == null) {
+            return Optional.empty();
+        }
+
+        job.getProgress().cancel();
+        if (job.getState() == SplitJob.State.QUEUED && job.getFuture().cancel(false)) {
+            this.finish(job, SplitJob.State.CANCELLED, null);
+        }
+        return Optional.of(job);
+    }
+
+    /**
+     * Claims the output directory of a run for a resumed job. A second split of the run would
+     * cut back and append to the buyer files the first one is still writing.
+     */
+    private synchronized void claimRun(String run, String outputDirectory, SplitJob job) {
+        Path directory = normalize(outputDirectory);
+        boolean running = this.resumedRuns.containsKey(directory) || this.jobs.values().stream()
+                .filter(other -> !other.getState().isFinished())
+                .map(other -> other.getProgress().getOutputDirectory())
+                .anyMatch(other -> other != null && normalize(other).equals(directory));
+        if (running) {
+            throw new IllegalStateException(String.format(RUN_IN_PROGRESS_MESSAGE, run));
+        }
+        this.resumedRuns.put(directory, job.getId());
+    }
+
+    private static Path normalize(String directory) {
+        return Paths.get(directory).toAbsolutePath().normalize();
+    }
+
+    private SplitJob schedule(SplitJob job, SplitTask task) {
+        // The future exists before the job is visible, so a cancel can always reach it
+        FutureTask<Void> future = new FutureTask<>(() -> this.run(job, task), null);
+        job.setFuture(future);
+        this.jobs.put(job.getId(), job);
+        try {
+            this.jobExecutor.execute(future);
+        } catch (RejectedExecutionException e) {
+            this.jobs.remove(job.getId());
+            throw e;
+        }
+        return job;
+    }
+
+    // Only files this service created are deleted when the job is over
+    private static boolean isJobFile(Path inputFile) {
+        Path temporaryDirectory = Paths.get(System.getProperty(TEMPORARY_DIRECTORY_PROPERTY)).toAbsolutePath().normalize();
+        Path fileName = inputFile.getFileName();
+        return fileName != null
+                && fileName.toString().startsWith(JOB_FILE_PREFIX)
+                && temporaryDirectory.equals(inputFile.toAbsolutePath().normalize().getParent());
+    }
+
+    private void run(SplitJob job, SplitTask task) {
+        if (job.getProgress().isCancelled()) {
+            this.finish(job, SplitJob.State.CANCELLED, null);
+            return;
+        }
+
+        job.start();
+        try {
+            task.split(job.getProgress());
+            this.finish(job, SplitJob.State.SUCCEEDED, null);
+        } catch (CancellationException e) {
+            this.finish(job, SplitJob.State.CANCELLED, null);
+        } catch (CsvValidationException | RuntimeException e) {
+            LOGGER.error(JOB_FAILED_MESSAGE, job.getId(), e);
+            this.finish(job, SplitJob.State.FAILED, INVALID_CSV_INPUT_FILE);
+        } catch (IOException e) {
+            LOGGER.error(JOB_FAILED_MESSAGE, job.getId(), e);
+            this.finish(job, SplitJob.State.FAILED, UNABLE_TO_PROCESS_THE_REQUEST);
+        }
+    }
+
+    private void finish(SplitJob job, SplitJob.State state, String error) {
+        job.finish(state, error);
+        try {
+            Files.deleteIfExists(job.getInputFile());
+        } catch (IOException e) {
+            LOGGER.warn(DELETE_FAILED_MESSAGE, job.getId(), e);
+        }
+        this.resumedRuns.values().remove(job.getId());
+
+        this.finishedJobs.add(job.getId());
+        while (this.finishedJobs.size() > this.maxRetainedJobs) {
+            String oldest = this.finishedJobs.poll();
+            if (oldest != null) {
+                this.jobs.remove(oldest);
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.popov.csv.processor.job;
+
+/**
+ * Response body of the job API. {@code etaMillis} is -1 while no estimate is available.
+ */
+public record SplitJobStatus(String id,
+                             SplitJob.State state,
+                             long rowsProcessed,
+                             long bytesConsumed,
+                             long totalBytes,
+                             int buyersSeen,
+                             long elapsedMillis,
+                             long etaMillis,
+                             String outputDirectory,
+                             String error) {
+
+    public static SplitJobStatus of(SplitJob job) {
+        return new SplitJobStatus(job.getId(),
+                job.getState(),
+                job.getProgress().getRowsProcessed(),
+                job.getProgress().getBytesConsumed(),
+                job.getTotalBytes(),
+                job.getProgress().getBuyersSeen(),
+                job.getElapsedMillis(),
+                job.getEtaMillis(),
+                job.getProgress().getOutputDirectory(),
+                job.getError());
+    }
+}
@@ -0,0 +1,146 @@
+package com.popov.csv.processor.core;
+
+import com.opencsv.CSVReader;
+import com.opencsv.exceptions.CsvValidationException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ByteCsvRecordReaderTest {
+
+	public static final String INPUT_CSV = "buyer,note,amount\r\n" +
+			"John,\"comma, inside\",10\n" +
+			"Jane,\"escaped \"\"quotes\"\"\",20\n" +
+			"\"John\",\"line\nbreak\",\n" +
+			"Jane,ünïcödé €,30";
+
+	@Test
+	public void testReadsSameFieldsAsOpenCsv() throws IOException, CsvValidationException {
+		List<String[]> expected = new ArrayList<>();
+		try (CSVReader csvReader = new CSVReader(new InputStreamReader(this.input(INPUT_CSV), StandardCharsets.UTF_8))) {
+			String[] line;
+			while ((line = csvReader.readNext()) != null) {
+				expected.add(line);
+			}
+		}
+
+		// A tiny buffer makes records span several reads and forces the buffer to grow
+		List<String[]> actual = this.readAll(new ByteCsvRecordReader(this.input(INPUT_CSV), 4));
+
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertArrayEquals(expected.get(i), actual.get(i));
+		}
+	}
+
+	@Test
+	public void testWritesUnquotedFieldBytes() throws IOException {
+		try (ByteCsvRecordReader reader = new ByteCsvRecordReader(this.input(INPUT_CSV))) {
+			reader.next();
+			reader.next();
+			CsvRecord record = reader.next();
+
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			record.writeTo(1, outputStream);
+
+			assertEquals("escaped \"quotes\"", outputStream.toString(StandardCharsets.UTF_8));
+			assertFalse(record.isEmpty(0));
+		}
+	}
+
+	@Test
+	public void testEmptyTrailingField() throws IOException {
+		try (ByteCsvRecordReader reader = new ByteCsvRecordReader(this.input("a,b,\n"))) {
+			CsvRecord record = reader.next();
+
+			assertEquals(3, record.size());
+			assertTrue(record.isEmpty(2));
+			assertNull(reader.next());
+		}
+	}
+
+	@Test
+	public void testUnterminatedQuotedField() {
+		ByteCsvRecordReader reader = new ByteCsvRecordReader(this.input("buyer\n\"John"));
+
+		assertThrows(IOException.class, () -> this.readAll(reader));
+	}
+
+	@Test
+	public void testSpillsOversizedField() throws IOException {
+		String largeField = "x".repeat(10_000);
+		String csv = "John,\"" + largeField + "\",10\r\nJane,small,20\n";
+
+		try (ByteCsvRecordReader reader = new ByteCsvRecordReader(this.input(csv), 16, 256)) {
+			CsvRecord record = reader.next();
+
+			assertTrue(reader.getBufferCapacity() <= 256);
+			assertEquals(largeField, record.get(1));
+			assertEquals("10", record.get(2));
+
+			ByteArrayOutputStream rawBytes = new ByteArrayOutputStream();
+			record.writeRawTo(rawBytes);
+			assertEquals("John,\"" + largeField + "\",10\r\n", rawBytes.toString(StandardCharsets.UTF_8));
+
+			try (InputStream field = record.openField(1)) {
+				assertArrayEquals(largeField.getBytes(StandardCharsets.UTF_8), field.readAllBytes());
+			}
+
+			assertArrayEquals(new String[]{"Jane", "small", "20"}, reader.next().toArray());
+		}
+	}
+
+	@Test
+	public void testTracksOffsetAndSkipsToIt() throws IOException {
+		String first = "John,\"" + "x".repeat(10_000) + "\",10\r\n";
+		String second = "Jane,small,20\n";
+		String third = "John,last,30\n";
+		byte[] csv = (first + second + third).getBytes(StandardCharsets.UTF_8);
+
+		try (ByteCsvRecordReader reader = new ByteCsvRecordReader(new ByteArrayInputStream(csv), 16, 256)) {
+			reader.next();
+			assertEquals(first.length(), reader.getOffset());
+			reader.next();
+			assertEquals(first.length() + second.length(), reader.getOffset());
+		}
+
+		try (ByteCsvRecordReader reader = new ByteCsvRecordReader(new ByteArrayInputStream(csv), 16, 256)) {
+			reader.skipTo(first.length() + second.length());
+
+			assertArrayEquals(new String[]{"John", "last", "30"}, reader.next().toArray());
+			assertEquals(csv.length, reader.getOffset());
+			assertNull(reader.next());
+		}
+	}
+
+	private List<String[]> readAll(RecordReader reader) throws IOException {
+		List<String[]> records = new ArrayList<>();
+		try (reader) {
+			CsvRecord record;
+			while ((record = reader.next()) != null) {
+				records.add(record.toArray());
+			}
+		} catch (CsvValidationException e) {
+			throw new IOException(e);
+		}
+		return records;
+	}
+
+	private ByteArrayInputStream input(String csv) {
+		return new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8));
+	}
+}
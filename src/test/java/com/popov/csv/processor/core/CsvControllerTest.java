@@ -2,21 +2,33 @@ package com.popov.csv.processor.core;
 
 import com.opencsv.exceptions.CsvValidationException;
 import com.popov.csv.processor.controller.CsvController;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.mock.web.MockMultipartFile;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
 public class CsvControllerTest {
@@ -28,6 +40,12 @@ public class CsvControllerTest {
     public static final String MISSING_CSV_INPUT_FILE_MESSAGE = "Missing csv input file.";
     public static final String INVALID_CSV_INPUT_FILE_MESSAGE = "Invalid csv input file.";
     public static final String UNABLE_TO_PROCESS_THE_REQUEST_MESSAGE = "Unable to process the request";
+    public static final String TOO_MANY_SPLIT_REQUESTS_MESSAGE = "Too many split requests in progress.";
+    public static final String UNKNOWN_SPLIT_STRATEGY_MESSAGE = "Unknown split strategy.";
+    public static final String UNKNOWN_OUTPUT_FORMAT_MESSAGE = "Unknown output format.";
+    public static final String INVALID_TARGET_MESSAGE = "Invalid target directory name.";
+    public static final String INVALID_ROW_FILTER_MESSAGE = "Invalid row filter.";
+    public static final String CSV_FORMAT = "csv";
 
     @Mock
     private InvoiceCsvSplitter invoiceCsvSplitter;
@@ -35,23 +53,40 @@ public class CsvControllerTest {
     @Mock
     private InputStream inputStream;
 
-    @InjectMocks
+    private ExecutorService splitExecutor;
+
+    private OutputFormats outputFormats;
+
     private CsvController csvController;
 
+    @BeforeEach
+    public void setUp() {
+        when(this.invoiceCsvSplitter.getFormat()).thenReturn(CSV_FORMAT);
+        this.splitExecutor = Executors.newSingleThreadExecutor();
+        this.outputFormats = new OutputFormats(List.of(this.invoiceCsvSplitter), CSV_FORMAT);
+        this.csvController = new CsvController(this.outputFormats, this.splitExecutor);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        this.splitExecutor.shutdownNow();
+    }
+
     @Test
-    public void splitInvoiceCsvWithValidFile() throws IOException {
+    public void splitInvoiceCsvWithValidFile() throws IOException, CsvValidationException {
         MockMultipartFile file = new MockMultipartFile(FILE, TEST_CSV, TEXT_CSV, inputStream);
 
-        ResponseEntity<String> response = csvController.splitInvoiceCsv(file);
+        ResponseEntity<String> response = csvController.splitInvoiceCsv(file, null, null, null, null, null);
 
         assertEquals(HttpStatus.OK, response.getStatusCode());
+        verify(invoiceCsvSplitter).splitCsvInvoicesByBuyer(eq(file), any(SplitProgress.class), eq(SplitOptions.DEFAULTS.withFormat(CSV_FORMAT)));
     }
 
     @Test
     public void splitInvoiceCsvWithNullFile()  {
         MockMultipartFile file = null;
 
-        ResponseEntity<String> response = csvController.splitInvoiceCsv(file);
+        ResponseEntity<String> response = csvController.splitInvoiceCsv(file, null, null, null, null, null);
 
         assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
         assertEquals(MISSING_CSV_INPUT_FILE_MESSAGE, response.getBody());
@@ -68,11 +103,136 @@ public class CsvControllerTest {
         this.verifyThrowsException(new IOException(),HttpStatus.INTERNAL_SERVER_ERROR, UNABLE_TO_PROCESS_THE_REQUEST_MESSAGE);
     }
 
+    @Test
+    public void splitInvoiceCsvStreamWithValidBody() throws IOException, CsvValidationException {
+        InputStream body = new ByteArrayInputStream(new byte[0]);
+
+        ResponseEntity<String> response = csvController.splitInvoiceCsvStream(body, null, null, null, null, null);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        verify(invoiceCsvSplitter).splitStreamedCsvInvoicesByBuyer(eq(body), any(SplitProgress.class), eq(SplitOptions.DEFAULTS.withFormat(CSV_FORMAT)));
+    }
+
+    @Test
+    public void splitInvoiceCsvStreamWithInvalidBody() throws IOException, CsvValidationException {
+        InputStream body = new ByteArrayInputStream(new byte[0]);
+        doThrow(new CsvValidationException()).when(invoiceCsvSplitter)
+                .splitStreamedCsvInvoicesByBuyer(any(InputStream.class), any(SplitProgress.class), any(SplitOptions.class));
+
+        ResponseEntity<String> response = csvController.splitInvoiceCsvStream(body, null, null, null, null, null);
+
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+        assertEquals(INVALID_CSV_INPUT_FILE_MESSAGE, response.getBody());
+    }
+
+    @Test
+    public void splitInvoiceCsvStreamWithSortedStrategy() throws IOException, CsvValidationException {
+        InputStream body = new ByteArrayInputStream(new byte[0]);
+
+        ResponseEntity<String> response = csvController.splitInvoiceCsvStream(body, "sorted", null, null, null, null);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        verify(invoiceCsvSplitter).splitStreamedCsvInvoicesByBuyer(eq(body), any(SplitProgress.class),
+                eq(SplitOptions.DEFAULTS.withStrategy(SplitStrategy.SORTED).withFormat(CSV_FORMAT)));
+    }
+
+    @Test
+    public void splitInvoiceCsvWithUnknownStrategy() {
+        MockMultipartFile file = new MockMultipartFile(FILE, TEST_CSV, TEXT_CSV, new byte[0]);
+
+        ResponseEntity<String> response = csvController.splitInvoiceCsv(file, "shuffled", null, null, null, null);
+
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+        assertEquals(UNKNOWN_SPLIT_STRATEGY_MESSAGE, response.getBody());
+    }
+
+    @Test
+    public void splitInvoiceCsvStreamWithFormatName() throws IOException, CsvValidationException {
+        InputStream body = new ByteArrayInputStream(new byte[0]);
+
+        ResponseEntity<String> response = csvController.splitInvoiceCsvStream(body, null, " CSV ", null, null, null);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        verify(invoiceCsvSplitter).splitStreamedCsvInvoicesByBuyer(eq(body), any(SplitProgress.class),
+                eq(SplitOptions.DEFAULTS.withFormat(CSV_FORMAT)));
+    }
+
+    @Test
+    public void splitInvoiceCsvWithUnknownFormat() {
+        MockMultipartFile file = new MockMultipartFile(FILE, TEST_CSV, TEXT_CSV, new byte[0]);
+
+        ResponseEntity<String> response = csvController.splitInvoiceCsv(file, null, "parquet", null, null, null);
+
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+        assertEquals(UNKNOWN_OUTPUT_FORMAT_MESSAGE, response.getBody());
+    }
+
+    @Test
+    public void splitInvoiceCsvStreamIntoTarget() throws IOException, CsvValidationException {
+        InputStream body = new ByteArrayInputStream(new byte[0]);
+
+        ResponseEntity<String> response = csvController.splitInvoiceCsvStream(body, null, null, "daily", null, null);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        verify(invoiceCsvSplitter).splitStreamedCsvInvoicesByBuyer(eq(body), any(SplitProgress.class),
+                eq(SplitOptions.DEFAULTS.withFormat(CSV_FORMAT).withTarget("daily")));
+    }
+
+    @Test
+    public void splitInvoiceCsvWithInvalidTarget() {
+        MockMultipartFile file = new MockMultipartFile(FILE, TEST_CSV, TEXT_CSV, new byte[0]);
+
+        ResponseEntity<String> response = csvController.splitInvoiceCsv(file, null, null, "../daily", null, null);
+
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+        assertEquals(INVALID_TARGET_MESSAGE, response.getBody());
+    }
+
+    @Test
+    public void splitInvoiceCsvStreamWithColumnsAndFilters() throws IOException, CsvValidationException {
+        InputStream body = new ByteArrayInputStream(new byte[0]);
+
+        ResponseEntity<String> response = csvController.splitInvoiceCsvStream(body, null, null, null,
+                "buyer, invoice_number,", List.of("amount>=100", "currency = EUR"));
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        verify(invoiceCsvSplitter).splitStreamedCsvInvoicesByBuyer(eq(body), any(SplitProgress.class),
+                eq(SplitOptions.DEFAULTS.withFormat(CSV_FORMAT)
+                        .withColumns(List.of("buyer", "invoice_number"))
+                        .withFilters(List.of(new RowFilter("amount", RowFilter.Operator.GREATER_OR_EQUAL, "100"),
+                                new RowFilter("currency", RowFilter.Operator.EQUAL, "EUR")))));
+    }
+
+    @Test
+    public void splitInvoiceCsvWithInvalidFilter() {
+        MockMultipartFile file = new MockMultipartFile(FILE, TEST_CSV, TEXT_CSV, new byte[0]);
+
+        ResponseEntity<String> response = csvController.splitInvoiceCsv(file, null, null, null, null, List.of("amount"));
+
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+        assertEquals(INVALID_ROW_FILTER_MESSAGE, response.getBody());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void splitInvoiceCsvWhenExecutorIsSaturated() {
+        ExecutorService saturatedExecutor = mock(ExecutorService.class);
+        when(saturatedExecutor.submit(any(Callable.class))).thenThrow(new RejectedExecutionException());
+        CsvController saturatedController = new CsvController(this.outputFormats, saturatedExecutor);
+        MockMultipartFile file = new MockMultipartFile(FILE, TEST_CSV, TEXT_CSV, new byte[0]);
+
+        ResponseEntity<String> response = saturatedController.splitInvoiceCsv(file, null, null, null, null, null);
+
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode());
+        assertEquals(TOO_MANY_SPLIT_REQUESTS_MESSAGE, response.getBody());
+    }
+
     private void verifyThrowsException(Throwable throwable, HttpStatus expectedStatus, String expectedMessage) throws IOException, CsvValidationException {
         MockMultipartFile file = new MockMultipartFile(FILE, TEST_CSV, TEXT_CSV, inputStream);
-        doThrow(throwable).when(invoiceCsvSplitter).splitCsvInvoicesByBuyer(any());
+        doThrow(throwable).when(invoiceCsvSplitter)
+                .splitCsvInvoicesByBuyer(any(InputStreamSource.class), any(SplitProgress.class), any(SplitOptions.class));
 
-        ResponseEntity<String> response = csvController.splitInvoiceCsv(file);
+        ResponseEntity<String> response = csvController.splitInvoiceCsv(file, null, null, null, null, null);
 
         assertEquals(expectedStatus, response.getStatusCode());
         assertEquals(expectedMessage, response.getBody());
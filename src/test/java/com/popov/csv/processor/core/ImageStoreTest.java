@@ -0,0 +1,78 @@
+package com.popov.csv.processor.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ImageStoreTest {
+
+	@TempDir
+	private Path tempDir;
+
+	@Test
+	public void testStoredImageIsLinkedAgain() throws IOException {
+		ImageStore imageStore = new ImageStore(this.tempDir.resolve("store"), 1024);
+		String key = ImageStore.keyOf(new ByteArrayInputStream("aW1hZ2U=".getBytes(StandardCharsets.UTF_8)));
+
+		assertFalse(imageStore.linkTo(key, this.tempDir.resolve("first.png")));
+		imageStore.add(key, this.decoded(imageStore, "image"), this.tempDir.resolve("first.png"));
+		assertTrue(imageStore.linkTo(key, this.tempDir.resolve("second.png")));
+
+		assertArrayEquals("image".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(this.tempDir.resolve("first.png")));
+		assertArrayEquals("image".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(this.tempDir.resolve("second.png")));
+		assertEquals(1, imageStore.getEntryCount());
+		assertEquals(5, imageStore.getStoredBytes());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedImageIsEvicted() throws IOException {
+		ImageStore imageStore = new ImageStore(this.tempDir.resolve("store"), 10);
+		imageStore.add("a", this.decoded(imageStore, "aaaa"), this.tempDir.resolve("a.png"));
+		imageStore.add("b", this.decoded(imageStore, "bbbb"), this.tempDir.resolve("b.png"));
+		assertTrue(imageStore.linkTo("a", this.tempDir.resolve("a2.png")));
+
+		imageStore.add("c", this.decoded(imageStore, "cccc"), this.tempDir.resolve("c.png"));
+
+		assertTrue(imageStore.linkTo("a", this.tempDir.resolve("a3.png")));
+		assertFalse(imageStore.linkTo("b", this.tempDir.resolve("b2.png")));
+		assertEquals(8, imageStore.getStoredBytes());
+		// Files linked before the eviction keep their content
+		assertEquals("bbbb", Files.readString(this.tempDir.resolve("b.png")));
+	}
+
+	@Test
+	public void testStoreKeepsImagesOfEarlierProcess() throws IOException {
+		ImageStore imageStore = new ImageStore(this.tempDir.resolve("store"), 1024);
+		imageStore.add("a", this.decoded(imageStore, "aaaa"), this.tempDir.resolve("a.png"));
+
+		ImageStore reopened = new ImageStore(this.tempDir.resolve("store"), 1024);
+
+		assertTrue(reopened.linkTo("a", this.tempDir.resolve("a2.png")));
+		assertEquals(4, reopened.getStoredBytes());
+	}
+
+	@Test
+	public void testStoreDeletesImagesLeftUndecoded() throws IOException {
+		ImageStore imageStore = new ImageStore(this.tempDir.resolve("store"), 1024);
+		Path leftover = this.decoded(imageStore, "half");
+
+		ImageStore reopened = new ImageStore(this.tempDir.resolve("store"), 1024);
+
+		assertFalse(Files.exists(leftover));
+		assertEquals(0, reopened.getEntryCount());
+	}
+
+	private Path decoded(ImageStore imageStore, String content) throws IOException {
+		return Files.writeString(imageStore.createTemporaryFile(), content);
+	}
+}
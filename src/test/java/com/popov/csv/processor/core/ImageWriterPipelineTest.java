@@ -0,0 +1,126 @@
+package com.popov.csv.processor.core;
+
+import com.popov.csv.processor.config.ThreadMode;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ImageWriterPipelineTest {
+
+	@Test
+	public void testAwaitWaitsForAllImages() throws IOException {
+		ImageWriterPipeline imageWriterPipeline = new ImageWriterPipeline(workers(4), 12);
+		AtomicInteger writtenImages = new AtomicInteger();
+
+		for (int i = 0; i < 100; i++) {
+			imageWriterPipeline.submit("image" + i, () -> {
+				sleep(1);
+				writtenImages.incrementAndGet();
+			});
+		}
+		imageWriterPipeline.await();
+
+		assertEquals(100, writtenImages.get());
+		assertEquals(0, imageWriterPipeline.getInFlightCount());
+	}
+
+	@Test
+	public void testSubmitBlocksWhenPipelineIsFull() throws Exception {
+		ImageWriterPipeline imageWriterPipeline = new ImageWriterPipeline(workers(1), 2);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch thirdSubmitted = new CountDownLatch(1);
+
+		imageWriterPipeline.submit("image1", () -> await(release));
+		imageWriterPipeline.submit("image2", () -> await(release));
+
+		Thread producer = new Thread(() -> {
+			try {
+				imageWriterPipeline.submit("image3", () -> {
+				});
+				thirdSubmitted.countDown();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		producer.start();
+
+		assertFalse(thirdSubmitted.await(200, TimeUnit.MILLISECONDS));
+		assertEquals(2, imageWriterPipeline.getInFlightCount());
+
+		release.countDown();
+		assertTrue(thirdSubmitted.await(5, TimeUnit.SECONDS));
+		imageWriterPipeline.await();
+	}
+
+	@Test
+	public void testWritesImagesOfSameFileInOrder() throws IOException {
+		ImageWriterPipeline imageWriterPipeline = new ImageWriterPipeline(workers(4), 12);
+		List<Integer> writes = Collections.synchronizedList(new ArrayList<>());
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger overlaps = new AtomicInteger();
+
+		for (int i = 0; i < 100; i++) {
+			int write = i;
+			imageWriterPipeline.submit(i % 2 == 0 ? "same" : "other" + i, () -> {
+				if (write % 2 == 0) {
+					if (running.incrementAndGet() > 1) {
+						overlaps.incrementAndGet();
+					}
+					sleep(1);
+					writes.add(write);
+					running.decrementAndGet();
+				}
+			});
+		}
+		imageWriterPipeline.await();
+
+		assertEquals(0, overlaps.get());
+		assertEquals(IntStream.range(0, 50).map(i -> i * 2).boxed().toList(), writes);
+	}
+
+	@Test
+	public void testAwaitReportsFailure() throws IOException {
+		ImageWriterPipeline imageWriterPipeline = new ImageWriterPipeline(workers(2), 4);
+		IOException failure = new IOException("disk full");
+
+		imageWriterPipeline.submit("image", () -> {
+			throw failure;
+		});
+
+		assertSame(failure, assertThrows(IOException.class, imageWriterPipeline::await));
+	}
+
+	private static Executor workers(int threads) {
+		return InvoiceCsvSplitter.newWorkerPool(threads, "image-", ThreadMode.PLATFORM);
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package com.popov.csv.processor.core;
+
+import com.popov.csv.processor.config.OutputDirectoryResolver;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs many uploads through one shared splitter instance at increasing concurrency,
+ * checks that no run sees another run's rows and logs the throughput of every level.
+ * At every level the first uploads wait for each other halfway through their input, so the
+ * test fails when the splitter runs splits one at a time again.
+ */
+public class InvoiceCsvSplitterLoadTest {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(InvoiceCsvSplitterLoadTest.class);
+
+	private static final int ROWS_PER_UPLOAD = 20_000;
+	private static final int BUYERS_PER_UPLOAD = 50;
+	private static final int UPLOADS_PER_LEVEL = 16;
+	private static final long OVERLAP_TIMEOUT_SECONDS = 30;
+
+	@TempDir
+	private Path tempDir;
+
+	@Test
+	public void testConcurrentSplitsAreIsolatedAndScale() throws Exception {
+		AtomicInteger runCounter = new AtomicInteger();
+		OutputDirectoryResolver outputDirectoryResolver = new OutputDirectoryResolver() {
+			@Override
+			public String getOutputDirectory() {
+				return tempDir.resolve(String.valueOf(runCounter.incrementAndGet())).toString();
+			}
+		};
+		InvoiceCsvSplitter invoiceCsvSplitter = new InvoiceCsvToCsvSplitter(outputDirectoryResolver);
+
+		int maxConcurrency = Math.min(UPLOADS_PER_LEVEL, Math.max(2, Runtime.getRuntime().availableProcessors()));
+		for (int concurrency = 1; concurrency <= maxConcurrency; concurrency *= 2) {
+			int firstRun = runCounter.get() + 1;
+			long elapsedNanos = this.runUploads(invoiceCsvSplitter, concurrency);
+
+			for (int run = firstRun; run < firstRun + UPLOADS_PER_LEVEL; run++) {
+				this.assertRunIsolated(this.tempDir.resolve(String.valueOf(run)));
+			}
+
+			double rowsPerSecond = (double) ROWS_PER_UPLOAD * UPLOADS_PER_LEVEL / (elapsedNanos / 1_000_000_000d);
+			LOGGER.info("Concurrency {}: {} rows/s", concurrency, String.format("%.0f", rowsPerSecond));
+		}
+	}
+
+	private long runUploads(InvoiceCsvSplitter invoiceCsvSplitter, int concurrency) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			CountDownLatch overlap = new CountDownLatch(concurrency);
+			long start = System.nanoTime();
+			for (int upload = 0; upload < UPLOADS_PER_LEVEL; upload++) {
+				String tag = "u" + upload;
+				futures.add(executor.submit(() -> {
+					invoiceCsvSplitter.splitCsvInvoicesByBuyer(new OverlappingInputStream(generateCsv(tag), overlap));
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			return System.nanoTime() - start;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void assertRunIsolated(Path runDirectory) throws IOException {
+		List<String> tags = new ArrayList<>();
+		int rows = 0;
+		for (int buyer = 0; buyer < BUYERS_PER_UPLOAD; buyer++) {
+			List<String> lines = Files.readAllLines(runDirectory.resolve("buyer" + buyer + ".csv"));
+			for (String line : lines.subList(1, lines.size())) {
+				String tag = line.split(",")[2];
+				if (!tags.contains(tag)) {
+					tags.add(tag);
+				}
+			}
+			rows += lines.size() - 1;
+		}
+
+		assertEquals(1, tags.size());
+		assertEquals(ROWS_PER_UPLOAD, rows);
+	}
+
+	private static byte[] generateCsv(String tag) {
+		StringBuilder csv = new StringBuilder("buyer,invoice_number,upload\n");
+		for (int row = 0; row < ROWS_PER_UPLOAD; row++) {
+			csv.append("buyer").append(row % BUYERS_PER_UPLOAD).append(',')
+					.append(row).append(',')
+					.append(tag).append('\n');
+		}
+		return csv.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Input that stops halfway until as many splits as the level runs at once got halfway too.
+	 * Once they did, the latch is open and later uploads read straight through.
+	 */
+	private static final class OverlappingInputStream extends ByteArrayInputStream {
+
+		private final CountDownLatch overlap;
+		private boolean halfway;
+
+		private OverlappingInputStream(byte[] bytes, CountDownLatch overlap) {
+			super(bytes);
+			this.overlap = overlap;
+		}
+
+		@Override
+		public synchronized int read(byte[] bytes, int offset, int length) {
+			if (!this.halfway && this.pos >= this.count / 2) {
+				this.halfway = true;
+				this.awaitOverlap();
+			}
+			return super.read(bytes, offset, this.halfway ? length : Math.min(length, this.count / 2 - this.pos));
+		}
+
+		private void awaitOverlap() {
+			this.overlap.countDown();
+			try {
+				if (!this.overlap.await(OVERLAP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+					throw new IllegalStateException("Splits did not run concurrently, "
+							+ this.overlap.getCount() + " of them did not get halfway in time.");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
@@ -1,7 +1,9 @@
 package com.popov.csv.processor.core;
 
+import com.github.luben.zstd.ZstdInputStream;
 import com.opencsv.exceptions.CsvValidationException;
 import com.popov.csv.processor.config.OutputDirectoryResolver;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -10,17 +12,42 @@ import org.mockito.Mock;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.xml.sax.SAXException;
 
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @SpringBootTest
@@ -42,11 +69,22 @@ public class InvoiceCsvSplitterTest {
 	public static final String MISSING_BUYER_HEADER_INPUT_CSV = "seller,image_name,invoice_image\n" +
 			"John,Doe,123\n" +
 			"Jane,Smith,456\n";
+	public static final String QUOTED_FIELDS_INPUT_CSV = "\uFEFFbuyer,note\r\n" +
+			"John,\"first, \"\"quoted\"\"\"\r\n" +
+			"Jane,\"multi\nline\"\r\n" +
+			"John,plain";
+	public static final String INVALID_IMAGE_INPUT_CSV = "buyer,image_name,invoice_image\n" +
+			String.format("John,image1.jpg,%s\n", BASE64_JPG) +
+			"Jane,image2.png,not*base64\n";
+	public static final String LARGE_IMAGE_NAME = "large.png";
+	public static final long LARGE_IMAGE_BASE64_SIZE = 100L * 1024 * 1024;
 	public static final String ONLY_HEADERS_CSV = "buyer,image_name,invoice_image";
 	public static final String JOHN_CSV = "John.csv";
 	public static final String JANE_CSV = "Jane.csv";
 	public static final String JOHN_XML = "John.xml";
 	public static final String JANE_XML = "Jane.xml";
+	public static final String JOHN_COL = "John.col";
+	public static final String JANE_COL = "Jane.col";
 	public static final String IMAGE_1 = "image1.jpg";
 	public static final String IMAGE_2 = "image2.png";
 	public static final String IMAGE_3 = "image3.tif";
@@ -55,6 +93,8 @@ public class InvoiceCsvSplitterTest {
 	private OutputDirectoryResolver outputDirectoryResolver;
 
 	@Autowired
+	private OutputFormats outputFormats;
+
 	private InvoiceCsvSplitter invoiceCsvSplitter;
 
 	@TempDir
@@ -99,6 +139,21 @@ public class InvoiceCsvSplitterTest {
 		assertTrue(Files.exists(image3));
 	}
 
+	@Test
+	public void testSplitCsvInvoicesByBuyerToXmlWritesLastImageOfSameName() throws IOException, CsvValidationException {
+		StringBuilder inputCsv = new StringBuilder("buyer,image_name,invoice_image\n");
+		for (int row = 0; row < 200; row++) {
+			inputCsv.append(String.format("John,%s,%s\n", IMAGE_1, row % 2 == 0 ? BASE64_JPG : BASE64_PNG));
+		}
+		inputCsv.append(String.format("Jane,%s,%s\n", IMAGE_1, BASE64_TIF));
+		this.arrange(new InvoiceCsvToXmlSplitter(this.outputDirectoryResolver), inputCsv.toString());
+		((InvoiceCsvToXmlSplitter) this.invoiceCsvSplitter).imageThreads = 4;
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(this.inputStream);
+
+		assertArrayEquals(Base64.getDecoder().decode(BASE64_TIF), Files.readAllBytes(this.tempDir.resolve(IMAGE_1)));
+	}
+
 	@Test
 	public void testSplitCsvInvoicesByBuyerMissingBuyerValue() throws CsvValidationException, IOException {
 		this.arrange(new InvoiceCsvToCsvSplitter(this.outputDirectoryResolver), MISSING_BUYER_VALUE_INPUT_CSV);
@@ -112,6 +167,63 @@ public class InvoiceCsvSplitterTest {
 		assertTrue(Files.exists(janeCsv));
 	}
 
+	@Test
+	public void testSplitCsvInvoicesByBuyerToXmlInvalidImage() throws IOException {
+		this.arrange(new InvoiceCsvToXmlSplitter(this.outputDirectoryResolver), INVALID_IMAGE_INPUT_CSV);
+		this.invoiceCsvSplitter.errorBudget = 0;
+
+		assertThrows(RuntimeException.class, () -> this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(this.inputStream));
+		assertTrue(Files.exists(this.tempDir.resolve(IMAGE_1)));
+		assertTrue(Files.readString(this.tempDir.resolve(ErrorRows.FILE_NAME)).contains("3,\"Invalid value in invoice_image column.\",\"Jane\""));
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerToXmlRoutesMalformedRowsToErrorFile() throws IOException, CsvValidationException, ParserConfigurationException, SAXException {
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		this.arrange(new InvoiceCsvToXmlSplitter(this.outputDirectoryResolver), INVALID_IMAGE_INPUT_CSV + "John,image4.jpg\n");
+		this.invoiceCsvSplitter.setMeterRegistry(meterRegistry);
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(this.inputStream);
+
+		String lineSeparator = System.lineSeparator();
+		assertEquals("row,reason,\"buyer\",\"image_name\",\"invoice_image\"" + lineSeparator
+						+ "3,\"Invalid value in invoice_image column.\",\"Jane\",\"image2.png\",\"not*base64\"" + lineSeparator
+						+ "4,\"Row has 2 of 3 fields.\",\"John\",\"image4.jpg\"" + lineSeparator,
+				Files.readString(this.tempDir.resolve(ErrorRows.FILE_NAME)));
+		assertEquals(1, this.countInvoices(this.tempDir.resolve(JOHN_XML)));
+		assertFalse(Files.exists(this.tempDir.resolve(JANE_XML)));
+		assertEquals(2, meterRegistry.get(SplitMetrics.FAILED_ROWS_COUNTER).counter().count());
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerFailsPastErrorBudget() {
+		this.arrange(new InvoiceCsvToCsvSplitter(this.outputDirectoryResolver), "note,buyer\na,John\nb\nc\nd,Jane\n");
+		this.invoiceCsvSplitter.errorBudget = 1;
+
+		assertThrows(RuntimeException.class, () -> this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(this.inputStream));
+		assertTrue(Files.exists(this.tempDir.resolve(JOHN_CSV)));
+		assertFalse(Files.exists(this.tempDir.resolve(JANE_CSV)));
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerRecordsMetrics() throws IOException, CsvValidationException {
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		this.arrange(new InvoiceCsvToCsvSplitter(this.outputDirectoryResolver), MISSING_BUYER_VALUE_INPUT_CSV);
+		this.invoiceCsvSplitter.setMeterRegistry(meterRegistry);
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(this.inputStream);
+
+		long bytesOut = Files.size(this.tempDir.resolve(JOHN_CSV)) + Files.size(this.tempDir.resolve(JANE_CSV));
+		assertEquals(1, meterRegistry.get(SplitMetrics.SPLIT_TIMER).tag(SplitMetrics.FORMAT_TAG, "csv").timer().count());
+		assertEquals(2, meterRegistry.get(SplitMetrics.ROWS_COUNTER).counter().count());
+		assertEquals(1, meterRegistry.get(SplitMetrics.SKIPPED_ROWS_COUNTER).counter().count());
+		assertEquals(0, meterRegistry.get(SplitMetrics.FAILED_ROWS_COUNTER).counter().count());
+		assertEquals(MISSING_BUYER_VALUE_INPUT_CSV.length(), meterRegistry.get(SplitMetrics.BYTES_IN_COUNTER).counter().count());
+		assertEquals(bytesOut, meterRegistry.get(SplitMetrics.BYTES_OUT_COUNTER).counter().count());
+		assertEquals(2, meterRegistry.get(SplitMetrics.BUYERS_SUMMARY).summary().totalAmount());
+		assertEquals(0, meterRegistry.get(SplitMetrics.OPEN_WRITERS_GAUGE).gauge().value());
+	}
+
 	@Test
 	public void testSplitCsvInvoicesByBuyerMissingBuyerHeader() {
 		this.arrange(new InvoiceCsvToCsvSplitter(this.outputDirectoryResolver), MISSING_BUYER_HEADER_INPUT_CSV);
@@ -128,6 +240,536 @@ public class InvoiceCsvSplitterTest {
 		assertTrue(isEmpty(tempDir));
 	}
 
+	@Test
+	public void testSplitCsvInvoicesByBuyerToCsvWithEvictedWriters() throws IOException, CsvValidationException {
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		this.arrange(new InvoiceCsvToCsvSplitter(this.outputDirectoryResolver), INPUT_CSV);
+		this.invoiceCsvSplitter.setMeterRegistry(meterRegistry);
+		this.invoiceCsvSplitter.maxOpenWriters = 1;
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(this.inputStream);
+
+		List<String> johnLines = Files.readAllLines(this.tempDir.resolve(JOHN_CSV));
+		List<String> janeLines = Files.readAllLines(this.tempDir.resolve(JANE_CSV));
+
+		assertEquals(3, johnLines.size());
+		assertEquals(2, janeLines.size());
+		assertTrue(johnLines.get(0).startsWith("buyer,"));
+		assertEquals(0, meterRegistry.get(SplitMetrics.WRITER_HITS_COUNTER).counter().count());
+		assertEquals(2, meterRegistry.get(SplitMetrics.WRITER_EVICTIONS_COUNTER).counter().count());
+		assertEquals(1, meterRegistry.get(SplitMetrics.WRITER_REOPENS_COUNTER).counter().count());
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerToXmlWithEvictedWriters() throws IOException, CsvValidationException, ParserConfigurationException, SAXException {
+		this.arrange(new InvoiceCsvToXmlSplitter(this.outputDirectoryResolver), INPUT_CSV);
+		this.invoiceCsvSplitter.maxOpenWriters = 1;
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(this.inputStream);
+
+		assertEquals(2, this.countInvoices(this.tempDir.resolve(JOHN_XML)));
+		assertEquals(1, this.countInvoices(this.tempDir.resolve(JANE_XML)));
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerToGzipCsvWithEvictedWriters() throws IOException, CsvValidationException {
+		this.arrange(new InvoiceCsvToCsvSplitter(this.outputDirectoryResolver), INPUT_CSV);
+		this.invoiceCsvSplitter.maxOpenWriters = 1;
+		this.invoiceCsvSplitter.compressionCodec = "gzip";
+		this.invoiceCsvSplitter.compressionBufferSize = 64;
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(this.inputStream);
+
+		try (InputStream johnCsv = new GZIPInputStream(Files.newInputStream(this.tempDir.resolve(JOHN_CSV + ".gz")))) {
+			String[] johnLines = new String(johnCsv.readAllBytes(), StandardCharsets.UTF_8).split("\n");
+			assertEquals(3, johnLines.length);
+			assertTrue(johnLines[0].startsWith("buyer,"));
+		}
+		assertTrue(Files.notExists(this.tempDir.resolve(JOHN_CSV)));
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerToZstdXmlWithEvictedWriters() throws IOException, CsvValidationException, ParserConfigurationException, SAXException {
+		this.arrange(new InvoiceCsvToXmlSplitter(this.outputDirectoryResolver), INPUT_CSV);
+		this.invoiceCsvSplitter.maxOpenWriters = 1;
+		this.invoiceCsvSplitter.compressionCodec = "zstd";
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(this.inputStream);
+
+		try (InputStream johnXml = new ZstdInputStream(Files.newInputStream(this.tempDir.resolve(JOHN_XML + ".zst")));
+			 InputStream janeXml = new ZstdInputStream(Files.newInputStream(this.tempDir.resolve(JANE_XML + ".zst")))) {
+			assertEquals(2, this.countInvoices(johnXml));
+			assertEquals(1, this.countInvoices(janeXml));
+		}
+		assertTrue(Files.exists(this.tempDir.resolve(IMAGE_1)));
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerToColumnarWithEvictedWriters() throws IOException, CsvValidationException {
+		this.arrange(new InvoiceCsvToColumnarSplitter(this.outputDirectoryResolver), QUOTED_FIELDS_INPUT_CSV);
+		this.invoiceCsvSplitter.maxOpenWriters = 1;
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(this.inputStream);
+
+		List<ColumnarBlock> johnBlocks;
+		List<ColumnarBlock> janeBlocks;
+		try (InputStream johnCol = Files.newInputStream(this.tempDir.resolve(JOHN_COL));
+			 InputStream janeCol = Files.newInputStream(this.tempDir.resolve(JANE_COL))) {
+			johnBlocks = ColumnarBlock.readAll(johnCol);
+			janeBlocks = ColumnarBlock.readAll(janeCol, List.of("note"));
+		}
+
+		// John's writer was evicted in between, so each of his rows is a block of its own
+		assertEquals(2, johnBlocks.size());
+		assertEquals(List.of("buyer", "note"), johnBlocks.get(0).getColumns());
+		assertEquals(List.of("John", "first, \"quoted\""), Arrays.asList(johnBlocks.get(0).getRow(0)));
+		assertEquals(List.of("John", "plain"), Arrays.asList(johnBlocks.get(1).getRow(0)));
+		assertEquals(1, janeBlocks.size());
+		assertEquals(List.of("note"), janeBlocks.get(0).getColumns());
+		assertEquals(List.of("multi\nline"), janeBlocks.get(0).getColumn("note"));
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerToColumnarBlocks() throws IOException, CsvValidationException {
+		StringBuilder inputCsv = new StringBuilder("buyer,image_name,amount\n");
+		for (int i = 0; i < 10; i++) {
+			inputCsv.append("John,image").append(i).append(".png,").append(i % 2).append('\n');
+		}
+		this.arrange(new InvoiceCsvToColumnarSplitter(this.outputDirectoryResolver), inputCsv.toString());
+		((InvoiceCsvToColumnarSplitter) this.invoiceCsvSplitter).blockRows = 4;
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(this.inputStream);
+
+		List<ColumnarBlock> blocks;
+		try (InputStream johnCol = Files.newInputStream(this.tempDir.resolve(JOHN_COL))) {
+			blocks = ColumnarBlock.readAll(johnCol);
+		}
+		assertEquals(List.of(4, 4, 2), blocks.stream().map(ColumnarBlock::getRowCount).toList());
+		assertEquals(List.of("image8.png", "image9.png"), blocks.get(2).getColumn("image_name"));
+		assertEquals(List.of("0", "1", "0", "1"), blocks.get(1).getColumn("amount"));
+	}
+
+	@Test
+	public void testOutputFormatsOfferEverySplitter() {
+		assertEquals(Set.of("csv", "xml", "columnar"), this.outputFormats.getFormats());
+		assertEquals("xml", this.outputFormats.getDefault().getFormat());
+		assertTrue(this.outputFormats.find("COLUMNAR").isPresent());
+		assertTrue(this.outputFormats.find("parquet").isEmpty());
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerToCsvSorted() throws IOException, CsvValidationException {
+		this.arrange(new InvoiceCsvToCsvSplitter(this.outputDirectoryResolver), QUOTED_FIELDS_INPUT_CSV + "\n" + INPUT_CSV.substring(INPUT_CSV.indexOf('\n') + 1));
+		// One row per run and merges in groups of two
+		this.invoiceCsvSplitter.sortMemoryBudget = 1;
+		this.invoiceCsvSplitter.sortMaxMergeRuns = 2;
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(this.inputStream, new SplitProgress(),
+				SplitOptions.DEFAULTS.withStrategy(SplitStrategy.SORTED));
+
+		String johnCsv = Files.readString(this.tempDir.resolve(JOHN_CSV));
+		String[] johnLines = johnCsv.split("\n");
+		assertEquals(5, johnLines.length);
+		assertEquals("buyer,note\r", johnLines[0]);
+		assertEquals("John,\"first, \"\"quoted\"\"\"\r", johnLines[1]);
+		assertEquals("John,plain", johnLines[2]);
+		assertTrue(johnLines[3].startsWith("John,image1.jpg,"));
+		assertTrue(johnLines[4].startsWith("John,image3.tif,"));
+		assertTrue(Files.readString(this.tempDir.resolve(JANE_CSV)).contains("Jane,\"multi\nline\"\r\n"));
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerToXmlSorted() throws IOException, CsvValidationException, ParserConfigurationException, SAXException {
+		this.arrange(new InvoiceCsvToXmlSplitter(this.outputDirectoryResolver), INPUT_CSV);
+		this.invoiceCsvSplitter.sortMemoryBudget = 1;
+		this.invoiceCsvSplitter.maxOpenWriters = 1;
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(this.inputStream, new SplitProgress(),
+				SplitOptions.DEFAULTS.withStrategy(SplitStrategy.SORTED));
+
+		assertEquals(2, this.countInvoices(this.tempDir.resolve(JOHN_XML)));
+		assertEquals(1, this.countInvoices(this.tempDir.resolve(JANE_XML)));
+		assertTrue(Files.exists(this.tempDir.resolve(IMAGE_3)));
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerFromGzipInput() throws IOException, CsvValidationException {
+		ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(gzip)) {
+			gzipOutputStream.write(INPUT_CSV.getBytes(StandardCharsets.UTF_8));
+		}
+		this.invoiceCsvSplitter = new InvoiceCsvToCsvSplitter(this.outputDirectoryResolver);
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(new ByteArrayInputStream(gzip.toByteArray()));
+
+		assertEquals(3, Files.readAllLines(this.tempDir.resolve(JOHN_CSV)).size());
+		assertEquals(2, Files.readAllLines(this.tempDir.resolve(JANE_CSV)).size());
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerFromZipInputSplitsEveryEntry() throws IOException, CsvValidationException {
+		ByteArrayOutputStream zip = new ByteArrayOutputStream();
+		try (ZipOutputStream zipOutputStream = new ZipOutputStream(zip)) {
+			zipOutputStream.putNextEntry(new ZipEntry("monday.csv"));
+			zipOutputStream.write(INPUT_CSV.getBytes(StandardCharsets.UTF_8));
+			zipOutputStream.putNextEntry(new ZipEntry("tuesday.csv"));
+			zipOutputStream.write(MISSING_BUYER_VALUE_INPUT_CSV.getBytes(StandardCharsets.UTF_8));
+		}
+		this.invoiceCsvSplitter = new InvoiceCsvToCsvSplitter(this.outputDirectoryResolver);
+		SplitProgress progress = new SplitProgress();
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(new ByteArrayInputStream(zip.toByteArray()), progress);
+
+		assertEquals(3, Files.readAllLines(this.tempDir.resolve("monday").resolve(JOHN_CSV)).size());
+		assertEquals(2, Files.readAllLines(this.tempDir.resolve("tuesday").resolve(JOHN_CSV)).size());
+		assertEquals(5, progress.getRowsProcessed());
+		assertEquals(zip.size(), progress.getBytesConsumed());
+	}
+
+	@Test
+	public void testResumeCsvInvoicesByBuyerFromCheckpoint() throws IOException, CsvValidationException, ParserConfigurationException, SAXException {
+		StringBuilder csv = new StringBuilder("buyer,note\n");
+		for (int row = 0; row < 2000; row++) {
+			csv.append("buyer").append(row % 7).append(",note ").append(row).append('\n');
+		}
+		Path inputFile = Files.writeString(this.tempDir.resolve("input.csv"), csv);
+		String outputDirectory = this.tempDir.resolve("run").toString();
+		when(this.outputDirectoryResolver.getOutputDirectory()).thenReturn(outputDirectory);
+		this.invoiceCsvSplitter = new InvoiceCsvToXmlSplitter(this.outputDirectoryResolver);
+		this.invoiceCsvSplitter.checkpointIntervalMillis = 1;
+
+		// Stops the run well after the first checkpoint, which leaves rows behind it to be dropped
+		SplitProgress interruptedProgress = new SplitProgress() {
+			@Override
+			void update(long rowsProcessed, int buyersSeen) {
+				super.update(rowsProcessed, buyersSeen);
+				if (rowsProcessed == 1000) {
+					this.sleep();
+				} else if (rowsProcessed == 1500) {
+					this.cancel();
+				}
+			}
+
+			private void sleep() {
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		assertThrows(CancellationException.class, () -> this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(inputFile, interruptedProgress));
+		assertTrue(this.invoiceCsvSplitter.findCheckpoint(outputDirectory).isPresent());
+
+		SplitProgress progress = new SplitProgress();
+		this.invoiceCsvSplitter.resumeCsvInvoicesByBuyer(outputDirectory, progress);
+
+		assertEquals(2000, progress.getRowsProcessed());
+		assertTrue(this.invoiceCsvSplitter.findCheckpoint(outputDirectory).isEmpty());
+		assertEquals(286, this.countInvoices(Paths.get(outputDirectory, "buyer0.xml")));
+		assertEquals(285, this.countInvoices(Paths.get(outputDirectory, "buyer6.xml")));
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerToCsvPassesRecordsThrough() throws IOException, CsvValidationException {
+		this.arrange(new InvoiceCsvToCsvSplitter(this.outputDirectoryResolver), QUOTED_FIELDS_INPUT_CSV);
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(this.inputStream);
+
+		assertEquals("buyer,note\r\nJohn,\"first, \"\"quoted\"\"\"\r\nJohn,plain\n",
+				Files.readString(this.tempDir.resolve(JOHN_CSV)));
+		assertEquals("buyer,note\r\nJane,\"multi\nline\"\r\n",
+				Files.readString(this.tempDir.resolve(JANE_CSV)));
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerToXmlWithLargeImageKeepsHeapFlat() throws IOException, CsvValidationException {
+		this.invoiceCsvSplitter = new InvoiceCsvToXmlSplitter(this.outputDirectoryResolver);
+		this.inputStream = largeImageInput();
+
+		this.assertSplitKeepsHeapFlat(() -> this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(this.inputStream));
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerToXmlFromLargeImageFileKeepsHeapFlat() throws IOException, CsvValidationException {
+		Path inputFile = this.tempDir.resolve("large.csv");
+		try (InputStream input = largeImageInput()) {
+			Files.copy(input, inputFile);
+		}
+		this.invoiceCsvSplitter = new InvoiceCsvToXmlSplitter(this.outputDirectoryResolver);
+		// The file is far larger than a chunk, so it would be read by the parallel reader
+		this.invoiceCsvSplitter.parallelism = 2;
+
+		this.assertSplitKeepsHeapFlat(() -> this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(inputFile));
+	}
+
+	private void assertSplitKeepsHeapFlat(SplitCall split) throws IOException, CsvValidationException {
+		Optional<MemoryPoolMXBean> oldGeneration = ManagementFactory.getMemoryPoolMXBeans().stream()
+				.filter(pool -> pool.getType() == MemoryType.HEAP)
+				.filter(pool -> pool.getName().contains("Old") || pool.getName().contains("Tenured"))
+				.findFirst();
+		assumeTrue(oldGeneration.isPresent());
+
+		// Large arrays are allocated in the old generation, a buffered image would show up there
+		System.gc();
+		long usedBefore = oldGeneration.get().getUsage().getUsed();
+		oldGeneration.get().resetPeakUsage();
+
+		split.run();
+
+		long peakGrowth = oldGeneration.get().getPeakUsage().getUsed() - usedBefore;
+		assertEquals(LARGE_IMAGE_BASE64_SIZE / 4 * 3, Files.size(this.tempDir.resolve(LARGE_IMAGE_NAME)));
+		assertTrue(peakGrowth < LARGE_IMAGE_BASE64_SIZE / 4, "old generation grew by " + peakGrowth + " bytes");
+	}
+
+	private static InputStream largeImageInput() {
+		return new SequenceInputStream(
+				new ByteArrayInputStream(("buyer,image_name,invoice_image\nJohn," + LARGE_IMAGE_NAME + ",").getBytes(StandardCharsets.UTF_8)),
+				new SequenceInputStream(new RepeatingInputStream((byte) 'A', LARGE_IMAGE_BASE64_SIZE),
+						new ByteArrayInputStream("\n".getBytes(StandardCharsets.UTF_8))));
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerReusesEarlierSplitOfSameFile() throws IOException, CsvValidationException {
+		Path inputFile = Files.writeString(this.tempDir.resolve("input.csv"), INPUT_CSV);
+		Path firstRun = this.tempDir.resolve("run-1");
+		Path secondRun = this.tempDir.resolve("run-2");
+		when(this.outputDirectoryResolver.getOutputDirectory()).thenReturn(firstRun.toString(), secondRun.toString());
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		this.invoiceCsvSplitter = new InvoiceCsvToCsvSplitter(this.outputDirectoryResolver);
+		this.invoiceCsvSplitter.setMeterRegistry(meterRegistry);
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(inputFile, new SplitProgress());
+		SplitProgress progress = new SplitProgress();
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(Files.copy(inputFile, this.tempDir.resolve("resent.csv")), progress);
+
+		// The duplicate is answered before it is split, so it never gets an output directory
+		assertEquals(firstRun.toString(), progress.getOutputDirectory());
+		assertEquals(0, progress.getRowsProcessed());
+		assertFalse(Files.exists(secondRun));
+		verify(this.outputDirectoryResolver, times(1)).getOutputDirectory();
+		assertEquals(1, meterRegistry.get(SplitMetrics.DUPLICATE_FEEDS_COUNTER).counter().count());
+
+		// The output of the earlier run is gone, so the feed is split again
+		Files.delete(firstRun.resolve(JOHN_CSV));
+		Files.delete(firstRun.resolve(JANE_CSV));
+		Files.delete(firstRun);
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(inputFile, progress);
+
+		assertEquals(secondRun.toString(), progress.getOutputDirectory());
+		assertTrue(Files.exists(secondRun.resolve(JOHN_CSV)));
+	}
+
+	@Test
+	public void testSplitStreamedCsvInvoicesByBuyerRemovesOutputOfSameFeed() throws IOException, CsvValidationException {
+		Path firstRun = this.tempDir.resolve("run-1");
+		Path secondRun = this.tempDir.resolve("run-2");
+		when(this.outputDirectoryResolver.getOutputDirectory()).thenReturn(firstRun.toString(), secondRun.toString());
+		this.invoiceCsvSplitter = new InvoiceCsvToCsvSplitter(this.outputDirectoryResolver);
+
+		this.invoiceCsvSplitter.splitStreamedCsvInvoicesByBuyer(new ByteArrayInputStream(INPUT_CSV.getBytes(StandardCharsets.UTF_8)),
+				new SplitProgress(), SplitOptions.DEFAULTS);
+		SplitProgress progress = new SplitProgress();
+		this.invoiceCsvSplitter.splitStreamedCsvInvoicesByBuyer(new ByteArrayInputStream(INPUT_CSV.getBytes(StandardCharsets.UTF_8)),
+				progress, SplitOptions.DEFAULTS);
+
+		assertEquals(firstRun.toString(), progress.getOutputDirectory());
+		assertTrue(Files.exists(firstRun.resolve(JOHN_CSV)));
+		assertFalse(Files.exists(secondRun));
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerToXmlLinksStoredImages() throws IOException, CsvValidationException {
+		Path firstRun = this.tempDir.resolve("run-1");
+		Path secondRun = this.tempDir.resolve("run-2");
+		when(this.outputDirectoryResolver.getOutputDirectory()).thenReturn(firstRun.toString(), secondRun.toString());
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		InvoiceCsvToXmlSplitter xmlSplitter = new InvoiceCsvToXmlSplitter(this.outputDirectoryResolver);
+		xmlSplitter.imageStoreDirectory = this.tempDir.resolve("store").toString();
+		xmlSplitter.setMeterRegistry(meterRegistry);
+
+		xmlSplitter.splitCsvInvoicesByBuyer(new ByteArrayInputStream(INPUT_CSV.getBytes(StandardCharsets.UTF_8)));
+		xmlSplitter.splitCsvInvoicesByBuyer(new ByteArrayInputStream(INPUT_CSV.getBytes(StandardCharsets.UTF_8)));
+
+		assertEquals(3, meterRegistry.get(SplitMetrics.IMAGE_STORE_MISSES_COUNTER).counter().count());
+		assertEquals(3, meterRegistry.get(SplitMetrics.IMAGE_STORE_HITS_COUNTER).counter().count());
+		assertArrayEquals(Base64.getDecoder().decode(BASE64_JPG), Files.readAllBytes(secondRun.resolve(IMAGE_1)));
+		assertArrayEquals(Base64.getDecoder().decode(BASE64_PNG), Files.readAllBytes(secondRun.resolve(IMAGE_2)));
+		assertArrayEquals(Base64.getDecoder().decode(BASE64_TIF), Files.readAllBytes(firstRun.resolve(IMAGE_3)));
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerIntoTargetAppendsNewRows() throws IOException, CsvValidationException {
+		Path target = this.tempDir.resolve("daily");
+		when(this.outputDirectoryResolver.getTargetDirectory("daily")).thenReturn(Optional.of(target.toString()));
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		this.invoiceCsvSplitter = new InvoiceCsvToCsvSplitter(this.outputDirectoryResolver);
+		this.invoiceCsvSplitter.setMeterRegistry(meterRegistry);
+		SplitOptions options = SplitOptions.DEFAULTS.withTarget("daily");
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(new ByteArrayInputStream("buyer,note\nJohn,1\nJane,2\n".getBytes(StandardCharsets.UTF_8)),
+				new SplitProgress(), options);
+		byte[] jane = Files.readAllBytes(target.resolve(JANE_CSV));
+		// The second delta overlaps the first one by a row
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(new ByteArrayInputStream("buyer,note\nJohn,1\nJohn,3\n".getBytes(StandardCharsets.UTF_8)),
+				new SplitProgress(), options);
+
+		assertEquals("buyer,note\nJohn,1\nJohn,3\n", Files.readString(target.resolve(JOHN_CSV)));
+		assertArrayEquals(jane, Files.readAllBytes(target.resolve(JANE_CSV)));
+		assertEquals(1, meterRegistry.get(SplitMetrics.DUPLICATE_ROWS_COUNTER).counter().count());
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerToXmlIntoTargetContinuesFiles() throws IOException, CsvValidationException, ParserConfigurationException, SAXException {
+		Path target = this.tempDir.resolve("daily");
+		when(this.outputDirectoryResolver.getTargetDirectory("daily")).thenReturn(Optional.of(target.toString()));
+		this.invoiceCsvSplitter = new InvoiceCsvToXmlSplitter(this.outputDirectoryResolver);
+		this.invoiceCsvSplitter.incrementalKeyColumns = "image_name";
+		this.invoiceCsvSplitter.maxOpenWriters = 1;
+		SplitOptions options = SplitOptions.DEFAULTS.withTarget("daily");
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(new ByteArrayInputStream(INPUT_CSV.getBytes(StandardCharsets.UTF_8)),
+				new SplitProgress(), options);
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(new ByteArrayInputStream((INPUT_CSV + "Jane,image4.png," + BASE64_PNG + "\n")
+				.getBytes(StandardCharsets.UTF_8)), new SplitProgress(), options.withStrategy(SplitStrategy.SORTED));
+
+		assertEquals(2, this.countInvoices(target.resolve(JOHN_XML)));
+		assertEquals(2, this.countInvoices(target.resolve(JANE_XML)));
+		assertTrue(Files.exists(target.resolve("image4.png")));
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerToXmlIntoTargetClosesFilesWhenInputFails() throws IOException, ParserConfigurationException, SAXException {
+		Path target = this.tempDir.resolve("daily");
+		when(this.outputDirectoryResolver.getTargetDirectory("daily")).thenReturn(Optional.of(target.toString()));
+		this.invoiceCsvSplitter = new InvoiceCsvToXmlSplitter(this.outputDirectoryResolver);
+		StringBuilder inputCsv = new StringBuilder("buyer,note\n");
+		for (int i = 0; i < 100_000; i++) {
+			inputCsv.append(i % 2 == 0 ? "John," : "Jane,").append(i).append('\n');
+		}
+		InputStream failingInput = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("Connection reset");
+			}
+		};
+
+		assertThrows(IOException.class, () -> this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(new SequenceInputStream(
+				new ByteArrayInputStream(inputCsv.toString().getBytes(StandardCharsets.UTF_8)), failingInput),
+				new SplitProgress(), SplitOptions.DEFAULTS.withTarget("daily")));
+
+		// The files are closed and complete, but their rows are not remembered as written
+		assertTrue(this.countInvoices(target.resolve(JOHN_XML)) > 0);
+		assertTrue(this.countInvoices(target.resolve(JANE_XML)) > 0);
+		assertFalse(Files.exists(target.resolve(IncrementalSplit.ROW_KEYS_DIRECTORY)));
+	}
+
+	@Test
+	public void testFindInvoiceReturnsIndexedCsvRow() throws IOException, CsvValidationException {
+		this.invoiceCsvSplitter = new InvoiceCsvToCsvSplitter(this.outputDirectoryResolver);
+		this.invoiceCsvSplitter.indexKeyColumns = "note";
+		this.invoiceCsvSplitter.maxOpenWriters = 1;
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(new ByteArrayInputStream(QUOTED_FIELDS_INPUT_CSV.getBytes(StandardCharsets.UTF_8)));
+
+		assertEquals("John,\"first, \"\"quoted\"\"\"\r\n", this.readInvoice("John", "first, \"quoted\""));
+		assertEquals("Jane,\"multi\nline\"\r\n", this.readInvoice("Jane", "multi\nline"));
+		assertEquals("John,plain\n", this.readInvoice("John", "plain"));
+		assertTrue(this.invoiceCsvSplitter.findInvoice(this.tempDir.toString(), "Jane", null, "plain").isEmpty());
+		assertTrue(this.invoiceCsvSplitter.findInvoice(this.tempDir.toString(), "../John", null, "plain").isEmpty());
+		assertThrows(IllegalArgumentException.class,
+				() -> this.invoiceCsvSplitter.findInvoice(this.tempDir.toString(), "John", "buyer", "plain"));
+	}
+
+	@Test
+	public void testFindInvoiceComparesTheStoredKey() throws IOException, CsvValidationException {
+		this.invoiceCsvSplitter = new InvoiceCsvToCsvSplitter(this.outputDirectoryResolver);
+		this.invoiceCsvSplitter.indexKeyColumns = "image_name";
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(new ByteArrayInputStream(INPUT_CSV.getBytes(StandardCharsets.UTF_8)));
+
+		// Stands in for a hash collision: the entry of image1.jpg now holds another key of the same hash
+		Path keysFile = this.tempDir.resolve(InvoiceIndex.INDEX_DIRECTORY).resolve("image_name").resolve(JOHN_CSV + ".idx.keys");
+		String keys = Files.readString(keysFile, StandardCharsets.ISO_8859_1);
+		Files.writeString(keysFile, keys.replace("image1.jpg", "image9.jpg"), StandardCharsets.ISO_8859_1);
+
+		assertTrue(this.invoiceCsvSplitter.findInvoice(this.tempDir.toString(), "John", null, "image1.jpg").isEmpty());
+		assertTrue(this.readInvoice("John", "image3.tif").startsWith("John,image3.tif,"));
+	}
+
+	@Test
+	public void testFindInvoiceReturnsIndexedXmlInvoice() throws IOException, CsvValidationException {
+		this.invoiceCsvSplitter = new InvoiceCsvToXmlSplitter(this.outputDirectoryResolver);
+		this.invoiceCsvSplitter.indexKeyColumns = "image_name";
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(new ByteArrayInputStream(INPUT_CSV.getBytes(StandardCharsets.UTF_8)));
+
+		assertEquals("<invoice><buyer>John</buyer><image_name>image1.jpg</image_name></invoice>", this.readInvoice("John", "image1.jpg"));
+		assertEquals("<invoice><buyer>John</buyer><image_name>image3.tif</image_name></invoice>", this.readInvoice("John", "image3.tif"));
+		assertEquals("<invoice><buyer>Jane</buyer><image_name>image2.png</image_name></invoice>", this.readInvoice("Jane", "image2.png"));
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerToCsvProjectsColumnsAndFiltersRows() throws IOException, CsvValidationException {
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		this.arrange(new InvoiceCsvToCsvSplitter(this.outputDirectoryResolver), QUOTED_FIELDS_INPUT_CSV);
+		this.invoiceCsvSplitter.setMeterRegistry(meterRegistry);
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(this.inputStream, new SplitProgress(),
+				SplitOptions.DEFAULTS.withColumns(List.of("note", "buyer")).withFilters(List.of(RowFilter.parse("note!=plain"))));
+
+		String lineSeparator = System.lineSeparator();
+		assertEquals("note,buyer" + lineSeparator + "\"first, \"\"quoted\"\"\",John" + lineSeparator,
+				Files.readString(this.tempDir.resolve(JOHN_CSV)));
+		assertEquals("note,buyer" + lineSeparator + "\"multi\nline\",Jane" + lineSeparator,
+				Files.readString(this.tempDir.resolve(JANE_CSV)));
+		assertEquals(1, meterRegistry.get(SplitMetrics.FILTERED_ROWS_COUNTER).counter().count());
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerToXmlSortedFiltersRows() throws IOException, CsvValidationException, ParserConfigurationException, SAXException {
+		this.arrange(new InvoiceCsvToXmlSplitter(this.outputDirectoryResolver), INPUT_CSV);
+		this.invoiceCsvSplitter.sortMemoryBudget = 1;
+
+		this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(this.inputStream, new SplitProgress(),
+				SplitOptions.DEFAULTS.withStrategy(SplitStrategy.SORTED)
+						.withColumns(List.of("buyer", "image_name"))
+						.withFilters(List.of(RowFilter.parse("image_name<image3"))));
+
+		assertEquals(1, this.countInvoices(this.tempDir.resolve(JOHN_XML)));
+		assertEquals(1, this.countInvoices(this.tempDir.resolve(JANE_XML)));
+		assertFalse(Files.exists(this.tempDir.resolve(IMAGE_1)));
+	}
+
+	@Test
+	public void testSplitCsvInvoicesByBuyerWithMissingSelectedColumnFails() {
+		this.arrange(new InvoiceCsvToCsvSplitter(this.outputDirectoryResolver), INPUT_CSV);
+
+		assertThrows(RuntimeException.class, () -> this.invoiceCsvSplitter.splitCsvInvoicesByBuyer(this.inputStream,
+				new SplitProgress(), SplitOptions.DEFAULTS.withFilters(List.of(RowFilter.parse("amount>100")))));
+	}
+
+	private String readInvoice(String buyer, String key) throws IOException {
+		InvoiceLocation invoice = this.invoiceCsvSplitter.findInvoice(this.tempDir.toString(), buyer, null, key).orElseThrow();
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		invoice.transferTo(outputStream);
+		return outputStream.toString(StandardCharsets.UTF_8);
+	}
+
+	private int countInvoices(Path xmlFile) throws ParserConfigurationException, IOException, SAXException {
+		try (InputStream xml = Files.newInputStream(xmlFile)) {
+			return this.countInvoices(xml);
+		}
+	}
+
+	private int countInvoices(InputStream xml) throws ParserConfigurationException, IOException, SAXException {
+		return DocumentBuilderFactory.newInstance()
+				.newDocumentBuilder()
+				.parse(xml)
+				.getElementsByTagName("invoice")
+				.getLength();
+	}
+
 	private boolean isEmpty(Path path) throws IOException {
 		if (Files.isDirectory(path)) {
 			try (Stream<Path> entries = Files.list(path)) {
@@ -142,4 +784,43 @@ public class InvoiceCsvSplitterTest {
 		this.invoiceCsvSplitter = invoiceCsvSplitter;
 		this.inputStream = new ByteArrayInputStream(inputCsv.getBytes(StandardCharsets.UTF_8));
 	}
-}
\ No newline at end of file
+
+	@FunctionalInterface
+	private interface SplitCall {
+		void run() throws IOException, CsvValidationException;
+	}
+
+	/**
+	 * Produces {@code length} copies of one byte without allocating them.
+	 */
+	private static class RepeatingInputStream extends InputStream {
+
+		private final byte value;
+		private long remaining;
+
+		private RepeatingInputStream(byte value, long length) {
+			this.value = value;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() {
+			if (this.remaining == 0) {
+				return -1;
+			}
+			this.remaining--;
+			return this.value;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			if (this.remaining == 0) {
+				return -1;
+			}
+			int count = (int) Math.min(length, this.remaining);
+			Arrays.fill(buffer, offset, offset + count, this.value);
+			this.remaining -= count;
+			return count;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.popov.csv.processor.core;
+
+import com.opencsv.CSVReader;
+import com.opencsv.exceptions.CsvValidationException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ParallelCsvReaderTest {
+
+	@TempDir
+	private Path tempDir;
+
+	@Test
+	public void testReadsSameRowsAsSequentialReader() throws IOException, CsvValidationException {
+		Path inputFile = this.writeCsv(5_000);
+
+		List<String[]> expected = this.readSequential(inputFile);
+		List<String[]> actual = this.readParallel(inputFile, 4, 97);
+
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertArrayEquals(expected.get(i), actual.get(i));
+		}
+	}
+
+	@Test
+	public void testReadsEmptyFile() throws IOException {
+		Path inputFile = Files.createFile(this.tempDir.resolve("empty.csv"));
+
+		assertEquals(0, this.readParallel(inputFile, 2, 16).size());
+	}
+
+	@Test
+	public void testSkipsToOffsetOfSequentialReader() throws IOException, CsvValidationException {
+		Path inputFile = this.writeCsv(5_000);
+		List<String[]> expected = this.readSequential(inputFile);
+
+		long offset;
+		try (ByteCsvRecordReader reader = new ByteCsvRecordReader(Files.newInputStream(inputFile), 1024, 1024 * 1024)) {
+			for (int i = 0; i < 2_500; i++) {
+				reader.next();
+			}
+			offset = reader.getOffset();
+		}
+		try (ParallelCsvReader parallelCsvReader = new ParallelCsvReader(inputFile, 4, 97)) {
+			parallelCsvReader.skipTo(offset);
+			assertArrayEquals(expected.get(2_500), parallelCsvReader.next().toArray());
+		}
+	}
+
+	private List<String[]> readSequential(Path inputFile) throws IOException, CsvValidationException {
+		List<String[]> rows = new ArrayList<>();
+		try (CSVReader csvReader = new CSVReader(Files.newBufferedReader(inputFile))) {
+			String[] row;
+			while ((row = csvReader.readNext()) != null) {
+				rows.add(row);
+			}
+		}
+		return rows;
+	}
+
+	private List<String[]> readParallel(Path inputFile, int threads, int chunkSize) throws IOException {
+		List<String[]> rows = new ArrayList<>();
+		try (ParallelCsvReader parallelCsvReader = new ParallelCsvReader(inputFile, threads, chunkSize)) {
+			CsvRecord record;
+			while ((record = parallelCsvReader.next()) != null) {
+				rows.add(record.toArray());
+			}
+		}
+		return rows;
+	}
+
+	private Path writeCsv(int rows) throws IOException {
+		Random random = new Random(42);
+		StringBuilder csv = new StringBuilder("buyer,note,invoice_number\n");
+		for (int row = 0; row < rows; row++) {
+			csv.append("buyer").append(random.nextInt(100)).append(',');
+			if (row % 7 == 0) {
+				// Quoted field with a line break, a comma and escaped quotes
+				csv.append("\"multi\nline, \"\"quoted\"\"\"");
+			} else {
+				csv.append("note").append(row);
+			}
+			csv.append(',').append(row).append(row % 3 == 0 ? "\r\n" : "\n");
+		}
+		return Files.writeString(this.tempDir.resolve("invoices-" + rows + ".csv"), csv, StandardCharsets.UTF_8);
+	}
+}
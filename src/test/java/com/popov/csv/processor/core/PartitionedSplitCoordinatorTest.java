@@ -0,0 +1,181 @@
+package com.popov.csv.processor.core;
+
+import com.popov.csv.processor.config.OutputDirectoryResolver;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PartitionedSplitCoordinatorTest {
+
+	private static final int BUYERS = 20;
+	private static final int ROWS = 2000;
+
+	@TempDir
+	private Path tempDir;
+
+	@Test
+	public void testEveryBuyerIsSplitByOneLocalWorker() throws Exception {
+		List<SplitWorker> workers = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			workers.add(new LocalSplitWorker("local-" + i, this.csvSplitter(this.tempDir.resolve("worker-" + i))));
+		}
+		PartitionedSplitCoordinator coordinator = new PartitionedSplitCoordinator(null);
+		coordinator.queueCapacity = 1;
+
+		PartitionedSplitResult result = coordinator.split(input(), SplitOptions.DEFAULTS, workers);
+
+		assertEquals(ROWS, result.rows());
+		assertEquals(ROWS / 100, result.skippedRows());
+		assertEquals(ROWS, result.workers().stream().mapToLong(PartitionedSplitResult.Worker::rows).sum());
+		this.assertBuyerFiles(3);
+	}
+
+	@Test
+	public void testEveryBuyerIsSplitByOneHttpWorker() throws Exception {
+		List<HttpServer> servers = new ArrayList<>();
+		List<SplitWorker> workers = new ArrayList<>();
+		HttpClient httpClient = HttpClient.newHttpClient();
+		try {
+			for (int i = 0; i < 2; i++) {
+				InvoiceCsvSplitter splitter = this.csvSplitter(this.tempDir.resolve("worker-" + i));
+				HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+				server.createContext("/api/v1/csv/split/stream", exchange -> {
+					try (InputStream body = exchange.getRequestBody()) {
+						SplitProgress progress = new SplitProgress();
+						splitter.splitCsvInvoicesByBuyer(body, progress, SplitOptions.DEFAULTS);
+						// Answers like the stream endpoint, with the output directory of the run
+						byte[] outputDirectory = progress.getOutputDirectory().getBytes(StandardCharsets.UTF_8);
+						exchange.sendResponseHeaders(200, outputDirectory.length);
+						exchange.getResponseBody().write(outputDirectory);
+					} catch (Exception e) {
+						exchange.sendResponseHeaders(400, -1);
+					} finally {
+						exchange.close();
+					}
+				});
+				server.start();
+				servers.add(server);
+				workers.add(new HttpSplitWorker(URI.create("http://localhost:" + server.getAddress().getPort()), httpClient));
+			}
+
+			PartitionedSplitResult result = new PartitionedSplitCoordinator(null).split(input(), SplitOptions.DEFAULTS, workers);
+
+			assertEquals(ROWS, result.rows());
+			assertTrue(result.workers().stream().allMatch(worker -> worker.rowsPerSecond() > 0));
+			for (PartitionedSplitResult.Worker worker : result.workers()) {
+				assertEquals(this.tempDir.resolve("worker-" + worker.partition()).toString(), worker.outputDirectory());
+			}
+			this.assertBuyerFiles(2);
+		} finally {
+			servers.forEach(server -> server.stop(0));
+		}
+	}
+
+	@Test
+	public void testFailingWorkerFailsTheSplit() {
+		SplitWorker failingWorker = new SplitWorker() {
+			@Override
+			public String getName() {
+				return "failing";
+			}
+
+			@Override
+			public String split(InputStream partition, SplitOptions options) {
+				throw new IllegalStateException("worker down");
+			}
+		};
+		List<SplitWorker> workers = List.of(new LocalSplitWorker("local", this.csvSplitter(this.tempDir)), failingWorker);
+		PartitionedSplitCoordinator coordinator = new PartitionedSplitCoordinator(null);
+		coordinator.queueCapacity = 1;
+
+		IllegalStateException exception = assertThrows(IllegalStateException.class,
+				() -> coordinator.split(input(), SplitOptions.DEFAULTS, workers));
+		assertEquals("worker down", exception.getMessage());
+	}
+
+	@Test
+	public void testMissingBuyerFailsTheSplit() {
+		List<SplitWorker> workers = List.of(new LocalSplitWorker("local", this.csvSplitter(this.tempDir)));
+		InputStream input = new ByteArrayInputStream("seller,note\nJohn,1\n".getBytes(StandardCharsets.UTF_8));
+
+		assertThrows(RuntimeException.class, () -> new PartitionedSplitCoordinator(null).split(input, SplitOptions.DEFAULTS, workers));
+	}
+
+	@Test
+	public void testRowTooShortForBuyerGoesToErrorFileOfFirstWorker() throws Exception {
+		List<SplitWorker> workers = List.of(new LocalSplitWorker("local-0", this.csvSplitter(this.tempDir.resolve("worker-0"))),
+				new LocalSplitWorker("local-1", this.csvSplitter(this.tempDir.resolve("worker-1"))));
+		InputStream input = new ByteArrayInputStream("note,buyer\n1,John\nshort\n2,Jane\n".getBytes(StandardCharsets.UTF_8));
+
+		PartitionedSplitResult result = new PartitionedSplitCoordinator(null).split(input, SplitOptions.DEFAULTS, workers);
+
+		assertEquals(2, result.rows());
+		Path errorFile = this.findFile(this.tempDir.resolve("worker-0"), ErrorRows.FILE_NAME);
+		assertTrue(Files.readString(errorFile).contains("\"short\""));
+		assertNull(this.findFile(this.tempDir.resolve("worker-1"), ErrorRows.FILE_NAME));
+	}
+
+	// Rows of every buyer are spread over the whole input, every 100th row has no buyer
+	private static InputStream input() {
+		StringBuilder csv = new StringBuilder("\uFEFFbuyer,note\n");
+		for (int i = 0; i < ROWS; i++) {
+			csv.append("buyer").append(i % BUYERS).append(",\"row ").append(i).append(", ").append("x".repeat(i % 300)).append("\"\n");
+			if (i % 100 == 99) {
+				csv.append(",no buyer\n");
+			}
+		}
+		return new ByteArrayInputStream(csv.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void assertBuyerFiles(int workers) throws IOException {
+		for (int buyer = 0; buyer < BUYERS; buyer++) {
+			String fileName = "buyer" + buyer + ".csv";
+			int partition = PartitionedSplitCoordinator.partitionOf("buyer" + buyer, workers);
+			for (int worker = 0; worker < workers; worker++) {
+				Path buyerFile = this.findFile(this.tempDir.resolve("worker-" + worker), fileName);
+				assertEquals(worker == partition, buyerFile != null, fileName + " of worker " + worker);
+				if (buyerFile != null) {
+					String content = Files.readString(buyerFile);
+					assertTrue(content.startsWith("buyer,note\n"));
+					assertEquals(ROWS / BUYERS, content.split("\n").length - 1);
+				}
+			}
+		}
+	}
+
+	private Path findFile(Path directory, String fileName) throws IOException {
+		if (Files.notExists(directory)) {
+			return null;
+		}
+		try (Stream<Path> files = Files.walk(directory)) {
+			return files.filter(file -> file.getFileName().toString().equals(fileName)).findFirst().orElse(null);
+		}
+	}
+
+	private InvoiceCsvSplitter csvSplitter(Path outputDirectory) {
+		return new InvoiceCsvToCsvSplitter(new OutputDirectoryResolver() {
+			@Override
+			public String getOutputDirectory() {
+				return outputDirectory.toString();
+			}
+		});
+	}
+}
@@ -0,0 +1,150 @@
+package com.popov.csv.processor.core;
+
+import com.popov.csv.processor.config.OutputDirectoryResolver;
+import com.popov.csv.processor.job.SplitJob;
+import com.popov.csv.processor.job.SplitJobService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SplitJobServiceTest {
+
+    public static final String FILE = "file";
+    public static final String TEST_CSV = "test.csv";
+    public static final String TEXT_CSV = "text/csv";
+
+    public static final String INPUT_CSV = "buyer,note\nJohn,a\nJane,b\nJohn,c\n";
+    public static final String MISSING_BUYER_HEADER_INPUT_CSV = "seller,note\nJohn,a\n";
+    public static final String RUN = "1";
+
+    @TempDir
+    private Path tempDir;
+
+    private ExecutorService jobExecutor;
+
+    private SplitJobService splitJobService;
+
+    @BeforeEach
+    public void setUp() {
+        OutputDirectoryResolver outputDirectoryResolver = new OutputDirectoryResolver() {
+            @Override
+            public String getOutputDirectory() {
+                return tempDir.toString();
+            }
+
+            @Override
+            public Optional<String> getOutputDirectory(String run) {
+                return Optional.of(tempDir.resolve(run).toString());
+            }
+        };
+        this.jobExecutor = Executors.newSingleThreadExecutor();
+        this.splitJobService = new SplitJobService(
+                new OutputFormats(List.of(new InvoiceCsvToCsvSplitter(outputDirectoryResolver)), "csv"), this.jobExecutor);
+        ReflectionTestUtils.setField(this.splitJobService, "outputDirectoryResolver", outputDirectoryResolver);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        this.jobExecutor.shutdownNow();
+    }
+
+    @Test
+    public void submittedJobReportsProgress() throws Exception {
+        SplitJob job = this.splitJobService.submit(this.file(INPUT_CSV));
+
+        this.awaitFinished(job);
+
+        assertEquals(SplitJob.State.SUCCEEDED, job.getState());
+        assertEquals(3, job.getProgress().getRowsProcessed());
+        assertEquals(2, job.getProgress().getBuyersSeen());
+        assertEquals(INPUT_CSV.length(), job.getProgress().getBytesConsumed());
+        assertEquals(INPUT_CSV.length(), job.getTotalBytes());
+        assertEquals(0, job.getEtaMillis());
+        assertEquals(this.tempDir.toString(), job.getProgress().getOutputDirectory());
+        assertTrue(Files.exists(this.tempDir.resolve("John.csv")));
+    }
+
+    @Test
+    public void failedJobReportsError() throws Exception {
+        SplitJob job = this.splitJobService.submit(this.file(MISSING_BUYER_HEADER_INPUT_CSV));
+
+        this.awaitFinished(job);
+
+        assertEquals(SplitJob.State.FAILED, job.getState());
+        assertEquals("Invalid csv input file.", job.getError());
+    }
+
+    @Test
+    public void queuedJobIsCancelled() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        this.jobExecutor.submit(() -> release.await(5, TimeUnit.SECONDS));
+
+        SplitJob job = this.splitJobService.submit(this.file(INPUT_CSV));
+        this.splitJobService.cancel(job.getId());
+        release.countDown();
+
+        assertEquals(SplitJob.State.CANCELLED, job.getState());
+        assertFalse(Files.exists(this.tempDir.resolve("John.csv")));
+    }
+
+    @Test
+    public void runOfUnfinishedJobIsNotResumedAgain() throws Exception {
+        Path inputFile = Files.createTempFile("split-job-", ".csv");
+        try {
+            Files.writeString(inputFile, INPUT_CSV);
+            Path outputDirectory = Files.createDirectories(this.tempDir.resolve(RUN));
+            // A checkpoint right after the header
+            new SplitCheckpoint(inputFile.toAbsolutePath().toString(), INPUT_CSV.length(), "csv", "NONE",
+                    INPUT_CSV.indexOf('\n') + 1, 0, 0, 0, 0, Map.of()).write(outputDirectory.toString());
+            CountDownLatch release = new CountDownLatch(1);
+            this.jobExecutor.submit(() -> release.await(5, TimeUnit.SECONDS));
+
+            SplitJob job = this.splitJobService.resume(RUN).orElseThrow();
+
+            assertThrows(IllegalStateException.class, () -> this.splitJobService.resume(RUN));
+            release.countDown();
+            this.awaitFinished(job);
+            assertEquals(SplitJob.State.SUCCEEDED, job.getState());
+            assertTrue(Files.exists(outputDirectory.resolve("John.csv")));
+            assertTrue(this.splitJobService.resume(RUN).isEmpty());
+        } finally {
+            Files.deleteIfExists(inputFile);
+        }
+    }
+
+    @Test
+    public void unknownJobIsNotFound() {
+        assertTrue(this.splitJobService.find("unknown").isEmpty());
+        assertTrue(this.splitJobService.cancel("unknown").isEmpty());
+    }
+
+    private MockMultipartFile file(String csv) {
+        return new MockMultipartFile(FILE, TEST_CSV, TEXT_CSV, csv.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void awaitFinished(SplitJob job) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!job.getState().isFinished() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+}
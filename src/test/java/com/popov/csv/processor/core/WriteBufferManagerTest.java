@@ -0,0 +1,109 @@
+package com.popov.csv.processor.core;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WriteBufferManagerTest {
+
+	@TempDir
+	private Path tempDir;
+
+	@Test
+	public void testWritesEveryByteWithinBudget() throws IOException {
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		WriteBufferPool writeBufferPool = new WriteBufferPool(4L * WriteBufferManager.SEGMENT_SIZE);
+		WriteBufferManager writeBufferManager = new WriteBufferManager(writeBufferPool, 1024 * 1024,
+				new SplitMetrics(meterRegistry, "csv"));
+		Random random = new Random(42);
+		OutputStream[] outputStreams = new OutputStream[10];
+		ByteArrayOutputStream[] expected = new ByteArrayOutputStream[10];
+		for (int i = 0; i < outputStreams.length; i++) {
+			outputStreams[i] = writeBufferManager.open(this.tempDir.resolve(i + ".csv"), false);
+			expected[i] = new ByteArrayOutputStream();
+		}
+
+		long written = 0;
+		for (int row = 0; row < 20_000; row++) {
+			// Most rows go to the first buyer
+			int buyer = random.nextInt(4) == 0 ? random.nextInt(outputStreams.length) : 0;
+			if (row % 5000 == 4999) {
+				outputStreams[buyer].close();
+				outputStreams[buyer] = writeBufferManager.open(this.tempDir.resolve(buyer + ".csv"), true);
+			}
+			byte[] bytes = new byte[random.nextInt(300)];
+			random.nextBytes(bytes);
+			outputStreams[buyer].write(bytes);
+			expected[buyer].write(bytes);
+			written += bytes.length;
+			assertTrue(writeBufferPool.getAllocatedSegments() <= 4);
+		}
+		for (OutputStream outputStream : outputStreams) {
+			outputStream.close();
+		}
+
+		for (int i = 0; i < outputStreams.length; i++) {
+			assertArrayEquals(expected[i].toByteArray(), Files.readAllBytes(this.tempDir.resolve(i + ".csv")));
+		}
+		assertEquals(written, meterRegistry.get(SplitMetrics.BYTES_OUT_COUNTER).counter().count());
+		assertEquals(writeBufferPool.getAllocatedSegments(), writeBufferPool.getFreeSegments());
+	}
+
+	@Test
+	public void testSessionsShareOneBudget() throws IOException {
+		WriteBufferPool writeBufferPool = new WriteBufferPool(4L * WriteBufferManager.SEGMENT_SIZE);
+		SplitMetrics splitMetrics = new SplitMetrics(new SimpleMeterRegistry(), "csv");
+		WriteBufferManager[] writeBufferManagers = new WriteBufferManager[3];
+		OutputStream[] outputStreams = new OutputStream[writeBufferManagers.length];
+		for (int i = 0; i < writeBufferManagers.length; i++) {
+			writeBufferManagers[i] = new WriteBufferManager(writeBufferPool, 1024 * 1024, splitMetrics);
+			outputStreams[i] = writeBufferManagers[i].open(this.tempDir.resolve(i + ".csv"), false);
+		}
+		byte[] row = new byte[100];
+
+		for (int i = 0; i < 10_000; i++) {
+			outputStreams[i % outputStreams.length].write(row);
+			// Every session may borrow a single segment beyond the budget while the others hold it
+			assertTrue(writeBufferPool.getAllocatedSegments() <= 4 + writeBufferManagers.length);
+		}
+		for (WriteBufferManager writeBufferManager : writeBufferManagers) {
+			writeBufferManager.close();
+		}
+
+		for (int i = 0; i < outputStreams.length; i++) {
+			assertEquals(row.length * (10_000 / 3 + (i < 10_000 % 3 ? 1 : 0)), Files.size(this.tempDir.resolve(i + ".csv")));
+		}
+		assertTrue(writeBufferPool.getAllocatedSegments() <= 4);
+		assertEquals(writeBufferPool.getAllocatedSegments(), writeBufferPool.getFreeSegments());
+	}
+
+	@Test
+	public void testBusyBufferGrowsToFewerWrites() throws IOException {
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		WriteBufferManager writeBufferManager = new WriteBufferManager(new WriteBufferPool(32L * 1024 * 1024), 1024 * 1024,
+				new SplitMetrics(meterRegistry, "csv"));
+		byte[] row = new byte[100];
+
+		try (OutputStream outputStream = writeBufferManager.open(this.tempDir.resolve("hot.csv"), false)) {
+			for (int i = 0; i < 100_000; i++) {
+				outputStream.write(row);
+			}
+		}
+
+		// 10 MB through 8 KB buffers would take more than 1200 writes
+		double writeCalls = meterRegistry.get(SplitMetrics.WRITE_CALLS_COUNTER).counter().count();
+		assertTrue(writeCalls < 30, "write calls: " + writeCalls);
+		assertEquals(10_000_000L, Files.size(this.tempDir.resolve("hot.csv")));
+	}
+}